@@ -0,0 +1,194 @@
+import benchmarks.Services;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.javatuples.Pair;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * {@link Services} 的实现，把基准测试的调用转发给 {@link Chapter01} 和 {@link Chapter02}
+ *
+ * @author 黄学维
+ */
+public class BenchmarkServices implements Services {
+
+    private final RedisConnections connections;
+
+    private final Chapter01 chapter01;
+
+    private final Chapter02 chapter02;
+
+    private final Chapter02.Callback render = request -> "<html><body>" + request + "</body></html>";
+
+    private final AtomicLong sessionIds = new AtomicLong();
+
+    private volatile Chapter02.SessionReaper reaper;
+
+    private volatile Chapter02.CacheRowsThread rowCacher;
+
+    private volatile FrontPageCache.RefreshThread frontPageRefresher;
+
+    public BenchmarkServices(boolean embedded) {
+        RedisConnections.Config config = RedisConnections.Config.fromSystemProperties();
+        config.setEmbedded(embedded);
+        connections = new RedisConnections(config);
+        chapter01 = new Chapter01(connections);
+        chapter02 = new Chapter02(connections);
+    }
+
+    @Override
+    public void reset() {
+        connections.execute(jedis -> jedis.flushDB());
+        chapter02.getPageCache().clear();
+    }
+
+    @Override
+    public List<String> populateArticles(int articles, String group, int groupSize) {
+        List<String> ids = new ArrayList<>(articles);
+        for (int i = 0; i < articles; i++) {
+            String id = chapter01.postArticle("poster" + i, "title " + i, "http://bench.test/article/" + i);
+            if (i < groupSize) {
+                chapter01.addGroups(id, new String[]{group}, null);
+            }
+            ids.add("article:" + id);
+        }
+        return ids;
+    }
+
+    @Override
+    public String postArticle(String user, String title, String link) {
+        return chapter01.postArticle(user, title, link);
+    }
+
+    @Override
+    public boolean articleVote(String user, String article) {
+        return chapter01.articleVotes(Collections.singletonList(Pair.with(user, article))).get(0);
+    }
+
+    @Override
+    public List<Map<String, String>> getArticles(int page) {
+        return chapter01.getArticles(page);
+    }
+
+    @Override
+    public List<Map<String, String>> getGroupArticles(String group, int page) {
+        return chapter01.getGroupArticles(group, page);
+    }
+
+    @Override
+    public void expireGroupRanking(String group) {
+        connections.execute(jedis -> jedis.del("score:" + group, "fresh:score:" + group));
+    }
+
+    @Override
+    public void useFrontPageCache(int pages) {
+        FrontPageCache cache = chapter01.enableFrontPageCache(pages, 5000);
+        frontPageRefresher = cache.new RefreshThread(connections, 1000, 10);
+        frontPageRefresher.start();
+    }
+
+    @Override
+    public void populateItems(int items) {
+        connections.execute(jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            for (int i = 0; i < items; i++) {
+                // 浏览次数记为负数，排名越靠前的商品分值越小
+                pipeline.zadd("viewed:", i - items, "item" + i);
+            }
+            pipeline.sync();
+            return null;
+        });
+    }
+
+    @Override
+    public void useTopItemsSnapshot(boolean snapshot) {
+        if (snapshot) {
+            connections.execute(jedis -> {
+                chapter02.getRequestClassifier().reload(jedis);
+                return null;
+            });
+        } else {
+            // 之前的试验可能已经加载了快照
+            chapter02.getRequestClassifier().clear();
+        }
+    }
+
+    @Override
+    public void updateToken(String token, String user, String item) {
+        chapter02.updateToken(token, user, item);
+    }
+
+    @Override
+    public boolean canCache(String request) {
+        if (chapter02.getRequestClassifier().isSnapshotLoaded()) {
+            // 有快照时不访问 redis，也就不需要借出连接
+            return chapter02.canCache(null, request);
+        }
+        return connections.execute(jedis -> chapter02.canCache(jedis, request));
+    }
+
+    @Override
+    public String cacheRequest(String request) {
+        return chapter02.cacheRequest(request, render);
+    }
+
+    @Override
+    public void dropNearCachedPage(String request) {
+        chapter02.getPageCache().invalidate("cache:" + chapter02.hashRequest(request));
+    }
+
+    @Override
+    public void addSessions(int sessions) {
+        connections.execute(jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            long now = System.currentTimeMillis() / 1000;
+            for (int i = 0; i < sessions; i++) {
+                String token = "session-" + sessionIds.incrementAndGet();
+                pipeline.hset("login:", token, "user");
+                pipeline.zadd("recent:", now, token);
+                pipeline.zadd("viewed:" + token, now, "item1");
+            }
+            pipeline.sync();
+            return null;
+        });
+    }
+
+    @Override
+    public long reapSessions(int limit, int batch) {
+        Chapter02.SessionReaper current = reaper;
+        if (current == null) {
+            current = chapter02.new SessionReaper(limit, Arrays.asList("viewed:", "cart:"), batch, batch, 1000);
+            reaper = current;
+        }
+        return current.reapOnce();
+    }
+
+    @Override
+    public void scheduleRows(int rows, int delaySeconds) {
+        for (int i = 0; i < rows; i++) {
+            chapter02.scheduleRowCache("row" + i, delaySeconds);
+        }
+    }
+
+    @Override
+    public int refreshRows(long nowMillis, int batch) {
+        Chapter02.CacheRowsThread current = rowCacher;
+        if (current == null) {
+            current = chapter02.new CacheRowsThread(batch, 1000);
+            rowCacher = current;
+        }
+        return current.refreshDueRows(nowMillis);
+    }
+
+    @Override
+    public void close() {
+        FrontPageCache.RefreshThread refresher = frontPageRefresher;
+        if (refresher != null) {
+            refresher.quit();
+        }
+        connections.close();
+    }
+}
@@ -0,0 +1,123 @@
+package benchmarks;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 文章发布、投票和分页读取的基准测试
+ *
+ * 同时报告吞吐量和延迟分布（SampleTime 模式的 p50、p99 等）；线程数用 JMH 的 -t 参数指定，
+ * 例如 gradle jmh -PjmhArgs='Chapter01Benchmark -t 8 -p articles=100000'；默认使用进程内的 redis，
+ * 加上 -p backend=server 可以和连接真实服务器的结果对比
+ *
+ * @author 黄学维
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Chapter01Benchmark {
+
+    private static final String GROUP = "bench";
+
+    @Param({"1000", "100000"})
+    public int articles;
+
+    @Param({"1000"})
+    public int groupSize;
+
+    /**
+     * 首页快照缓存的页数，0 表示不开启，例如 -p frontPages=4 测量首页从内存返回的情况
+     */
+    @Param({"0"})
+    public int frontPages;
+
+    /**
+     * embedded 使用进程内的 redis，server 连接 -Dredis.host 等系统属性指定的服务器
+     */
+    @Param({"embedded"})
+    public String backend;
+
+    private Services services;
+
+    private List<String> articleIds;
+
+    private int deepPage;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        services = Services.open(backend);
+        services.reset();
+        articleIds = services.populateArticles(articles, GROUP, Math.min(groupSize, articles));
+        deepPage = Math.max(1, articles / 25 / 2);
+        if (frontPages > 0) {
+            services.useFrontPageCache(frontPages);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        services.close();
+    }
+
+    /**
+     * 每次调用前删除群组排名，测量重建排名的冷读取
+     */
+    @State(Scope.Thread)
+    public static class ColdGroup {
+
+        @Setup(Level.Invocation)
+        public void expire(Chapter01Benchmark benchmark) {
+            benchmark.services.expireGroupRanking(GROUP);
+        }
+    }
+
+    @Benchmark
+    public String postArticle() {
+        return services.postArticle("poster", "A title", "http://bench.test/");
+    }
+
+    @Benchmark
+    public boolean articleVote() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String article = articleIds.get(random.nextInt(articleIds.size()));
+        return services.articleVote("user:" + random.nextLong(), article);
+    }
+
+    @Benchmark
+    public List<Map<String, String>> getArticlesFirstPage() {
+        return services.getArticles(1);
+    }
+
+    @Benchmark
+    public List<Map<String, String>> getArticlesDeepPage() {
+        return services.getArticles(deepPage);
+    }
+
+    @Benchmark
+    public List<Map<String, String>> getGroupArticlesWarm() {
+        return services.getGroupArticles(GROUP, 1);
+    }
+
+    @Benchmark
+    public List<Map<String, String>> getGroupArticlesCold(ColdGroup cold) {
+        return services.getGroupArticles(GROUP, 1);
+    }
+}
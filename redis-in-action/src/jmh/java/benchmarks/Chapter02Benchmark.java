@@ -0,0 +1,148 @@
+package benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 会话、页面缓存、会话清理和数据行缓存的基准测试，用法参见 {@link Chapter01Benchmark}
+ *
+ * @author 黄学维
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Chapter02Benchmark {
+
+    @Param({"1000", "100000"})
+    public int items;
+
+    @Param({"true", "false"})
+    public boolean snapshot;
+
+    /**
+     * 每次清理的会话数量
+     */
+    @Param({"100"})
+    public int reapBatch;
+
+    /**
+     * 每次刷新的数据行数量
+     */
+    @Param({"100"})
+    public int rows;
+
+    /**
+     * embedded 使用进程内的 redis，server 连接 -Dredis.host 等系统属性指定的服务器
+     */
+    @Param({"embedded"})
+    public String backend;
+
+    private Services services;
+
+    private final AtomicLong uniquePages = new AtomicLong();
+
+    private final AtomicLong rowClock = new AtomicLong();
+
+    private final String cachedPage = "http://bench.test/?item=item0";
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        services = Services.open(backend);
+        services.reset();
+        services.populateItems(items);
+        services.useTopItemsSnapshot(snapshot);
+        services.cacheRequest(cachedPage);
+        services.scheduleRows(rows, 1);
+        rowClock.set(System.currentTimeMillis());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        services.close();
+    }
+
+    /**
+     * 每次调用前准备一批需要清理的会话
+     */
+    @State(Scope.Thread)
+    public static class ExpiredSessions {
+
+        @Setup(Level.Invocation)
+        public void add(Chapter02Benchmark benchmark) {
+            benchmark.services.addSessions(benchmark.reapBatch);
+        }
+    }
+
+    /**
+     * 每次调用前删除近端缓存中的页面，测量从 redis 读取页面的情况
+     */
+    @State(Scope.Thread)
+    public static class NearCacheMiss {
+
+        @Setup(Level.Invocation)
+        public void drop(Chapter02Benchmark benchmark) {
+            benchmark.services.dropNearCachedPage(benchmark.cachedPage);
+        }
+    }
+
+    @Benchmark
+    public void updateToken() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        services.updateToken("token" + random.nextInt(100000), "user", "item" + random.nextInt(items));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean canCache() {
+        return services.canCache("http://bench.test/catalog?page=3&item=item" + ThreadLocalRandom.current().nextInt(items));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String cacheRequestNearHit() {
+        return services.cacheRequest(cachedPage);
+    }
+
+    @Benchmark
+    public String cacheRequestRedisHit(NearCacheMiss miss) {
+        return services.cacheRequest(cachedPage);
+    }
+
+    /**
+     * 每次请求都是新的页面，需要生成页面并写入缓存
+     */
+    @Benchmark
+    public String cacheRequestMiss() {
+        return services.cacheRequest(cachedPage + "&v=" + uniquePages.incrementAndGet());
+    }
+
+    @Benchmark
+    public long reapSessions(ExpiredSessions sessions) {
+        return services.reapSessions(0, reapBatch);
+    }
+
+    /**
+     * 时钟每次前进一个刷新周期，每次调用都刷新全部数据行
+     */
+    @Benchmark
+    public int refreshRows() {
+        return services.refreshRows(rowClock.addAndGet(1000), rows);
+    }
+}
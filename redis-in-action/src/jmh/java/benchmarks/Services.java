@@ -0,0 +1,102 @@
+package benchmarks;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 基准测试调用的服务操作
+ *
+ * JMH 不允许基准测试类放在默认包中，而 Chapter01、Chapter02 都在默认包中，有包名的类无法直接引用它们；
+ * 因此基准测试只依赖这个接口，由默认包中的 BenchmarkServices 实现
+ *
+ * backend 为 embedded 时使用进程内的 EmbeddedRedis，不需要外部的 redis；为 server 时连接配置和
+ * {@code RedisConnections.Config.fromSystemProperties()} 相同，默认连接本机 6379 端口的 15 号数据库，准备数据时会清空这个数据库
+ *
+ * @author 黄学维
+ */
+public interface Services extends AutoCloseable {
+
+    static Services open(String backend) {
+        if (!"embedded".equals(backend) && !"server".equals(backend)) {
+            throw new IllegalArgumentException("Unknown backend: " + backend);
+        }
+        try {
+            return (Services) Class.forName("BenchmarkServices").getConstructor(boolean.class)
+                .newInstance("embedded".equals(backend));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchmarkServices is not on the classpath", e);
+        }
+    }
+
+    /**
+     * 清空数据库
+     */
+    void reset();
+
+    /**
+     * 发布 articles 篇文章，其中前 groupSize 篇加入 group 群组，返回所有文章的 article:id
+     */
+    List<String> populateArticles(int articles, String group, int groupSize);
+
+    String postArticle(String user, String title, String link);
+
+    boolean articleVote(String user, String article);
+
+    List<Map<String, String>> getArticles(int page);
+
+    List<Map<String, String>> getGroupArticles(String group, int page);
+
+    /**
+     * 删除群组排名和它的新鲜标记，下一次读取时重建
+     */
+    void expireGroupRanking(String group);
+
+    /**
+     * 开启前 pages 页的首页快照，并启动刷新线程
+     */
+    void useFrontPageCache(int pages);
+
+    /**
+     * 在 viewed: 中写入 items 个商品，商品 itemN 的排名为 N
+     */
+    void populateItems(int items);
+
+    /**
+     * 加载或者丢弃可缓存商品的本地快照
+     */
+    void useTopItemsSnapshot(boolean snapshot);
+
+    void updateToken(String token, String user, String item);
+
+    boolean canCache(String request);
+
+    String cacheRequest(String request);
+
+    /**
+     * 只删除近端缓存中的页面，下一次请求从 redis 读取
+     */
+    void dropNearCachedPage(String request);
+
+    /**
+     * 创建 sessions 个会话
+     */
+    void addSessions(int sessions);
+
+    /**
+     * 清理超出 limit 的最旧会话，最多 batch 个，返回清理的数量
+     */
+    long reapSessions(int limit, int batch);
+
+    /**
+     * 调度 rows 个数据行，每 delaySeconds 秒刷新一次
+     */
+    void scheduleRows(int rows, int delaySeconds);
+
+    /**
+     * 以 nowMillis 作为当前时间执行一次数据行缓存，返回刷新的行数
+     */
+    int refreshRows(long nowMillis, int batch);
+
+    @Override
+    void close();
+}
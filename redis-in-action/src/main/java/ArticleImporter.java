@@ -0,0 +1,472 @@
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Response;
+
+/**
+ * 批量导入文章，用于回填数据或者导入归档的文章，写入的数据和 {@link Chapter01#postArticle} 相同
+ *
+ * 调用线程从迭代器中读取文章，按 batchSize 分批放入容量为 maxInFlight 的队列；threads 个导入线程各自独占一个连接，
+ * 每批先用一次 incrby article: 预留一段连续的文章 id，再把这一批所有的写入放在一个流水线中发送，每批只需要两次往返。
+ * 队列满时调用线程阻塞，读取的速度不会超过写入的速度，内存中最多只有 maxInFlight + threads 批文章
+ *
+ * 文章可以带有原来的发布时间；已经超过投票截止时间的文章不再记录作者的投票。
+ * 任何一批写入失败时停止导入并抛出异常，已经写入的批次不会回滚
+ *
+ * 命令行的用法见 {@link #main(String[])}
+ *
+ * @author 黄学维
+ */
+public class ArticleImporter {
+
+    /**
+     * 要导入的文章，time 为发布时间（unix 时间，秒），0 表示导入时的当前时间
+     */
+    public static class Article {
+
+        private final String user;
+        private final String title;
+        private final String link;
+        private final long time;
+
+        public Article(String user, String title, String link, long time) {
+            this.user = user;
+            this.title = title;
+            this.link = link;
+            this.time = time;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public String getLink() {
+            return link;
+        }
+
+        public long getTime() {
+            return time;
+        }
+    }
+
+    /**
+     * 文件格式，每行一篇文章：
+     * CSV 为 user,title,link[,time]，字段可以用双引号包围，第一行可以是列名；
+     * JSON lines 为 {"user": ..., "title": ..., "link": ..., "time": ...}，user 也可以写作 poster
+     */
+    public enum Format {
+
+        CSV,
+
+        JSON_LINES;
+
+        /**
+         * 根据扩展名判断文件格式，.csv 为 CSV，其他为 JSON lines
+         */
+        public static Format of(String fileName) {
+            return fileName.toLowerCase(Locale.ROOT).endsWith(".csv") ? CSV : JSON_LINES;
+        }
+    }
+
+    private static final Metrics.Operation IMPORT_BATCH = Metrics.getDefault().operation("articles.import.batch");
+
+    private static final long POLL_MILLIS = 100;
+
+    private final Chapter01 chapter01;
+
+    private final int threads;
+
+    private final int batchSize;
+
+    private final int maxInFlight;
+
+    private final LongAdder imported = new LongAdder();
+
+    private volatile long startNanos;
+
+    private volatile long finishNanos;
+
+    /**
+     * @param threads     导入线程的数量，每个线程占用一个连接，不能超过连接池的上限
+     * @param batchSize   每批的文章数量
+     * @param maxInFlight 已经读取、等待写入的最大批数
+     */
+    public ArticleImporter(Chapter01 chapter01, int threads, int batchSize, int maxInFlight) {
+        this.chapter01 = chapter01;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * 按系统属性创建：-Dimport.threads（默认 4）、-Dimport.batchSize（默认 1000）、-Dimport.inFlight（默认线程数的两倍）
+     */
+    public ArticleImporter(Chapter01 chapter01) {
+        this(chapter01, Integer.getInteger("import.threads", 4), Integer.getInteger("import.batchSize", 1000),
+            Integer.getInteger("import.inFlight", Integer.getInteger("import.threads", 4) * 2));
+    }
+
+    /**
+     * 命令行导入：java ArticleImporter 文件，文件为 - 时从标准输入读取，格式见 {@link Format}
+     *
+     * 导入参数见 {@link #ArticleImporter(Chapter01)}，连接参数和 {@link RedisConnections.Config#fromSystemProperties()} 相同，
+     * 导入期间每秒输出一次进度
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 1) {
+            System.err.println("Usage: java ArticleImporter <articles.csv | articles.jsonl | ->");
+            System.exit(2);
+        }
+        String file = args[0];
+        BufferedReader reader = "-".equals(file)
+            ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+            : Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8);
+        RedisConnections connections = RedisConnections.getDefault();
+        ArticleImporter importer = new ArticleImporter(new Chapter01(connections));
+        ProgressThread progress = importer.new ProgressThread(1000);
+        progress.start();
+        try {
+            importer.importArticles(read(reader, Format.of(file)));
+        } finally {
+            progress.quit();
+            progress.join();
+            reader.close();
+            connections.close();
+        }
+    }
+
+    /**
+     * 逐行读取文章，读取时出现的 IOException 包装为 {@link UncheckedIOException} 抛出
+     */
+    public static Iterator<Article> read(BufferedReader reader, Format format) {
+        return new Iterator<Article>() {
+
+            private int lineNumber;
+
+            /**
+             * 还没有读到第一个非空行，csv 的列名只可能出现在这一行
+             */
+            private boolean first = true;
+
+            private Article next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    String line;
+                    try {
+                        line = reader.readLine();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    if (line == null) {
+                        return false;
+                    }
+                    lineNumber++;
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    try {
+                        next = format == Format.CSV ? parseCsv(line, first) : parseJson(line);
+                        first = false;
+                    } catch (RuntimeException e) {
+                        throw new IllegalArgumentException("Invalid article at line " + lineNumber + ": " + line, e);
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public Article next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Article article = next;
+                next = null;
+                return article;
+            }
+        };
+    }
+
+    /**
+     * 导入所有文章，返回导入的数量
+     */
+    public long importArticles(Iterator<Article> articles) throws InterruptedException {
+        BlockingQueue<List<Article>> queue = new ArrayBlockingQueue<>(maxInFlight);
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        List<ImportThread> workers = new ArrayList<>(threads);
+        long before = imported.sum();
+        startNanos = System.nanoTime();
+        finishNanos = 0;
+        for (int i = 0; i < threads; i++) {
+            ImportThread worker = new ImportThread("article-import-" + i, queue, failure);
+            workers.add(worker);
+            worker.start();
+        }
+        try {
+            List<Article> batch = new ArrayList<>(batchSize);
+            while (failure.get() == null && articles.hasNext()) {
+                batch.add(articles.next());
+                if (batch.size() == batchSize) {
+                    enqueue(queue, batch, failure);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                enqueue(queue, batch, failure);
+            }
+        } finally {
+            // 导入线程写完队列中剩余的批次之后退出
+            for (ImportThread worker : workers) {
+                worker.quit();
+            }
+            for (ImportThread worker : workers) {
+                worker.join();
+            }
+            finishNanos = System.nanoTime();
+            chapter01.articlesChanged();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return imported.sum() - before;
+    }
+
+    /**
+     * 已经写入的文章数量
+     */
+    public long getImported() {
+        return imported.sum();
+    }
+
+    /**
+     * 最近一次导入的平均速度，导入期间为到目前为止的平均速度
+     */
+    public double getArticlesPerSecond() {
+        long start = startNanos;
+        if (start == 0) {
+            return 0;
+        }
+        long finish = finishNanos;
+        long elapsed = (finish != 0 ? finish : System.nanoTime()) - start;
+        return elapsed > 0 ? imported.sum() * 1e9 / elapsed : 0;
+    }
+
+    /**
+     * 队列满时等待，导入线程失败时放弃
+     */
+    private static void enqueue(BlockingQueue<List<Article>> queue, List<Article> batch,
+        AtomicReference<RuntimeException> failure) throws InterruptedException {
+        while (failure.get() == null) {
+            if (queue.offer(batch, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 把一批文章的写入放在一个流水线中发送
+     */
+    private void importBatch(Jedis jedis, AsyncRedis.Batch pipeline, List<Article> batch) {
+        long start = System.nanoTime();
+        long trips = Metrics.roundTrips(jedis);
+        // 预留 id：last - size + 1 到 last
+        long id = jedis.incrBy("article:", batch.size()) - batch.size() + 1;
+        long now = System.currentTimeMillis() / 1000;
+        VoteDedup dedup = chapter01.getVoteDedup();
+        List<Response<?>> responses = new ArrayList<>(batch.size() + 1);
+        Response<Long> last = null;
+        for (Article article : batch) {
+            String articleId = String.valueOf(id++);
+            String key = "article:" + articleId;
+            long time = article.getTime() > 0 ? article.getTime() : now;
+            long expireAt = time + Chapter01.ONE_WEEK_IN_SECONDS;
+            if (expireAt > now) {
+                responses.add(dedup.addVote(pipeline, "voted:" + articleId, article.getUser(), expireAt));
+            }
+            pipeline.hmset(key, Chapter01.articleInfo(article.getUser(), article.getTitle(), article.getLink(), time));
+            pipeline.zadd("score:", time + Chapter01.VOTE_SCORE, key);
+            last = pipeline.zadd("time:", time, key);
+        }
+        responses.add(last);
+        pipeline.sync();
+        // 流水线中的命令出错时抛出异常
+        for (Response<?> response : responses) {
+            response.get();
+        }
+        imported.add(batch.size());
+        IMPORT_BATCH.record(start, jedis, trips);
+    }
+
+    private static Article parseCsv(String line, boolean first) {
+        List<String> fields = new ArrayList<>(4);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    // 引号内的 "" 表示一个双引号
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        if (first && "user".equalsIgnoreCase(fields.get(0).trim())) {
+            // 列名
+            return null;
+        }
+        if (fields.size() < 3 || fields.size() > 4) {
+            throw new IllegalArgumentException("expected user,title,link[,time]");
+        }
+        long time = fields.size() == 4 && !fields.get(3).trim().isEmpty() ? Long.parseLong(fields.get(3).trim()) : 0;
+        return new Article(fields.get(0), fields.get(1), fields.get(2), time);
+    }
+
+    private static Article parseJson(String line) {
+        JsonObject json = new JsonParser().parse(line).getAsJsonObject();
+        JsonElement user = json.has("user") ? json.get("user") : json.get("poster");
+        JsonElement time = json.get("time");
+        if (user == null || !json.has("title") || !json.has("link")) {
+            throw new IllegalArgumentException("expected user, title and link");
+        }
+        return new Article(user.getAsString(), json.get("title").getAsString(), json.get("link").getAsString(),
+            time == null || time.isJsonNull() ? 0 : time.getAsLong());
+    }
+
+    /**
+     * 导入线程，独占一个连接，从队列中取出批次写入，quit() 之后写完队列中剩余的批次再退出
+     */
+    public class ImportThread extends WorkerRuntime.BackgroundWorker {
+
+        private final BlockingQueue<List<Article>> queue;
+
+        private final AtomicReference<RuntimeException> failure;
+
+        private volatile boolean quit;
+
+        private ImportThread(String name, BlockingQueue<List<Article>> queue,
+            AtomicReference<RuntimeException> failure) {
+            super(name, false);
+            this.queue = queue;
+            this.failure = failure;
+        }
+
+        @Override
+        public void quit() {
+            quit = true;
+        }
+
+        @Override
+        protected void work() {
+            RedisConnections connections = chapter01.getConnections();
+            Jedis jedis = null;
+            boolean broken = false;
+            // 同一个连接上的流水线共用脚本的加载状态，第一次执行脚本时发送 eval，之后只发送 evalsha；
+            // 脚本缓存被清空之后 evalsha 返回的 NOSCRIPT 由 AsyncRedis.Batch#sync() 改为 eval 重新发送
+            Set<String> loadedScripts = new HashSet<>();
+            try {
+                // 在 try 中借用连接，借用失败时同样记录为导入失败，读取线程不会一直等待队列
+                jedis = connections.borrow();
+                while (failure.get() == null) {
+                    List<Article> batch = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (batch == null) {
+                        if (quit && queue.isEmpty()) {
+                            return;
+                        }
+                        continue;
+                    }
+                    AsyncRedis.Batch pipeline = new AsyncRedis.Batch(loadedScripts);
+                    pipeline.setClient(jedis.getClient());
+                    importBatch(jedis, pipeline, batch);
+                }
+            } catch (RuntimeException e) {
+                broken = true;
+                failure.compareAndSet(null, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, new IllegalStateException("Import interrupted", e));
+            } finally {
+                if (jedis != null) {
+                    connections.release(jedis, broken);
+                }
+            }
+        }
+    }
+
+    /**
+     * 定期输出导入进度的线程
+     */
+    public class ProgressThread extends WorkerRuntime.BackgroundWorker {
+
+        private final long intervalMillis;
+
+        private volatile boolean quit;
+
+        public ProgressThread(long intervalMillis) {
+            super("import-progress", true);
+            this.intervalMillis = intervalMillis;
+        }
+
+        @Override
+        public void quit() {
+            quit = true;
+            interruptRunner();
+        }
+
+        @Override
+        protected void work() {
+            while (!quit) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    // quit() 或者其他原因中断时输出最后一次后退出
+                    Thread.currentThread().interrupt();
+                    printProgress();
+                    return;
+                }
+                printProgress();
+            }
+        }
+
+        private void printProgress() {
+            System.out.printf("Imported %d articles, %.0f articles/s%n", getImported(), getArticlesPerSecond());
+        }
+    }
+}
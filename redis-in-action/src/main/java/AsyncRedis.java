@@ -0,0 +1,414 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import redis.clients.jedis.Builder;
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * 多路复用的异步 redis 客户端，返回 {@link CompletableFuture}
+ *
+ * 内部有少量通道（lane），每个通道独占一个连接和一个线程：调用方提交的命令进入通道的队列，
+ * 通道线程每次取出队列中积压的所有命令（最多 maxBatchSize 个），作为一个流水线发送并一次读取所有回复，再完成对应的 future。
+ * 因此成千上万个并发请求只占用几个连接，调用方线程也不会阻塞在网络往返上；负载越高，每个流水线合并的命令越多
+ *
+ * 同一个命令函数中排入的多条命令在流水线中是连续的；通道之间不保证顺序。
+ * future 在通道线程上完成，依赖它的回调不要执行阻塞操作，需要阻塞时使用 {@link #supplyBlocking(Supplier)}
+ *
+ * 每个通道的队列是有界的：redis 变慢或者断开时命令不会在内存中无限积压，队列已满时提交的命令立即以
+ * {@link RejectedExecutionException} 失败，调用方需要自己限流或者稍后重试
+ *
+ * 用法：
+ * <pre>
+ *     CompletableFuture&lt;String&gt; user = redis.execute(batch -&gt; batch.hget("login:", token)::get);
+ * </pre>
+ *
+ * @author 黄学维
+ */
+public class AsyncRedis implements AutoCloseable {
+
+    /**
+     * 把命令排入流水线，返回在流水线执行完成后读取结果的函数
+     */
+    public interface Command<T> extends Function<Batch, Supplier<T>> {
+    }
+
+    /**
+     * 通道使用的流水线，在 jedis 流水线的基础上支持执行 {@link LuaScript}
+     *
+     * 服务端的脚本缓存被清空（script flush、重启或者故障转移）之后 evalsha 会返回 NOSCRIPT，
+     * {@link #sync()} 在完成这些命令之前用 eval 在同一个连接上重新发送，调用方不会看到这个错误
+     */
+    public static class Batch extends Pipeline {
+
+        private static final Builder<Object> EVAL_RESULT = new Builder<Object>() {
+            @Override
+            public Object build(Object data) {
+                // 和 Jedis.eval 的转换规则一致，另外允许列表中出现整数和 nil
+                if (data instanceof byte[]) {
+                    return SafeEncoder.encode((byte[]) data);
+                }
+                if (data instanceof List) {
+                    List<?> list = (List<?>) data;
+                    List<Object> result = new ArrayList<>(list.size());
+                    for (Object element : list) {
+                        result.add(element instanceof byte[] ? SafeEncoder.encode((byte[]) element) : element);
+                    }
+                    return result;
+                }
+                return data;
+            }
+        };
+
+        private final Set<String> loadedScripts;
+
+        /**
+         * 这个流水线中以 evalsha 发送的脚本调用，返回 NOSCRIPT 时需要重新发送
+         */
+        private final List<ScriptCall> scriptCalls = new ArrayList<>();
+
+        private Client client;
+
+        /**
+         * @param loadedScripts 已经在这个连接上执行过的脚本，同一个连接上的流水线应该共用
+         */
+        Batch(Set<String> loadedScripts) {
+            this.loadedScripts = loadedScripts;
+        }
+
+        @Override
+        public void setClient(Client client) {
+            super.setClient(client);
+            this.client = client;
+        }
+
+        /**
+         * 执行脚本：这个连接上第一次执行时发送 eval（服务端会顺带缓存脚本），之后只发送 evalsha
+         */
+        public Response<Object> eval(LuaScript script, List<String> keys, List<String> args) {
+            List<byte[]> binaryKeys = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                binaryKeys.add(SafeEncoder.encode(key));
+            }
+            List<byte[]> binaryArgs = new ArrayList<>(args.size());
+            for (String arg : args) {
+                binaryArgs.add(SafeEncoder.encode(arg));
+            }
+            return evalBinary(script, binaryKeys, binaryArgs);
+        }
+
+        /**
+         * 键和参数为二进制的 {@link #eval}，回复的转换规则相同
+         */
+        public Response<Object> evalBinary(LuaScript script, List<byte[]> keys, List<byte[]> args) {
+            byte[] keyCount = SafeEncoder.encode(String.valueOf(keys.size()));
+            byte[][] params = new byte[keys.size() + args.size()][];
+            int i = 0;
+            for (byte[] key : keys) {
+                params[i++] = key;
+            }
+            for (byte[] arg : args) {
+                params[i++] = arg;
+            }
+            if (loadedScripts.add(script.getSha1())) {
+                client.eval(SafeEncoder.encode(script.getSource()), keyCount, params);
+                return getResponse(EVAL_RESULT);
+            }
+            client.evalsha(SafeEncoder.encode(script.getSha1()), keyCount, params);
+            Response<Object> response = getResponse(EVAL_RESULT);
+            scriptCalls.add(new ScriptCall(script, keyCount, params, response));
+            return response;
+        }
+
+        /**
+         * 读取所有回复，并把返回 NOSCRIPT 的 evalsha 改为 eval 重新发送，用 eval 的回复完成对应的结果
+         */
+        @Override
+        public void sync() {
+            super.sync();
+            List<ScriptCall> missing = new ArrayList<>();
+            for (ScriptCall call : scriptCalls) {
+                if (call.isNoScript()) {
+                    missing.add(call);
+                }
+            }
+            scriptCalls.clear();
+            if (missing.isEmpty()) {
+                return;
+            }
+            for (ScriptCall call : missing) {
+                client.eval(SafeEncoder.encode(call.script.getSource()), call.keyCount, call.params);
+            }
+            List<Object> replies = client.getAll();
+            for (int i = 0; i < missing.size(); i++) {
+                missing.get(i).response.set(replies.get(i));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public Response<List<String>> evalForList(LuaScript script, List<String> keys, List<String> args) {
+            return (Response<List<String>>) (Response<?>) eval(script, keys, args);
+        }
+    }
+
+    private static final class ScriptCall {
+
+        private final LuaScript script;
+        private final byte[] keyCount;
+        private final byte[][] params;
+        private final Response<Object> response;
+
+        private ScriptCall(LuaScript script, byte[] keyCount, byte[][] params, Response<Object> response) {
+            this.script = script;
+            this.keyCount = keyCount;
+            this.params = params;
+            this.response = response;
+        }
+
+        private boolean isNoScript() {
+            try {
+                response.get();
+                return false;
+            } catch (JedisDataException e) {
+                // Response.get() 把回复中的错误包装后抛出
+                Throwable error = e.getCause() != null ? e.getCause() : e;
+                return String.valueOf(error.getMessage()).startsWith("NOSCRIPT");
+            }
+        }
+    }
+
+    private static final class Request<T> {
+
+        private final Command<T> command;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private Supplier<T> result;
+
+        private Request(Command<T> command) {
+            this.command = command;
+        }
+
+        private void enqueue(Batch batch) {
+            result = command.apply(batch);
+        }
+
+        /**
+         * 读取结果并完成 future
+         */
+        private void complete() {
+            try {
+                future.complete(result.get());
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private final RedisConnections.Config config;
+
+    private final int maxBatchSize;
+
+    private final int maxQueuedCommands;
+
+    private final Lane[] lanes;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "async-redis-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ExecutorService blockingExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "async-redis-blocking");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile boolean closed;
+
+    /**
+     * @param lanes        通道（连接）数量
+     * @param maxBatchSize 每个流水线最多包含的命令数，每个通道最多积压 64 个流水线的命令
+     */
+    public AsyncRedis(RedisConnections.Config config, int lanes, int maxBatchSize) {
+        this(config, lanes, maxBatchSize, maxBatchSize * 64);
+    }
+
+    /**
+     * @param lanes             通道（连接）数量
+     * @param maxBatchSize      每个流水线最多包含的命令数
+     * @param maxQueuedCommands 每个通道的队列中最多积压的命令数，超过时提交的命令立即失败
+     */
+    public AsyncRedis(RedisConnections.Config config, int lanes, int maxBatchSize, int maxQueuedCommands) {
+        this.config = config;
+        this.maxBatchSize = maxBatchSize;
+        this.maxQueuedCommands = maxQueuedCommands;
+        this.lanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++) {
+            this.lanes[i] = new Lane(i);
+            this.lanes[i].start();
+        }
+    }
+
+    /**
+     * 提交命令，命令会和其他并发提交的命令合并到同一个流水线中发送；通道的队列已满时返回的 future 以
+     * {@link RejectedExecutionException} 失败
+     */
+    public <T> CompletableFuture<T> execute(Command<T> command) {
+        Request<T> request = new Request<>(command);
+        if (closed) {
+            request.future.completeExceptionally(new IllegalStateException("AsyncRedis is closed"));
+            return request.future;
+        }
+        if (!lanes[Math.floorMod(next.getAndIncrement(), lanes.length)].queue.offer(request)) {
+            request.future.completeExceptionally(
+                new RejectedExecutionException("Too many queued commands (" + maxQueuedCommands + " per lane)"));
+        }
+        return request.future;
+    }
+
+    public CompletableFuture<Object> eval(LuaScript script, List<String> keys, List<String> args) {
+        return execute(batch -> batch.eval(script, keys, args)::get);
+    }
+
+    public CompletableFuture<List<String>> evalForList(LuaScript script, List<String> keys, List<String> args) {
+        return execute(batch -> batch.evalForList(script, keys, args)::get);
+    }
+
+    /**
+     * 延迟执行，用于异步地等待后重试
+     */
+    public <T> CompletableFuture<T> delay(long millis, Supplier<CompletableFuture<T>> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        scheduler.schedule(() -> task.get().whenComplete((value, error) -> {
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else {
+                future.complete(value);
+            }
+        }), millis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    /**
+     * 执行无法避免阻塞的操作（例如生成页面的回调函数），不占用通道线程
+     */
+    public <T> CompletableFuture<T> supplyBlocking(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, blockingExecutor);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Lane lane : lanes) {
+            lane.interrupt();
+        }
+        scheduler.shutdownNow();
+        blockingExecutor.shutdown();
+    }
+
+    private class Lane extends Thread {
+
+        private final LinkedBlockingQueue<Request<?>> queue = new LinkedBlockingQueue<>(maxQueuedCommands);
+
+        /**
+         * 当前连接上已经执行过 eval 的脚本
+         */
+        private final Set<String> loadedScripts = new HashSet<>();
+
+        private Jedis jedis;
+
+        private Lane(int index) {
+            super("async-redis-lane-" + index);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<Request<?>> requests = new ArrayList<>(maxBatchSize);
+            while (!closed) {
+                try {
+                    requests.add(queue.take());
+                } catch (InterruptedException e) {
+                    break;
+                }
+                queue.drainTo(requests, maxBatchSize - 1);
+                send(requests);
+                requests.clear();
+            }
+            for (Request<?> request; (request = queue.poll()) != null; ) {
+                request.future.completeExceptionally(new IllegalStateException("AsyncRedis is closed"));
+            }
+            disconnect();
+        }
+
+        private void send(List<Request<?>> requests) {
+            List<Request<?>> queued = new ArrayList<>(requests.size());
+            try {
+                if (jedis == null) {
+                    jedis = connect();
+                }
+                Batch batch = new Batch(loadedScripts);
+                batch.setClient(jedis.getClient());
+                for (Request<?> request : requests) {
+                    try {
+                        request.enqueue(batch);
+                        queued.add(request);
+                    } catch (RuntimeException e) {
+                        // 命令函数本身出错，没有命令被排入流水线
+                        request.future.completeExceptionally(e);
+                    }
+                }
+                batch.sync();
+            } catch (RuntimeException e) {
+                // 连接出错，这一批命令可能已经部分执行，不重试，由调用方决定如何处理
+                for (Request<?> request : requests) {
+                    request.future.completeExceptionally(e);
+                }
+                disconnect();
+                return;
+            }
+            for (Request<?> request : queued) {
+                request.complete();
+            }
+        }
+
+        private Jedis connect() {
+            Jedis connection = RedisConnections.newJedis(config.getHost(), config.getPort(),
+                config.getTimeoutMillis());
+            if (config.getPassword() != null) {
+                connection.auth(config.getPassword());
+            }
+            connection.select(config.getDatabase());
+            loadedScripts.clear();
+            return connection;
+        }
+
+        private void disconnect() {
+            try {
+                if (jedis != null) {
+                    jedis.disconnect();
+                }
+            } catch (RuntimeException e) {
+                // ignore
+            }
+            jedis = null;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * 数据行的二进制编码，默认的 {@link RowCodec}
+ *
+ * 格式：1 个字节的版本号，之后按字段顺序写入 id、data（varint 长度 + UTF-8 字节）和 time（zigzag varint）；
+ * 编码后超过 compressionThreshold 字节时用 LZ4 压缩，版本号为 {@link #FORMAT_LZ4}，之后是 varint 的原始长度和压缩后的数据
+ *
+ * 字符串直接按 UTF-8 写入结果数组，不经过中间的 byte[]；和 JSON 相比省去了字段名、引号和十进制的时间戳
+ *
+ * @author 黄学维
+ */
+public class BinaryRowCodec implements RowCodec {
+
+    public static final byte FORMAT_BINARY = 1;
+
+    public static final byte FORMAT_LZ4 = 2;
+
+    private static final LZ4Factory LZ4 = LZ4Factory.fastestInstance();
+
+    private static final JsonRowCodec JSON = new JsonRowCodec();
+
+    static final BinaryRowCodec DEFAULT = new BinaryRowCodec();
+
+    private final int compressionThreshold;
+
+    private final LZ4Compressor compressor = LZ4.fastCompressor();
+
+    private final LZ4FastDecompressor decompressor = LZ4.fastDecompressor();
+
+    public BinaryRowCodec() {
+        this(256);
+    }
+
+    /**
+     * @param compressionThreshold 编码后达到这个字节数才尝试压缩，Integer.MAX_VALUE 表示不压缩
+     */
+    public BinaryRowCodec(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    @Override
+    public byte[] encode(Chapter02.Inventory row) {
+        String id = row.getId();
+        String data = row.getData();
+        int idLength = utf8Length(id);
+        int dataLength = utf8Length(data);
+        long time = (row.getTime() << 1) ^ (row.getTime() >> 63);
+        int bodyLength = varintSize(idLength) + idLength + varintSize(dataLength) + dataLength + varintSize(time);
+
+        byte[] out = new byte[1 + bodyLength];
+        out[0] = FORMAT_BINARY;
+        int position = writeVarint(out, 1, idLength);
+        position = writeUtf8(out, position, id);
+        position = writeVarint(out, position, dataLength);
+        position = writeUtf8(out, position, data);
+        writeVarint(out, position, time);
+
+        return bodyLength >= compressionThreshold ? compress(out, bodyLength) : out;
+    }
+
+    @Override
+    public Chapter02.Inventory decode(byte[] value) {
+        if (value.length == 0) {
+            throw new IllegalArgumentException("Empty row value");
+        }
+        switch (value[0]) {
+            case '{':
+                // 升级之前写入的 JSON
+                return JSON.decode(value);
+            case FORMAT_BINARY:
+                return read(value, 1);
+            case FORMAT_LZ4:
+                Reader header = new Reader(value, 1);
+                int bodyLength = (int) header.varint();
+                byte[] body = new byte[bodyLength];
+                decompressor.decompress(value, header.position, body, 0, bodyLength);
+                return read(body, 0);
+            default:
+                throw new IllegalArgumentException("Unknown row format: " + value[0]);
+        }
+    }
+
+    private byte[] compress(byte[] encoded, int bodyLength) {
+        int maxLength = compressor.maxCompressedLength(bodyLength);
+        byte[] out = new byte[1 + varintSize(bodyLength) + maxLength];
+        out[0] = FORMAT_LZ4;
+        int position = writeVarint(out, 1, bodyLength);
+        position += compressor.compress(encoded, 1, bodyLength, out, position, maxLength);
+        // 压缩没有变小时保存原始编码
+        return position < encoded.length ? Arrays.copyOf(out, position) : encoded;
+    }
+
+    private static Chapter02.Inventory read(byte[] value, int offset) {
+        Reader reader = new Reader(value, offset);
+        String id = reader.string();
+        String data = reader.string();
+        long time = reader.varint();
+        return new Chapter02.Inventory(id, data, (time >>> 1) ^ -(time & 1));
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                // 不成对的代理字符和 String.getBytes(UTF_8) 一样编码为 '?'
+                length += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return length;
+    }
+
+    private static int writeUtf8(byte[] out, int position, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out[position++] = (byte) c;
+            } else if (c < 0x800) {
+                out[position++] = (byte) (0xC0 | (c >> 6));
+                out[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                out[position++] = (byte) (0xF0 | (codePoint >> 18));
+                out[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                out[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                out[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                out[position++] = '?';
+            } else {
+                out[position++] = (byte) (0xE0 | (c >> 12));
+                out[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return position;
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int writeVarint(byte[] out, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[position++] = (byte) value;
+        return position;
+    }
+
+    private static final class Reader {
+
+        private final byte[] buffer;
+
+        private int position;
+
+        private Reader(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        private long varint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        private String string() {
+            int length = (int) varint();
+            String s = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return s;
+        }
+    }
+}
@@ -1,12 +1,27 @@
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import org.javatuples.Pair;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.ZParams;
-import redis.clients.jedis.ZParams.Aggregate;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
 
 /**
  * 文章信息的散列 hash, hash-key = article:92617, sub-key_1 = title value_1 = Go to statement considered harmful ...
@@ -16,6 +31,7 @@ import redis.clients.jedis.ZParams.Aggregate;
  * 根据评分排序文章的有序集合 zset, key = score: member_1 = article:100408, score_1 = 1332174713.47 ...
  *
  * 每篇文章记录的生成一个记录已投票用户的名单的集合 set, set-key = voted:100408 item_1 = user:234487  ...
+ * （迁移之后可以改为记录用户 id 的紧凑结构，参见 {@link VoteDedup}）
  *
  * @author 黄学维
  */
@@ -24,25 +40,405 @@ public class Chapter01 {
     /**
      * 1 day = 86400 seconds
      */
-    private static final int ONE_WEEK_IN_SECONDS = 7 * 86400;
+    static final int ONE_WEEK_IN_SECONDS = 7 * 86400;
 
     /**
      * 86400 seconds / 200 = 432
      */
-    private static final int VOTE_SCORE = 432;
+    static final int VOTE_SCORE = 432;
 
     /**
      * 文章每页的大小值
      */
-    private static final int ARTICLES_PER_PAGE = 25;
+    static final int ARTICLES_PER_PAGE = 25;
+
+    /**
+     * 记录哪些群组排名（score:群组名）处于增量维护模式的集合
+     */
+    private static final String INCREMENTAL_RANKINGS = "ranking:incremental:";
+
+    /**
+     * 每次切换增量维护模式时自增的版本号，不存在时视为 0
+     *
+     * 脚本不能用 {@link #INCREMENTAL_RANKINGS} 中的成员拼接键名，所以调用方把本地缓存的增量排名列表通过 KEYS 传入，
+     * 同时传入列表对应的版本号；版本号和 redis 中的不一致时脚本返回 {@link #STALE_RANKINGS}，调用方重新读取列表后重试
+     */
+    private static final String INCREMENTAL_RANKINGS_VERSION = "ranking:incremental:version";
+
+    private static final String STALE_RANKINGS = "stale";
+
+    /**
+     * 切换为增量维护时每批补全的 groups:id 反向集合数量
+     */
+    private static final int INDEX_GROUP_BATCH = 1000;
+
+    /**
+     * 文章列表页常用的字段
+     */
+    public static final String[] SUMMARY_FIELDS = {"title", "link", "votes"};
+
+    private static final Metrics.Operation ARTICLE_VOTES = Metrics.getDefault().operation("articles.vote");
+
+    private static final Metrics.Operation POST_ARTICLE = Metrics.getDefault().operation("articles.post");
+
+    private static final Metrics.Operation GET_ARTICLES = Metrics.getDefault().operation("articles.page");
+
+    private static final Metrics.Operation GET_GROUP_ARTICLES = Metrics.getDefault().operation("articles.groupPage");
+
+    /**
+     * 游标中的分值：redis 返回的有序集合分值的格式，整数、小数、科学计数法或者 inf、-inf
+     */
+    private static final Pattern CURSOR_SCORE =
+        Pattern.compile("[-+]?(\\d+(\\.\\d*)?|\\.\\d+)([eE][-+]?\\d+)?|[-+]?inf", Pattern.CASE_INSENSITIVE);
+
+    private static final Metrics.Operation GET_ARTICLE_PAGE = Metrics.getDefault().operation("articles.cursorPage");
+
+    private static final Metrics.Operation FLUSH_VOTES = Metrics.getDefault().operation("articles.flushVotes");
+
+    private static final LatencyRecorder FLUSHED_ARTICLES =
+        Metrics.getDefault().distribution("articles.flushVotes.articles");
+
+    /**
+     * 按游标分页：从上一页最后一篇文章 (score, member) 之后继续读取，代价和页数无关
+     *
+     * KEYS[1] 为排序用的有序集合；ARGV[1] 为每页数量，ARGV[2]、ARGV[3] 为游标的分值和成员，第一页时为空字符串
+     *
+     * 游标成员的分值没有变化时从它的排名之后继续，分值相同的成员也不会遗漏；
+     * 成员已经被删除或者分值变化时，游标 (score, member) 仍然是有序集合中的一个位置：分值和游标相同的成员按成员逆序排列，
+     * 在其中二分查找第一个排在游标成员之后的成员并从那里继续，同样不会遗漏或者重复
+     *
+     * 脚本只访问 KEYS[1]，文章的散列由客户端之后通过流水线读取
+     *
+     * 返回扁平列表：最后一篇文章的分值和 id（没有文章时为两个空字符串），之后为这一页的文章 id
+     */
+    private static final LuaScript PAGE_AFTER_SCRIPT = new LuaScript("pageAfter", ""
+        + "local count = tonumber(ARGV[1])\n"
+        + "local entries\n"
+        + "if ARGV[2] == '' then\n"
+        + "    entries = redis.call('zrevrange', KEYS[1], 0, count - 1, 'withscores')\n"
+        + "else\n"
+        + "    local score = redis.call('zscore', KEYS[1], ARGV[3])\n"
+        + "    if score and tonumber(score) == tonumber(ARGV[2]) then\n"
+        + "        local rank = redis.call('zrevrank', KEYS[1], ARGV[3])\n"
+        + "        entries = redis.call('zrevrange', KEYS[1], rank + 1, rank + count, 'withscores')\n"
+        + "    else\n"
+        + "        local lo = redis.call('zcount', KEYS[1], '(' .. ARGV[2], '+inf')\n"
+        + "        local hi = lo + redis.call('zcount', KEYS[1], ARGV[2], ARGV[2])\n"
+        + "        while lo < hi do\n"
+        + "            local mid = math.floor((lo + hi) / 2)\n"
+        + "            if redis.call('zrevrange', KEYS[1], mid, mid)[1] > ARGV[3] then\n"
+        + "                lo = mid + 1\n"
+        + "            else\n"
+        + "                hi = mid\n"
+        + "            end\n"
+        + "        end\n"
+        + "        entries = redis.call('zrevrange', KEYS[1], lo, lo + count - 1, 'withscores')\n"
+        + "    end\n"
+        + "end\n"
+        + "local result = {'', ''}\n"
+        + "if #entries > 0 then\n"
+        + "    result[1] = entries[#entries]\n"
+        + "    result[2] = entries[#entries - 1]\n"
+        + "end\n"
+        + "for i = 1, #entries, 2 do\n"
+        + "    result[#result + 1] = entries[i]\n"
+        + "end\n"
+        + "return result\n");
+
+    /**
+     * 脚本公用的函数：文章评分变化时，同步更新文章所在的、处于增量维护模式的群组排名
+     *
+     * groupRankings 在每次脚本调用时执行一次，把群组名 ARGV[a] 到 ARGV[a + count - 1] 映射到对应的排名 KEYS[k] 到 KEYS[k + count - 1]；
+     * incrementGroups 遍历记录文章所属群组的集合 groups:id，只更新其中处于增量维护模式的排名，
+     * 每次投票的开销和文章所属的群组数量成正比，而不是和增量维护的排名数量成正比；没有增量维护的排名时不读取 groups:id
+     */
+    private static final String INCREMENT_GROUPS_LUA = ""
+        + "local function groupRankings(k, a, count)\n"
+        + "    local rankings = {}\n"
+        + "    for j = 0, count - 1 do\n"
+        + "        rankings[ARGV[a + j]] = KEYS[k + j]\n"
+        + "    end\n"
+        + "    return rankings\n"
+        + "end\n"
+        + "local function incrementGroups(rankings, groups, article, score)\n"
+        + "    if next(rankings) == nil then\n"
+        + "        return\n"
+        + "    end\n"
+        + "    for _, group in ipairs(redis.call('smembers', groups)) do\n"
+        + "        local ranking = rankings[group]\n"
+        + "        if ranking then\n"
+        + "            redis.call('zincrby', ranking, score, article)\n"
+        + "        end\n"
+        + "    end\n"
+        + "end\n";
+
+    /**
+     * 在服务端原子地完成投票：截止时间检查、去重以及评分和票数的自增，一批投票只需要一次网络往返
+     *
+     * KEYS[1] 为 time:，KEYS[2] 为 score:，KEYS[3] 为 {@link #INCREMENTAL_RANKINGS_VERSION}，
+     * KEYS[4]、KEYS[5] 为 {@link VoteDedup} 的用户 id 散列和计数器，KEYS[6..m+5] 为 m 个增量维护的群组排名，
+     * 之后每六个键为一次投票的 {@link VoteDedup#keys(String)}（voted:id 和它的三个派生键）、article:id 和 groups:id；
+     * ARGV[1] 为投票截止时间，ARGV[2] 为每票的分值，ARGV[3] 为去重方式，ARGV[4] 为增量排名列表的版本号，ARGV[5] 为 m，
+     * ARGV[6..m+5] 为增量排名对应的群组名，之后依次为每次投票的用户
+     *
+     * 返回每次投票的结果："1" 投票成功，"0" 重复投票，"-1" 文章不存在或者已经超过投票截止时间；
+     * 版本号不一致时不做任何修改，返回 {{@link #STALE_RANKINGS}}
+     */
+    static final LuaScript VOTE_SCRIPT = new LuaScript("vote", INCREMENT_GROUPS_LUA + VoteDedup.LUA
+        + "if (redis.call('get', KEYS[3]) or '0') ~= ARGV[4] then\n"
+        + "    return {'" + STALE_RANKINGS + "'}\n"
+        + "end\n"
+        + "local m = tonumber(ARGV[5])\n"
+        + "local rankings = groupRankings(6, 6, m)\n"
+        + "local result = {}\n"
+        + "for n = 1, #ARGV - m - 5 do\n"
+        + "    local k = m + n * 6\n"
+        + "    local article = KEYS[k + 4]\n"
+        + "    local posted = redis.call('zscore', KEYS[1], article)\n"
+        + "    if not posted or tonumber(posted) < tonumber(ARGV[1]) then\n"
+        + "        result[n] = '-1'\n"
+        + "    elseif addVote(k, KEYS[4], KEYS[5], ARGV[3], ARGV[m + 5 + n],\n"
+        + "        math.floor(tonumber(posted)) + " + ONE_WEEK_IN_SECONDS + ") == 1 then\n"
+        + "        redis.call('zincrby', KEYS[2], ARGV[2], article)\n"
+        + "        redis.call('hincrby', article, 'votes', 1)\n"
+        + "        incrementGroups(rankings, KEYS[k + 5], article, ARGV[2])\n"
+        + "        result[n] = '1'\n"
+        + "    else\n"
+        + "        result[n] = '0'\n"
+        + "    end\n"
+        + "end\n"
+        + "return result\n");
+
+    /**
+     * 把 {@link VoteAggregatorThread} 合并后的票数增量写入 score:、文章散列和增量维护的群组排名
+     *
+     * KEYS[1] 为 score:，KEYS[2] 为 {@link #INCREMENTAL_RANKINGS_VERSION}，KEYS[3..m+2] 为 m 个增量维护的群组排名，
+     * 之后每两个键为一篇文章的 article:id 和 groups:id；
+     * ARGV[1] 为每票的分值，ARGV[2] 为增量排名列表的版本号，ARGV[3] 为 m，ARGV[4..m+3] 为增量排名对应的群组名，
+     * 之后依次为每篇文章的票数增量
+     *
+     * 返回写入的文章数量，版本号不一致时不做任何修改，返回 -1
+     */
+    private static final LuaScript APPLY_VOTE_DELTAS_SCRIPT = new LuaScript("applyVoteDeltas", INCREMENT_GROUPS_LUA
+        + "if (redis.call('get', KEYS[2]) or '0') ~= ARGV[2] then\n"
+        + "    return -1\n"
+        + "end\n"
+        + "local m = tonumber(ARGV[3])\n"
+        + "local rankings = groupRankings(3, 4, m)\n"
+        + "for n = 1, #ARGV - m - 3 do\n"
+        + "    local article = KEYS[m + n * 2 + 1]\n"
+        + "    local delta = ARGV[m + 3 + n]\n"
+        + "    local score = tonumber(delta) * tonumber(ARGV[1])\n"
+        + "    redis.call('zincrby', KEYS[1], score, article)\n"
+        + "    redis.call('hincrby', article, 'votes', delta)\n"
+        + "    incrementGroups(rankings, KEYS[m + n * 2 + 2], article, score)\n"
+        + "end\n"
+        + "return #ARGV - m - 3\n");
+
+    /**
+     * 调整文章所属的群组，同时维护反向的 groups:id 集合以及增量维护的群组排名
+     *
+     * KEYS[1] 为 article:id，KEYS[2] 为 groups:id，KEYS[3] 为 score:，KEYS[4] 为 {@link #INCREMENTAL_RANKINGS}，
+     * 之后每两个键为一个群组的 group:群组名 和 score:群组名，顺序和 ARGV 中的群组相同；
+     * ARGV[1] 为要加入的群组数量 n，ARGV[2..n+1] 为要加入的群组，之后为要退出的群组
+     */
+    private static final LuaScript ADD_GROUPS_SCRIPT = new LuaScript("addGroups", ""
+        + "local added = tonumber(ARGV[1])\n"
+        + "for i = 2, #ARGV do\n"
+        + "    local group = ARGV[i]\n"
+        + "    local members = KEYS[i * 2 + 1]\n"
+        + "    local ranking = KEYS[i * 2 + 2]\n"
+        + "    local incremental = redis.call('sismember', KEYS[4], ranking) == 1\n"
+        + "    if i <= added + 1 then\n"
+        + "        redis.call('sadd', members, KEYS[1])\n"
+        + "        redis.call('sadd', KEYS[2], group)\n"
+        + "        local score = incremental and redis.call('zscore', KEYS[3], KEYS[1])\n"
+        + "        if score then\n"
+        + "            redis.call('zadd', ranking, score, KEYS[1])\n"
+        + "        end\n"
+        + "    else\n"
+        + "        redis.call('srem', members, KEYS[1])\n"
+        + "        redis.call('srem', KEYS[2], group)\n"
+        + "        if incremental then\n"
+        + "            redis.call('zrem', ranking, KEYS[1])\n"
+        + "        end\n"
+        + "    end\n"
+        + "end\n"
+        + "return #ARGV - 1\n");
+
+    /**
+     * 检查群组排名是否需要重建
+     *
+     * KEYS[1] 为群组排名，KEYS[2] 为表示排名仍然新鲜的标记键，KEYS[3] 为重建锁，KEYS[4] 为 {@link #INCREMENTAL_RANKINGS}；
+     * ARGV[1] 为本次加锁的令牌，ARGV[2] 为锁的过期毫秒数
+     *
+     * 返回 0 直接读取（新鲜、增量维护或者有旧数据可用），1 由调用方重建，2 没有数据且其他调用方正在重建
+     */
+    private static final LuaScript GROUP_RANKING_CHECK_SCRIPT = new LuaScript("groupRankingCheck", ""
+        + "if redis.call('exists', KEYS[2]) == 1 or redis.call('sismember', KEYS[4], KEYS[1]) == 1 then\n"
+        + "    return 0\n"
+        + "end\n"
+        + "if redis.call('setnx', KEYS[3], ARGV[1]) == 1 then\n"
+        + "    redis.call('pexpire', KEYS[3], ARGV[2])\n"
+        + "    return 1\n"
+        + "end\n"
+        + "if redis.call('exists', KEYS[1]) == 1 then\n"
+        + "    return 0\n"
+        + "end\n"
+        + "return 2\n");
+
+    /**
+     * 重建群组排名，并设置新鲜标记、释放重建锁
+     *
+     * KEYS[1] 为群组排名，KEYS[2] 为新鲜标记，KEYS[3] 为重建锁，KEYS[4] 为 group:群组名，KEYS[5] 为排序用的有序集合；
+     * ARGV[1] 为加锁的令牌，ARGV[2] 为排名保持新鲜的秒数，ARGV[3] 为排名（含过期后的旧数据）保留的秒数
+     */
+    private static final LuaScript GROUP_RANKING_REBUILD_SCRIPT = new LuaScript("groupRankingRebuild", ""
+        + "local size = redis.call('zinterstore', KEYS[1], 2, KEYS[4], KEYS[5], 'AGGREGATE', 'MAX')\n"
+        + "if size > 0 then\n"
+        + "    redis.call('expire', KEYS[1], ARGV[3])\n"
+        + "end\n"
+        + "redis.call('setex', KEYS[2], ARGV[2], '1')\n"
+        + "if redis.call('get', KEYS[3]) == ARGV[1] then\n"
+        + "    redis.call('del', KEYS[3])\n"
+        + "end\n"
+        + "return size\n");
+
+    /**
+     * 补全一批文章的 groups:id 反向集合，只处理仍然在群组中的文章
+     *
+     * KEYS[1] 为 group:群组名，KEYS[2..] 为每篇文章的 groups:id；ARGV[1] 为群组名，ARGV[2..] 为对应的 article:id
+     */
+    private static final LuaScript INDEX_GROUP_SCRIPT = new LuaScript("indexGroup", ""
+        + "for i = 2, #ARGV do\n"
+        + "    if redis.call('sismember', KEYS[1], ARGV[i]) == 1 then\n"
+        + "        redis.call('sadd', KEYS[i], ARGV[1])\n"
+        + "    end\n"
+        + "end\n"
+        + "return #ARGV - 1\n");
+
+    /**
+     * 把群组排名切换为增量维护：重建一次并去掉过期时间，调用之前群组内文章的 groups:id 反向集合已经由
+     * {@link #INDEX_GROUP_SCRIPT} 补全
+     *
+     * KEYS[1] 为群组排名，KEYS[2] 为 group:群组名，KEYS[3] 为 score:，KEYS[4] 为 {@link #INCREMENTAL_RANKINGS}，
+     * KEYS[5] 为新鲜标记，KEYS[6] 为 {@link #INCREMENTAL_RANKINGS_VERSION}
+     */
+    private static final LuaScript ENABLE_INCREMENTAL_SCRIPT = new LuaScript("enableIncremental", ""
+        + "local size = redis.call('zinterstore', KEYS[1], 2, KEYS[2], KEYS[3], 'AGGREGATE', 'MAX')\n"
+        + "redis.call('persist', KEYS[1])\n"
+        + "if redis.call('sadd', KEYS[4], KEYS[1]) == 1 then\n"
+        + "    redis.call('incr', KEYS[6])\n"
+        + "end\n"
+        + "redis.call('del', KEYS[5])\n"
+        + "return size\n");
+
+    /**
+     * 只在服务端完成投票的截止时间检查和去重，评分和票数的自增交给 {@link VoteAggregatorThread} 合并后写入
+     *
+     * KEYS[1] 为 time:，KEYS[2..5] 为 {@link VoteDedup#keys(String)}，KEYS[6]、KEYS[7] 为 {@link VoteDedup} 的用户 id 散列和计数器；
+     * ARGV[1] 为投票截止时间，ARGV[2] 为 article:id，ARGV[3] 为用户，ARGV[4] 为去重方式
+     *
+     * 返回 1 投票成功，0 重复投票，-1 文章不存在或者已经超过投票截止时间
+     */
+    private static final LuaScript VOTE_DEDUP_SCRIPT = new LuaScript("voteDedup", VoteDedup.LUA
+        + "local posted = redis.call('zscore', KEYS[1], ARGV[2])\n"
+        + "if not posted or tonumber(posted) < tonumber(ARGV[1]) then\n"
+        + "    return -1\n"
+        + "end\n"
+        + "return addVote(2, KEYS[6], KEYS[7], ARGV[4], ARGV[3],\n"
+        + "    math.floor(tonumber(posted)) + " + ONE_WEEK_IN_SECONDS + ")\n");
+
+    /**
+     * 本地缓存的增量维护的群组排名列表，见 {@link #INCREMENTAL_RANKINGS_VERSION}
+     */
+    private static final class IncrementalRankings {
+
+        /**
+         * 还没有读取过，第一次投票之前先读取，不会发送一次必然返回 stale 的脚本
+         */
+        private static final IncrementalRankings UNKNOWN = new IncrementalRankings("", Collections.emptyList());
+
+        private final String version;
+
+        private final List<String> groups;
+
+        private IncrementalRankings(String version, List<String> groups) {
+            this.version = version;
+            this.groups = groups;
+        }
+
+        private static IncrementalRankings of(String version, Set<String> rankings) {
+            List<String> groups = new ArrayList<>(rankings.size());
+            for (String ranking : rankings) {
+                if (ranking.startsWith("score:")) {
+                    groups.add(ranking.substring("score:".length()));
+                }
+            }
+            return new IncrementalRankings(version != null ? version : "0", groups);
+        }
+
+        private int size() {
+            return groups.size();
+        }
+
+        /**
+         * 依次加入每个排名 score:群组名
+         */
+        private void addKeys(List<String> keys) {
+            for (String group : groups) {
+                keys.add("score:" + group);
+            }
+        }
+
+        /**
+         * 依次加入版本号、排名的数量和每个排名的群组名
+         */
+        private void addArgs(List<String> args) {
+            args.add(version);
+            args.add(String.valueOf(groups.size()));
+            args.addAll(groups);
+        }
+    }
+
+    private volatile IncrementalRankings incrementalRankings = IncrementalRankings.UNKNOWN;
+
+    private final GroupRanking groupRanking = new GroupRanking(60, 600, 5000);
+
+    /**
+     * 投票的去重方式，默认和书中一样使用集合 voted:id，参见 {@link VoteDedup}
+     */
+    private volatile VoteDedup voteDedup = new VoteDedup(VoteDedup.Mode.SET, "voter-ids:", "voter-id:");
+
+    /**
+     * score: 前几页的本地快照，为 null 时（默认）每次都读取 redis
+     */
+    private volatile FrontPageCache frontPageCache;
+
+    private final RedisConnections connections;
+
+    public Chapter01() {
+        this(RedisConnections.getDefault());
+    }
+
+    public Chapter01(RedisConnections connections) {
+        this.connections = connections;
+    }
 
     public static void main(String[] args) {
         new Chapter01().run();
     }
 
     public void run() {
-        Jedis conn = new Jedis("localhost");
-        conn.select(15);
+        Jedis conn = connections.borrow();
+        try {
+            run(conn);
+        } finally {
+            connections.release(conn, false);
+        }
+    }
+
+    public void run(Jedis conn) {
 
         String articleId = postArticle(
             conn, "username", "A title", "http://www.google.com");
@@ -59,141 +455,999 @@ public class Chapter01 {
         String votes = conn.hget("article:" + articleId, "votes");
         System.out.println("We voted for the article, it now has votes: " + votes);
         assert Integer.parseInt(votes) > 1;
+        setVoteDedup(VoteDedup.Mode.BITMAP);
+        System.out.println("Switching voters to dense ids, migrated votes from old per-article sets: "
+            + migrateVoteSets(conn));
+        System.out.println("A second vote is still rejected: "
+            + articleVotes(conn, Collections.singletonList(Pair.with("other_user", "article:" + articleId))));
 
         System.out.println("The currently highest-scoring articles are:");
         List<Map<String, String>> articles = getArticles(conn, 1);
         printArticles(articles);
         assert articles.size() >= 1;
 
+        System.out.println("Walking the same ranking with a cursor instead of page numbers:");
+        ArticlePage page = getArticlePage(conn, "score:", null);
+        assert page.getArticles().get(0).get("id").equals(articles.get(0).get("id"));
+        System.out.println("  first page has " + page.getArticles().size() + " articles, next cursor: "
+            + page.getNextCursor());
+
+        System.out.println("The async variant returns the same page without blocking:");
+        assert getArticlesAsync(1).join().size() == articles.size();
+
+        System.out.println("With the front page cache enabled, the first pages are served from memory:");
+        FrontPageCache cache = enableFrontPageCache(4, 5000);
+        FrontPageCache.RefreshThread refresher = cache.new RefreshThread(connections, 1000, 10);
+        refresher.start();
+        List<Map<String, String>> cached = getArticles(conn, 1);
+        assert cached.size() == articles.size();
+        assert cached == getArticles(1);
+        articleVote(conn, "another_user", "article:" + articleId);
+        try {
+            Thread.sleep(200);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("A local vote refreshed the snapshot: " + cache);
+        Map<String, String> voted = getArticles(1).stream()
+            .filter(article -> ("article:" + articleId).equals(article.get("id"))).findFirst().orElse(null);
+        assert voted != null && Integer.parseInt(voted.get("votes")) == Integer.parseInt(votes) + 1;
+        refresher.quit();
+        disableFrontPageCache();
+
+        System.out.println("The same page with only the summary fields:");
+        articles = getArticleFields(conn, 1, SUMMARY_FIELDS);
+        printArticles(articles);
+        assert articles.size() >= 1;
+
         addGroups(conn, articleId, new String[]{"new-group"}, null);
         System.out.println("We added the article to a new group, other articles include:");
         articles = getGroupArticles(conn, "new-group", 1);
         printArticles(articles);
         assert articles.size() >= 1;
+
+        System.out.println("Split into 4 hash-tagged shards, a page is merged from the top of every shard:");
+        ShardedArticles sharded = new ShardedArticles(new ShardedConnections(Collections.singletonList(connections), 4));
+        String shardedId = sharded.postArticle("username", "A sharded title", "http://www.google.com");
+        List<Boolean> accepted = sharded.articleVotes(
+            Collections.singletonList(Pair.with("other_user", sharded.articleKey(shardedId))));
+        assert accepted.get(0);
+        articles = sharded.getArticles(1);
+        printArticles(articles.subList(0, 1));
+        assert articles.size() >= 1;
+    }
+
+    public void articleVote(String user, String article) {
+        connections.execute(jedis -> {
+            articleVote(jedis, user, article);
+            return null;
+        });
     }
 
     /**
      * 文章投票
      */
     public void articleVote(Jedis jedis, String user, String article) {
+        articleVotes(jedis, Collections.singletonList(Pair.with(user, article)));
+    }
+
+    public List<Boolean> articleVotes(List<Pair<String, String>> votes) {
+        return connections.execute(jedis -> articleVotes(jedis, votes));
+    }
+
+    /**
+     * 批量投票，每个投票为 (用户, article:id)，整批投票只需要一次网络往返
+     *
+     * 返回每个投票是否生效；重复投票、文章不存在或者已经超过投票截止时间的投票返回 false
+     */
+    public List<Boolean> articleVotes(Jedis jedis, List<Pair<String, String>> votes) {
+        if (votes.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        long start = System.nanoTime();
+        long trips = Metrics.roundTrips(jedis);
+        try {
+            // 检查是否还可以对文章进行投票，如果用户是第一次为这篇文章投票，那么增加这篇文章的投票数量和评分
+            IncrementalRankings rankings = currentIncrementalRankings(jedis);
+            while (true) {
+                Pair<List<String>, List<String>> params = voteScriptParams(votes, rankings);
+                List<String> reply = VOTE_SCRIPT.evalForList(jedis, params.getValue0(), params.getValue1());
+                if (!isStale(reply)) {
+                    return toAccepted(reply);
+                }
+                rankings = reloadIncrementalRankings(jedis);
+            }
+        } finally {
+            ARTICLE_VOTES.record(start, jedis, trips);
+        }
+    }
+
+    /**
+     * {@link #articleVotes(Jedis, List)} 的异步版本
+     */
+    public CompletableFuture<List<Boolean>> articleVotesAsync(List<Pair<String, String>> votes) {
+        if (votes.isEmpty()) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+        AsyncRedis async = connections.async();
+        IncrementalRankings rankings = incrementalRankings;
+        return rankings != IncrementalRankings.UNKNOWN ? articleVotesAsync(async, votes, rankings)
+            : reloadIncrementalRankingsAsync(async).thenCompose(current -> articleVotesAsync(async, votes, current));
+    }
+
+    private CompletableFuture<List<Boolean>> articleVotesAsync(AsyncRedis async, List<Pair<String, String>> votes,
+        IncrementalRankings rankings) {
+        Pair<List<String>, List<String>> params = voteScriptParams(votes, rankings);
+        return async.evalForList(VOTE_SCRIPT, params.getValue0(), params.getValue1()).thenCompose(reply -> isStale(reply)
+            ? reloadIncrementalRankingsAsync(async).thenCompose(current -> articleVotesAsync(async, votes, current))
+            : CompletableFuture.completedFuture(toAccepted(reply)));
+    }
+
+    /**
+     * 异步投票，返回投票是否生效
+     */
+    public CompletableFuture<Boolean> articleVoteAsync(String user, String article) {
+        return articleVotesAsync(Collections.singletonList(Pair.with(user, article))).thenApply(accepted -> accepted.get(0));
+    }
+
+    /**
+     * 生成 {@link #VOTE_SCRIPT} 的键和参数
+     */
+    private Pair<List<String>, List<String>> voteScriptParams(List<Pair<String, String>> votes,
+        IncrementalRankings rankings) {
+        VoteDedup dedup = voteDedup;
         // 计算文章的投票截止时间
+        // 虽然使用散列也可以获取文章的发布时间，但有序集合返回的文章发布时间为浮点数，可以不进行转换直接使用
         long cutoff = (System.currentTimeMillis() / 1000) - ONE_WEEK_IN_SECONDS;
 
-        // 检查是否还可以对文章进行投票
-        // 虽然使用散列也可以获取文章的发布时间，但有序集合返回的文章发布时间为浮点数，可以不进行转换直接使用
-        if (jedis.zscore("time:", article) < cutoff) {
-            return;
+        List<String> keys = new ArrayList<>(votes.size() * (VoteDedup.KEY_COUNT + 2) + rankings.size() + 5);
+        keys.add("time:");
+        keys.add("score:");
+        keys.add(INCREMENTAL_RANKINGS_VERSION);
+        keys.add(dedup.getVotersKey());
+        keys.add(dedup.getLastVoterIdKey());
+        rankings.addKeys(keys);
+        List<String> args = new ArrayList<>(votes.size() + rankings.size() + 5);
+        args.add(String.valueOf(cutoff));
+        args.add(String.valueOf(VOTE_SCORE));
+        args.add(dedup.getMode().getArg());
+        rankings.addArgs(args);
+        for (Pair<String, String> vote : votes) {
+            String article = vote.getValue1();
+            // 从 article:id 标识符（identifier）里面取出文章的 id
+            String articleId = article.substring(article.indexOf(':') + 1);
+            keys.addAll(VoteDedup.keys("voted:" + articleId));
+            keys.add(article);
+            keys.add("groups:" + articleId);
+            args.add(vote.getValue0());
+        }
+        return Pair.with(keys, args);
+    }
+
+    private static boolean isStale(List<String> reply) {
+        return reply.size() == 1 && STALE_RANKINGS.equals(reply.get(0));
+    }
+
+    /**
+     * 本地缓存的增量维护的群组排名列表，还没有读取过时先读取
+     */
+    private IncrementalRankings currentIncrementalRankings(Jedis jedis) {
+        IncrementalRankings rankings = incrementalRankings;
+        return rankings != IncrementalRankings.UNKNOWN ? rankings : reloadIncrementalRankings(jedis);
+    }
+
+    /**
+     * 重新读取增量维护的群组排名列表
+     *
+     * 先读版本号再读列表：两次读取之间有切换时，得到的是旧的版本号和新的列表，脚本会再返回一次 stale，
+     * 不会出现新的版本号配旧的列表
+     */
+    private IncrementalRankings reloadIncrementalRankings(Jedis jedis) {
+        Pipeline pipeline = jedis.pipelined();
+        Response<String> version = pipeline.get(INCREMENTAL_RANKINGS_VERSION);
+        Response<Set<String>> rankings = pipeline.smembers(INCREMENTAL_RANKINGS);
+        pipeline.sync();
+        IncrementalRankings current = IncrementalRankings.of(version.get(), rankings.get());
+        incrementalRankings = current;
+        return current;
+    }
+
+    private CompletableFuture<IncrementalRankings> reloadIncrementalRankingsAsync(AsyncRedis async) {
+        return async.execute(batch -> {
+            Response<String> version = batch.get(INCREMENTAL_RANKINGS_VERSION);
+            Response<Set<String>> rankings = batch.smembers(INCREMENTAL_RANKINGS);
+            return () -> {
+                IncrementalRankings current = IncrementalRankings.of(version.get(), rankings.get());
+                incrementalRankings = current;
+                return current;
+            };
+        });
+    }
+
+    private List<Boolean> toAccepted(List<String> reply) {
+        List<Boolean> accepted = new ArrayList<>(reply.size());
+        boolean changed = false;
+        for (String result : reply) {
+            accepted.add("1".equals(result));
+            changed |= "1".equals(result);
+        }
+        if (changed) {
+            articlesChanged();
+        }
+        return accepted;
+    }
+
+    /**
+     * 评分或者文章发生变化，通知本地的首页快照提前刷新
+     */
+    void articlesChanged() {
+        FrontPageCache cache = frontPageCache;
+        if (cache != null) {
+            cache.markDirty();
+        }
+    }
+
+    /**
+     * 投票的写回（write-behind）聚合线程
+     *
+     * 投票的去重（{@link VoteDedup}）仍然同步完成，而热点文章上大量的 zincrby score: 和 hincrby votes 先在本地的
+     * {@link CoalescingCounters} 中按文章合并，再按时间间隔、最大滞后时间或者待写入的文章数量触发，在一次往返内批量写入 redis
+     */
+    public class VoteAggregatorThread extends WorkerRuntime.BackgroundWorker {
+
+        private final long flushIntervalMillis;
+
+        private final long maxStalenessMillis;
+
+        private final int maxPendingArticles;
+
+        private final CoalescingCounters pending = new CoalescingCounters();
+
+        /**
+         * 已经写入 redis 的票数
+         */
+        private final LongAdder flushedVotes = new LongAdder();
+
+        /**
+         * 写入时实际执行的 zincrby/hincrby 组数，每篇文章每次写入一组
+         */
+        private final LongAdder flushedArticles = new LongAdder();
+
+        private final boolean flushOnShutdown;
+
+        private volatile boolean quit;
+
+        private long lastFlushMillis = System.currentTimeMillis();
+
+        /**
+         * @param flushIntervalMillis 定期写入的时间间隔
+         * @param maxStalenessMillis  增量在本地最多停留的时间，超过后立即写入
+         * @param maxPendingArticles  待写入的文章数量达到该值时立即写入
+         * @param flushOnShutdown     是否在线程运行期间注册 jvm 关闭钩子，在进程退出前写入剩余的增量
+         */
+        public VoteAggregatorThread(long flushIntervalMillis, long maxStalenessMillis, int maxPendingArticles,
+            boolean flushOnShutdown) {
+            super("vote-aggregator", false);
+            this.flushIntervalMillis = flushIntervalMillis;
+            this.maxStalenessMillis = maxStalenessMillis;
+            this.maxPendingArticles = maxPendingArticles;
+            this.flushOnShutdown = flushOnShutdown;
+        }
+
+        /**
+         * 投票，返回投票是否生效；生效的投票只在本地累加，稍后由本线程批量写入
+         */
+        public boolean vote(Jedis jedis, String user, String article) {
+            long cutoff = (System.currentTimeMillis() / 1000) - ONE_WEEK_IN_SECONDS;
+            String articleId = article.substring(article.indexOf(':') + 1);
+
+            VoteDedup dedup = voteDedup;
+            List<String> keys = new ArrayList<>(VoteDedup.KEY_COUNT + 3);
+            keys.add("time:");
+            keys.addAll(VoteDedup.keys("voted:" + articleId));
+            keys.add(dedup.getVotersKey());
+            keys.add(dedup.getLastVoterIdKey());
+            Object result = VOTE_DEDUP_SCRIPT.eval(jedis, keys,
+                Arrays.asList(String.valueOf(cutoff), article, user, dedup.getMode().getArg()));
+            if (!Long.valueOf(1).equals(result)) {
+                return false;
+            }
+
+            // 空闲时线程休眠到下一个定期写入的时间，第一个增量需要唤醒它按最大滞后时间重新计算休眠时间
+            if (pending.increment(article) || pending.size() >= maxPendingArticles) {
+                wake();
+            }
+            return true;
+        }
+
+        @Override
+        public void quit() {
+            quit = true;
+            wake();
+        }
+
+        /**
+         * 已经写入 redis 的票数
+         */
+        public long getFlushedVotes() {
+            return flushedVotes.sum();
+        }
+
+        /**
+         * 被合并掉的自增次数，即逐票写入时需要的自增组数减去实际执行的自增组数
+         */
+        public long getCoalescedIncrements() {
+            return flushedVotes.sum() - flushedArticles.sum();
+        }
+
+        @Override
+        protected void work() {
+            Thread shutdownHook = null;
+            if (flushOnShutdown) {
+                shutdownHook = new Thread(this::quitAndWait, "vote-aggregator-shutdown");
+                Runtime.getRuntime().addShutdownHook(shutdownHook);
+            }
+            try {
+                aggregate();
+            } finally {
+                if (shutdownHook != null) {
+                    try {
+                        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                    } catch (IllegalStateException e) {
+                        // 进程正在退出，关闭钩子正在等待本线程结束
+                    }
+                }
+            }
+        }
+
+        private void aggregate() {
+            while (!quit) {
+                long now = System.currentTimeMillis();
+                long deadline = lastFlushMillis + flushIntervalMillis;
+                long oldest = pending.oldestPendingMillis();
+                if (oldest != 0) {
+                    deadline = Math.min(deadline, oldest + maxStalenessMillis);
+                }
+
+                if (now >= deadline || pending.size() >= maxPendingArticles) {
+                    flush();
+                    continue;
+                }
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(deadline - now));
+            }
+            // 退出前写入剩余的增量
+            flush();
         }
 
-        // 从 article:id 标识符（identifier）里面取出文章的 id
-        String articleId = article.substring(article.indexOf(':') + 1);
+        private void flush() {
+            lastFlushMillis = System.currentTimeMillis();
+            Map<String, Long> deltas = pending.drain();
+            if (deltas.isEmpty()) {
+                return;
+            }
 
-        // 判断用户是否已投票
-        // 如果用户是第一次为这篇文章投票，那么增加这篇文章的投票数量和评分
-        if (jedis.sadd("voted:" + articleId, user) == 1) {
-            // 使用有序集合的自增命令 zincrby，为 article:id 增加 432 分
-            jedis.zincrby("score:", VOTE_SCORE, article);
-            // 使用 hash 的自增命令 hincrby，增加文章信息的散列中的 votes 字段的值
-            jedis.hincrBy(article, "votes", 1);
+            long start = System.nanoTime();
+            try {
+                long votes = 0;
+                for (long delta : deltas.values()) {
+                    votes += delta;
+                }
+                // 所有文章的增量（以及增量维护的群组排名）在一次往返内原子地写入
+                connections.execute(jedis -> {
+                    long trips = Metrics.roundTrips(jedis);
+                    applyDeltas(jedis, deltas);
+                    FLUSH_VOTES.record(start, jedis, trips);
+                    return null;
+                });
+                articlesChanged();
+                flushedVotes.add(votes);
+                flushedArticles.add(deltas.size());
+                FLUSHED_ARTICLES.record(deltas.size());
+            } catch (RuntimeException e) {
+                // 写入失败时把增量放回去，等待下一次写入
+                for (Map.Entry<String, Long> entry : deltas.entrySet()) {
+                    pending.add(entry.getKey(), entry.getValue());
+                }
+                System.err.println("Failed to flush " + deltas.size() + " aggregated votes: " + e);
+            }
+        }
+
+        private void applyDeltas(Jedis jedis, Map<String, Long> deltas) {
+            IncrementalRankings rankings = currentIncrementalRankings(jedis);
+            while (true) {
+                List<String> keys = new ArrayList<>(deltas.size() * 2 + rankings.size() + 2);
+                keys.add("score:");
+                keys.add(INCREMENTAL_RANKINGS_VERSION);
+                rankings.addKeys(keys);
+                List<String> args = new ArrayList<>(deltas.size() + rankings.size() + 3);
+                args.add(String.valueOf(VOTE_SCORE));
+                rankings.addArgs(args);
+                for (Map.Entry<String, Long> entry : deltas.entrySet()) {
+                    String article = entry.getKey();
+                    keys.add(article);
+                    keys.add("groups:" + article.substring(article.indexOf(':') + 1));
+                    args.add(String.valueOf(entry.getValue()));
+                }
+                if ((Long) APPLY_VOTE_DELTAS_SCRIPT.eval(jedis, keys, args) >= 0) {
+                    return;
+                }
+                rankings = reloadIncrementalRankings(jedis);
+            }
+        }
+
+        private void quitAndWait() {
+            quit();
+            try {
+                join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
+    public String postArticle(String user, String title, String link) {
+        return connections.execute(jedis -> postArticle(jedis, user, title, link));
+    }
+
     /**
      * 文章发布
      */
     public String postArticle(Jedis jedis, String user, String title, String link) {
+        long start = System.nanoTime();
+        long trips = Metrics.roundTrips(jedis);
         // 生成一个新的文章 id
         // 使用一个 redis 的计数器（counter）执行 incr 命令完成
         String articleId = String.valueOf(jedis.incr("article:"));
 
-        // 生成文章记录已投票用户的名单的集合的 set-key
-        String voted = "voted:" + articleId;
-        // 将发布文章的用户添加到文章的已投票用户名单里面
-        jedis.sadd(voted, user);
-        // 设置这个名单的过期时间为一周
-        jedis.expire(voted, ONE_WEEK_IN_SECONDS);
-
         // 文章发布时间
         long now = System.currentTimeMillis() / 1000;
+        // 将发布文章的用户记录为已投票，去重记录在一周之后过期
+        voteDedup.addVote(jedis, "voted:" + articleId, user, now + ONE_WEEK_IN_SECONDS);
+
         // hash-key
         String article = "article:" + articleId;
-        // 文章信息 map
-        Map<String, String> articleInfo = new HashMap<>(8);
-        articleInfo.put("title", title);
-        articleInfo.put("link", link);
-        articleInfo.put("poster", user);
-        articleInfo.put("time", String.valueOf(now));
-        articleInfo.put("votes", "1");
         // 将文章信息存储到一个散列里面
-        jedis.hmset(article, articleInfo);
+        jedis.hmset(article, articleInfo(user, title, link, now));
 
         // 根据评分排序的有序集合里面
         jedis.zadd("score:", now + VOTE_SCORE, article);
         // 将文章添加到根据发布时间排序的有序集合
         jedis.zadd("time:", now, article);
+        articlesChanged();
 
+        POST_ARTICLE.record(start, jedis, trips);
         return articleId;
     }
 
-    public List<Map<String, String>> getArticles(Jedis jedis, int page) {
-        return getArticles(jedis, page, "score:");
+    /**
+     * 异步发布文章：取得文章 id 之后，其余的写入在同一个流水线中发送
+     */
+    public CompletableFuture<String> postArticleAsync(String user, String title, String link) {
+        AsyncRedis async = connections.async();
+        return async.execute(batch -> batch.incr("article:")::get).thenCompose(id -> {
+            String articleId = String.valueOf(id);
+            String voted = "voted:" + articleId;
+            String article = "article:" + articleId;
+            long now = System.currentTimeMillis() / 1000;
+            return async.execute(batch -> {
+                voteDedup.addVote(batch, voted, user, now + ONE_WEEK_IN_SECONDS);
+                batch.hmset(article, articleInfo(user, title, link, now));
+                batch.zadd("score:", now + VOTE_SCORE, article);
+                Response<Long> added = batch.zadd("time:", now, article);
+                return () -> {
+                    // 读取最后一条命令的结果，流水线中的命令出错时抛出异常
+                    added.get();
+                    articlesChanged();
+                    return articleId;
+                };
+            });
+        });
     }
 
-    private List<Map<String, String>> getArticles(Jedis jedis, int page, String soredSetKey) {
-        // 设置获取文章的起始索引和结束索引
-        int star = (page - 1) * ARTICLES_PER_PAGE;
-        int end = star + ARTICLES_PER_PAGE - 1;
+    RedisConnections getConnections() {
+        return connections;
+    }
 
-        // 获取多个文章 id
-        Set<String> articleIds = jedis.zrevrange(soredSetKey, star, end);
+    VoteDedup getVoteDedup() {
+        return voteDedup;
+    }
 
-        List<Map<String, String>> articles = new ArrayList<>();
+    /**
+     * 更换投票的去重方式，参见 {@link VoteDedup}；从 SET 切换到 BITMAP 之后应该调用 {@link #migrateVoteSets}
+     */
+    public void setVoteDedup(VoteDedup.Mode mode) {
+        voteDedup = new VoteDedup(mode, "voter-ids:", "voter-id:");
+    }
 
-        // 根据文章 id 获取文章的详细信息
-        for (String articleId : articleIds) {
-            Map<String, String> articleInfo = jedis.hgetAll(articleId);
-            articleInfo.put("id", articleId);
-            articles.add(articleInfo);
+    /**
+     * 把仍在投票期内的文章的旧集合 voted:id 转换为当前的去重方式，返回迁移的投票数量
+     *
+     * 迁移可以在投票的同时进行；超过投票截止时间的文章的集合会自然过期，不需要迁移
+     */
+    public long migrateVoteSets(Jedis jedis) {
+        VoteDedup dedup = voteDedup;
+        if (dedup.getMode() == VoteDedup.Mode.SET) {
+            return 0;
         }
+        long cutoff = (System.currentTimeMillis() / 1000) - ONE_WEEK_IN_SECONDS;
+        long migrated = 0;
+        for (Tuple tuple : jedis.zrangeByScoreWithScores("time:", cutoff, Double.POSITIVE_INFINITY)) {
+            String article = tuple.getElement();
+            String voted = "voted:" + article.substring(article.indexOf(':') + 1);
+            migrated += dedup.migrate(jedis, voted, (long) tuple.getScore() + ONE_WEEK_IN_SECONDS);
+        }
+        return migrated;
+    }
 
+    /**
+     * 为投票非常多的文章开启布隆过滤器，参见 {@link VoteDedup#enableBloomFilter}；文章不存在时返回 0
+     */
+    public long enableVoteBloomFilter(Jedis jedis, String articleId, long expectedVotes, double falsePositiveRate) {
+        Double posted = jedis.zscore("time:", "article:" + articleId);
+        if (posted == null) {
+            return 0;
+        }
+        return voteDedup.enableBloomFilter(jedis, "voted:" + articleId, expectedVotes, falsePositiveRate,
+            posted.longValue() + ONE_WEEK_IN_SECONDS);
+    }
+
+    /**
+     * 文章信息 map
+     */
+    static Map<String, String> articleInfo(String user, String title, String link, long now) {
+        Map<String, String> articleInfo = new HashMap<>(8);
+        articleInfo.put("title", title);
+        articleInfo.put("link", link);
+        articleInfo.put("poster", user);
+        articleInfo.put("time", String.valueOf(now));
+        articleInfo.put("votes", "1");
+        return articleInfo;
+    }
+
+    public List<Map<String, String>> getArticles(int page) {
+        long start = System.nanoTime();
+        // 首页快照命中时不需要借出连接
+        FrontPageCache cache = frontPageCache;
+        List<Map<String, String>> articles = cache != null ? cache.getPage(page) : null;
+        if (articles != null) {
+            GET_ARTICLES.record(start);
+            return articles;
+        }
+        return connections.execute(jedis -> getArticles(jedis, page));
+    }
+
+    /**
+     * 开启首页快照时，快照范围内的分页从内存返回，返回的列表和文章信息不可修改
+     */
+    public List<Map<String, String>> getArticles(Jedis jedis, int page) {
+        long start = System.nanoTime();
+        long trips = Metrics.roundTrips(jedis);
+        FrontPageCache cache = frontPageCache;
+        List<Map<String, String>> articles = cache != null ? cache.getPage(jedis, page) : null;
+        if (articles == null) {
+            articles = getArticles(jedis, page, "score:");
+        }
+        GET_ARTICLES.record(start, jedis, trips);
         return articles;
     }
 
+    /**
+     * 只读取文章的部分字段（例如 {@link #SUMMARY_FIELDS}），使用 hmget 代替 hgetAll
+     */
+    public List<Map<String, String>> getArticleFields(Jedis jedis, int page, String... fields) {
+        return getArticles(jedis, page, "score:", fields);
+    }
+
+    private List<Map<String, String>> getArticles(Jedis jedis, int page, String soredSetKey, String... fields) {
+        // 先获取这一页的文章 id，再通过一个流水线读取所有文章的散列，整个分页只需要两次网络往返；
+        // 文章的键由客户端给出，而不是在脚本中读取，分片或者代理环境下也能路由
+        int start = (page - 1) * ARTICLES_PER_PAGE;
+        Set<String> ids = jedis.zrevrange(soredSetKey, start, start + ARTICLES_PER_PAGE - 1);
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Pipeline pipeline = jedis.pipelined();
+        Supplier<List<Map<String, String>>> articles = readArticles(pipeline, ids, fields);
+        pipeline.sync();
+        return articles.get();
+    }
+
+    /**
+     * {@link #getArticles(Jedis, int)} 的异步版本
+     */
+    public CompletableFuture<List<Map<String, String>>> getArticlesAsync(int page) {
+        FrontPageCache cache = frontPageCache;
+        List<Map<String, String>> articles = cache != null ? cache.getPage(page) : null;
+        return articles != null ? CompletableFuture.completedFuture(articles) : getArticlesAsync(page, "score:");
+    }
+
+    /**
+     * 在本地缓存 score: 的前 pages 页，参见 {@link FrontPageCache}
+     *
+     * 快照按需加载；需要定期刷新时启动返回对象的 {@link FrontPageCache.RefreshThread}
+     *
+     * @param maxStaleMillis 快照超过这个时间没有刷新时不再使用
+     */
+    public FrontPageCache enableFrontPageCache(int pages, long maxStaleMillis) {
+        FrontPageCache cache = new FrontPageCache("score:", pages, ARTICLES_PER_PAGE, maxStaleMillis);
+        frontPageCache = cache;
+        Metrics.getDefault().gauge("articles.frontPage.hits", cache::getHits);
+        Metrics.getDefault().gauge("articles.frontPage.misses", cache::getMisses);
+        return cache;
+    }
+
+    public void disableFrontPageCache() {
+        frontPageCache = null;
+    }
+
+    private CompletableFuture<List<Map<String, String>>> getArticlesAsync(int page, String sortedSetKey,
+        String... fields) {
+        int start = (page - 1) * ARTICLES_PER_PAGE;
+        AsyncRedis async = connections.async();
+        return async.execute(batch -> batch.zrevrange(sortedSetKey, start, start + ARTICLES_PER_PAGE - 1)::get)
+            .thenCompose(ids -> ids.isEmpty()
+                ? CompletableFuture.completedFuture(new ArrayList<>())
+                : async.execute(batch -> readArticles(batch, ids, fields)));
+    }
+
+    /**
+     * 把读取一批文章散列的命令排入流水线，流水线执行之后由返回的函数组装文章信息；
+     * 有 fields 时使用 hmget 只读取这些字段，不存在的字段不会放入结果
+     */
+    private static Supplier<List<Map<String, String>>> readArticles(Pipeline pipeline, Collection<String> ids,
+        String... fields) {
+        List<String> articleIds = new ArrayList<>(ids);
+        List<Response<Map<String, String>>> hashes = new ArrayList<>(articleIds.size());
+        List<Response<List<String>>> values = new ArrayList<>(articleIds.size());
+        for (String id : articleIds) {
+            if (fields.length == 0) {
+                hashes.add(pipeline.hgetAll(id));
+            } else {
+                values.add(pipeline.hmget(id, fields));
+            }
+        }
+        return () -> {
+            List<Map<String, String>> articles = new ArrayList<>(articleIds.size());
+            for (int i = 0; i < articleIds.size(); i++) {
+                Map<String, String> articleInfo;
+                if (fields.length == 0) {
+                    articleInfo = new HashMap<>(hashes.get(i).get());
+                } else {
+                    articleInfo = new HashMap<>(Math.max(8, fields.length * 2));
+                    List<String> fieldValues = values.get(i).get();
+                    for (int j = 0; j < fields.length; j++) {
+                        if (fieldValues.get(j) != null) {
+                            articleInfo.put(fields[j], fieldValues.get(j));
+                        }
+                    }
+                }
+                articleInfo.put("id", articleIds.get(i));
+                articles.add(articleInfo);
+            }
+            return articles;
+        };
+    }
+
+    /**
+     * 按游标读取的一页文章
+     */
+    public static class ArticlePage {
+
+        private final List<Map<String, String>> articles;
+
+        private final String nextCursor;
+
+        public ArticlePage(List<Map<String, String>> articles, String nextCursor) {
+            this.articles = articles;
+            this.nextCursor = nextCursor;
+        }
+
+        public List<Map<String, String>> getArticles() {
+            return articles;
+        }
+
+        /**
+         * 读取下一页的游标，已经是最后一页时为 null
+         */
+        public String getNextCursor() {
+            return nextCursor;
+        }
+    }
+
+    public ArticlePage getArticlePage(String sortedSetKey, String cursor) {
+        return connections.execute(jedis -> getArticlePage(jedis, sortedSetKey, cursor));
+    }
+
+    /**
+     * 按游标分页读取文章，适合需要一直向后翻页的场景（例如爬虫）
+     *
+     * 页码分页每次都要从头跳过前面所有的文章，并且翻页期间评分变化会导致文章重复或者遗漏；
+     * 游标记录了上一页最后一篇文章的分值和 id，每一页的代价都是 O(log N + 每页数量)，和翻到第几页无关
+     *
+     * @param sortedSetKey score:、time: 或者群组排名 score:群组名（群组排名使用 {@link #getGroupArticlePage}）
+     * @param cursor       上一页返回的 {@link ArticlePage#getNextCursor()}，第一页为 null
+     */
+    public ArticlePage getArticlePage(Jedis jedis, String sortedSetKey, String cursor, String... fields) {
+        long start = System.nanoTime();
+        long trips = Metrics.roundTrips(jedis);
+        try {
+            // 游标之后的一页在脚本中确定，文章的散列再通过一个流水线读取，共两次网络往返
+            List<String> reply = PAGE_AFTER_SCRIPT.evalForList(jedis, Collections.singletonList(sortedSetKey),
+                pageAfterArgs(cursor));
+            List<String> ids = reply.subList(2, reply.size());
+            if (ids.isEmpty()) {
+                return toArticlePage(reply, new ArrayList<>());
+            }
+            Pipeline pipeline = jedis.pipelined();
+            Supplier<List<Map<String, String>>> articles = readArticles(pipeline, ids, fields);
+            pipeline.sync();
+            return toArticlePage(reply, articles.get());
+        } finally {
+            GET_ARTICLE_PAGE.record(start, jedis, trips);
+        }
+    }
+
+    /**
+     * {@link #getArticlePage(Jedis, String, String, String...)} 的异步版本
+     */
+    public CompletableFuture<ArticlePage> getArticlePageAsync(String sortedSetKey, String cursor) {
+        AsyncRedis async = connections.async();
+        return async.evalForList(PAGE_AFTER_SCRIPT, Collections.singletonList(sortedSetKey), pageAfterArgs(cursor))
+            .thenCompose(reply -> {
+                List<String> ids = reply.subList(2, reply.size());
+                return ids.isEmpty()
+                    ? CompletableFuture.completedFuture(toArticlePage(reply, new ArrayList<>()))
+                    : async.execute(batch -> readArticles(batch, ids))
+                        .thenApply(articles -> toArticlePage(reply, articles));
+            });
+    }
+
+    private static List<String> pageAfterArgs(String cursor) {
+        List<String> args = new ArrayList<>(3);
+        args.add(String.valueOf(ARTICLES_PER_PAGE));
+        if (cursor == null) {
+            args.add("");
+            args.add("");
+        } else {
+            // 游标为 base64 编码的 "分值\n成员"
+            String decoded;
+            try {
+                decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+            }
+            int separator = decoded.indexOf('\n');
+            // 分值在发送之前检查，否则伪造或者损坏的游标会在脚本中变成 redis 的 "not a float" 错误
+            if (separator <= 0 || !CURSOR_SCORE.matcher(decoded.substring(0, separator)).matches()) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            args.add(decoded.substring(0, separator));
+            args.add(decoded.substring(separator + 1));
+        }
+        return args;
+    }
+
+    private static ArticlePage toArticlePage(List<String> reply, List<Map<String, String>> articles) {
+        String nextCursor = null;
+        // 不满一页说明已经到了最后
+        if (articles.size() == ARTICLES_PER_PAGE) {
+            nextCursor = Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((reply.get(0) + '\n' + reply.get(1)).getBytes(StandardCharsets.UTF_8));
+        }
+        return new ArticlePage(articles, nextCursor);
+    }
+
+    public void addGroups(String articleId, String[] toAdd, String[] toRemove) {
+        connections.execute(jedis -> {
+            addGroups(jedis, articleId, toAdd, toRemove);
+            return null;
+        });
+    }
+
     public void addGroups(Jedis jedis, String articleId, String[] toAdd, String[] toRemove) {
         // 构建存储文章信息的键名
         String article = "article:" + articleId;
 
-        // 将文章添加到它所属的群组里面
-        for (String group : toAdd) {
-            jedis.sadd("group:" + group, article);
-        }
-
-        // 从群组里面移除文章
+        // 将文章添加到它所属的群组里面，并从要退出的群组里面移除文章；
+        // 同时维护文章所属群组的反向集合 groups:id，以及处于增量维护模式的群组排名
+        List<String> args = new ArrayList<>();
+        args.add(String.valueOf(toAdd.length));
+        Collections.addAll(args, toAdd);
         if (null != toRemove && 0 < toRemove.length) {
-            for (String group : toRemove) {
-                jedis.srem("group:" + group, article);
-            }
+            Collections.addAll(args, toRemove);
+        }
+        List<String> keys = new ArrayList<>(args.size() * 2 + 2);
+        Collections.addAll(keys, article, "groups:" + articleId, "score:", INCREMENTAL_RANKINGS);
+        for (String group : args.subList(1, args.size())) {
+            keys.add("group:" + group);
+            keys.add("score:" + group);
         }
+        ADD_GROUPS_SCRIPT.eval(jedis, keys, args);
+    }
+
+    public List<Map<String, String>> getGroupArticles(String group, int page) {
+        return connections.execute(jedis -> getGroupArticles(jedis, group, page));
     }
 
     public List<Map<String, String>> getGroupArticles(Jedis jedis, String group, int page) {
-        return getGroupArticles(jedis, group, page, "score:");
+        long start = System.nanoTime();
+        long trips = Metrics.roundTrips(jedis);
+        try {
+            return getGroupArticles(jedis, group, page, "score:");
+        } finally {
+            GET_GROUP_ARTICLES.record(start, jedis, trips);
+        }
     }
 
-    private List<Map<String, String>> getGroupArticles(Jedis jedis, String group, int page, String sortedSetKey) {
+    /**
+     * 群组文章列表的部分字段版本，参见 {@link #getArticleFields(Jedis, int, String...)}
+     */
+    public List<Map<String, String>> getGroupArticleFields(Jedis jedis, String group, int page, String... fields) {
+        return getGroupArticles(jedis, group, page, "score:", fields);
+    }
+
+    private List<Map<String, String>> getGroupArticles(Jedis jedis, String group, int page, String sortedSetKey,
+        String... fields) {
         // 为每个群组的每种排列顺序都创建一个键
         String key = sortedSetKey + group;
 
-        // 检查是否有已缓存的排序结果，如果没有的话就现在进行排序
-        if (!jedis.exists(key)) {
-            ZParams zParams = new ZParams().aggregate(Aggregate.MAX);
-            jedis.zinterstore(key, zParams, "group:" + group, sortedSetKey);
-            // 让 redis 在 60 秒之后自动删除这个有序集合
-            jedis.expire(key, 60);
-        }
+        // 检查是否有可用的排序结果，排名过期时只有一个调用方负责重建，其他调用方继续读取旧的排名
+        groupRanking.ensure(jedis, group, sortedSetKey);
 
         // 调用之前定义的 getArticles() 函数，来进行分页并获取文章数据
-        return getArticles(jedis, page, key);
+        return getArticles(jedis, page, key, fields);
+    }
+
+    public ArticlePage getGroupArticlePage(String group, String cursor) {
+        return connections.execute(jedis -> getGroupArticlePage(jedis, group, cursor));
+    }
+
+    /**
+     * 按游标分页读取群组文章，参见 {@link #getArticlePage(Jedis, String, String, String...)}；
+     * 游标只记录分值和文章 id，翻页期间排名被重建也可以继续使用
+     */
+    public ArticlePage getGroupArticlePage(Jedis jedis, String group, String cursor, String... fields) {
+        groupRanking.ensure(jedis, group, "score:");
+        return getArticlePage(jedis, "score:" + group, cursor, fields);
+    }
+
+    /**
+     * {@link #getGroupArticles(Jedis, String, int)} 的异步版本，等待其他调用方重建排名时不占用线程
+     */
+    public CompletableFuture<List<Map<String, String>>> getGroupArticlesAsync(String group, int page) {
+        return groupRanking.ensureAsync(connections.async(), group, "score:")
+            .thenCompose(ignored -> getArticlesAsync(page, "score:" + group));
+    }
+
+    public GroupRanking getGroupRanking() {
+        return groupRanking;
+    }
+
+    /**
+     * 群组排名（score:群组名）的维护
+     *
+     * 默认模式下排名由 zinterstore 生成并缓存：排名在 freshSeconds 内视为新鲜；过期后第一个读取者通过一个短期的锁键获得重建权，
+     * 其他读取者在重建期间继续读取旧的排名（旧排名最多保留 staleSeconds），只有在完全没有数据时才等待重建完成，
+     * 因此同一时刻只有一个调用方执行 zinterstore，不会出现惊群
+     *
+     * 对于很大、很热的群组，可以调用 {@link #enableIncremental(Jedis, String)} 切换为增量维护：
+     * 投票、{@link #addGroups(Jedis, String, String[], String[])} 会直接更新 score:群组名，排名不再过期，也不再需要重建
+     */
+    public class GroupRanking {
+
+        private final int freshSeconds;
+
+        private final int staleSeconds;
+
+        private final long lockMillis;
+
+        public GroupRanking(int freshSeconds, int staleSeconds, long lockMillis) {
+            this.freshSeconds = freshSeconds;
+            this.staleSeconds = staleSeconds;
+            this.lockMillis = lockMillis;
+        }
+
+        /**
+         * 确保 sortedSetKey + group 有可读取的排名
+         */
+        public void ensure(Jedis jedis, String group, String sortedSetKey) {
+            String key = sortedSetKey + group;
+            List<String> keys = Arrays.asList(key, "fresh:" + key, "lock:" + key, INCREMENTAL_RANKINGS);
+            String token = UUID.randomUUID().toString();
+            List<String> args = Arrays.asList(token, String.valueOf(lockMillis));
+
+            while (true) {
+                long state = (Long) GROUP_RANKING_CHECK_SCRIPT.eval(jedis, keys, args);
+                if (state == 0) {
+                    return;
+                }
+                if (state == 1) {
+                    GROUP_RANKING_REBUILD_SCRIPT.eval(jedis,
+                        Arrays.asList(key, "fresh:" + key, "lock:" + key, "group:" + group, sortedSetKey),
+                        Arrays.asList(token, String.valueOf(freshSeconds), String.valueOf(staleSeconds)));
+                    return;
+                }
+                // 还没有任何排名数据，等待持有锁的调用方完成重建；锁过期后由本调用方接手
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * {@link #ensure(Jedis, String, String)} 的异步版本
+         */
+        public CompletableFuture<Void> ensureAsync(AsyncRedis async, String group, String sortedSetKey) {
+            String key = sortedSetKey + group;
+            List<String> keys = Arrays.asList(key, "fresh:" + key, "lock:" + key, INCREMENTAL_RANKINGS);
+            String token = UUID.randomUUID().toString();
+            List<String> args = Arrays.asList(token, String.valueOf(lockMillis));
+            return ensureAsync(async, group, sortedSetKey, keys, args);
+        }
+
+        private CompletableFuture<Void> ensureAsync(AsyncRedis async, String group, String sortedSetKey,
+            List<String> keys, List<String> args) {
+            String key = keys.get(0);
+            return async.eval(GROUP_RANKING_CHECK_SCRIPT, keys, args).thenCompose(state -> {
+                if ((Long) state == 0) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                if ((Long) state == 1) {
+                    return async.eval(GROUP_RANKING_REBUILD_SCRIPT,
+                        Arrays.asList(key, "fresh:" + key, "lock:" + key, "group:" + group, sortedSetKey),
+                        Arrays.asList(args.get(0), String.valueOf(freshSeconds), String.valueOf(staleSeconds)))
+                        .thenApply(size -> null);
+                }
+                // 和同步版本一样等待 10 毫秒后重试，但不阻塞线程
+                return async.delay(10, () -> ensureAsync(async, group, sortedSetKey, keys, args));
+            });
+        }
+
+        /**
+         * 把群组的评分排名切换为增量维护，返回排名中的文章数量
+         */
+        public long enableIncremental(Jedis jedis, String group) {
+            String key = "score:" + group;
+            String members = "group:" + group;
+            // 先补全 groups:id 反向集合，之后加入群组的文章由 addGroups 维护反向集合
+            List<String> keys = new ArrayList<>(INDEX_GROUP_BATCH + 1);
+            List<String> args = new ArrayList<>(INDEX_GROUP_BATCH + 1);
+            for (String article : jedis.smembers(members)) {
+                if (keys.isEmpty()) {
+                    keys.add(members);
+                    args.add(group);
+                }
+                keys.add("groups:" + article.substring(article.indexOf(':') + 1));
+                args.add(article);
+                if (args.size() > INDEX_GROUP_BATCH) {
+                    INDEX_GROUP_SCRIPT.eval(jedis, keys, args);
+                    keys.clear();
+                    args.clear();
+                }
+            }
+            if (!args.isEmpty()) {
+                INDEX_GROUP_SCRIPT.eval(jedis, keys, args);
+            }
+            return (Long) ENABLE_INCREMENTAL_SCRIPT.eval(jedis,
+                Arrays.asList(key, members, "score:", INCREMENTAL_RANKINGS, "fresh:" + key, INCREMENTAL_RANKINGS_VERSION),
+                Collections.emptyList());
+        }
+
+        /**
+         * 恢复为缓存加重建的模式，当前的排名作为旧数据保留 staleSeconds
+         */
+        public void disableIncremental(Jedis jedis, String group) {
+            String key = "score:" + group;
+            Transaction transaction = jedis.multi();
+            transaction.srem(INCREMENTAL_RANKINGS, key);
+            transaction.incr(INCREMENTAL_RANKINGS_VERSION);
+            transaction.expire(key, staleSeconds);
+            transaction.exec();
+        }
     }
 
     private void printArticles(List<Map<String, String>> articles) {
@@ -1,33 +1,373 @@
-import com.google.gson.Gson;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.Tuple;
+import redis.clients.util.SafeEncoder;
 
 /**
  * @author 黄学维
  */
 public class Chapter02 {
 
+    /**
+     * 页面在 redis 中缓存的秒数
+     */
+    private static final int PAGE_CACHE_SECONDS = 300;
+
+    /**
+     * 生成页面的租约时长，持有租约的节点崩溃时其他节点最多等待这么久
+     */
+    private static final long PAGE_LEASE_MILLIS = 5000;
+
+    private static final long PAGE_LEASE_POLL_MILLIS = 20;
+
+    /**
+     * 使用 zstd 字典压缩页面时的压缩级别
+     */
+    private static final int PAGE_DICTIONARY_LEVEL = 3;
+
+    /**
+     * 保存 zstd 字典的散列：字段为字典 id，值为字典；字段 current 为当前用于压缩的字典 id
+     *
+     * 字典不设置过期时间，并且和页面放在不同的键中，volatile-* 淘汰策略不会淘汰它；
+     * 在 allkeys-* 策略下字典仍然可能被淘汰，这时用它压缩的页面视为不存在，由获取租约的节点重新生成
+     */
+    private static final String PAGE_DICTIONARIES_KEY = "page-dicts";
+
+    private static final String CURRENT_PAGE_DICTIONARY = "current";
+
+    /**
+     * 页面已经存在时返回 {"page"}；否则尝试获取生成页面的租约，成功时返回 {"lease"}，其他节点持有租约时返回 {"wait"}
+     *
+     * KEYS[1] 为页面的键，KEYS[2] 为租约键；ARGV[1] 为租约令牌，ARGV[2] 为租约的毫秒数，
+     * ARGV[3] 为 1 时表示提前刷新或者页面无法解码，即使页面存在也尝试获取租约
+     */
+    private static final LuaScript ACQUIRE_PAGE_LEASE_SCRIPT = new LuaScript("acquirePageLease", ""
+        + "if ARGV[3] == '0' then\n"
+        + "    if redis.call('exists', KEYS[1]) == 1 then\n"
+        + "        return {'page'}\n"
+        + "    end\n"
+        + "end\n"
+        + "if redis.call('setnx', KEYS[2], ARGV[1]) == 1 then\n"
+        + "    redis.call('pexpire', KEYS[2], ARGV[2])\n"
+        + "    return {'lease'}\n"
+        + "end\n"
+        + "return {'wait'}\n");
+
+    /**
+     * 认领一批到期的数据行
+     *
+     * KEYS[1] 为 schedule:，KEYS[2] 为 delay:；ARGV[1] 为当前的毫秒时间戳，ARGV[2] 为最多认领的行数
+     *
+     * 延迟值小于或等于 0 的行不再需要缓存，直接移除调度，缓存的 inv:行 id 由客户端在同一批的写入之后删除；
+     * 其余的行把调度时间推迟一个周期，作为认领。
+     * 返回 {下一个到期时间（没有时为空字符串）, 认领的行数, 行 id, 原来的调度时间, ..., 移除调度的行 id, ...}
+     */
+    private static final LuaScript CLAIM_DUE_ROWS_SCRIPT = new LuaScript("claimDueRows", ""
+        + "local result = {'', 0}\n"
+        + "local removed = {}\n"
+        + "local due = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'WITHSCORES', 'LIMIT', 0, ARGV[2])\n"
+        + "for i = 1, #due, 2 do\n"
+        + "    local row = due[i]\n"
+        + "    local delay = tonumber(redis.call('zscore', KEYS[2], row))\n"
+        + "    if not delay or delay <= 0 then\n"
+        + "        redis.call('zrem', KEYS[2], row)\n"
+        + "        redis.call('zrem', KEYS[1], row)\n"
+        + "        removed[#removed + 1] = row\n"
+        + "    else\n"
+        + "        redis.call('zadd', KEYS[1], tonumber(ARGV[1]) + delay * 1000, row)\n"
+        + "        result[#result + 1] = row\n"
+        + "        result[#result + 1] = due[i + 1]\n"
+        + "    end\n"
+        + "end\n"
+        + "result[2] = tostring(#due / 2 - #removed)\n"
+        + "for i = 1, #removed do\n"
+        + "    result[#result + 1] = removed[i]\n"
+        + "end\n"
+        + "local next = redis.call('zrange', KEYS[1], 0, 0, 'WITHSCORES')\n"
+        + "if next[2] then\n"
+        + "    result[1] = next[2]\n"
+        + "end\n"
+        + "return result\n");
+
+    /**
+     * 清理一批最旧的会话，令牌和要删除的键由 {@link #reapOldestSessions} 事先读出并构造
+     *
+     * KEYS[1] 为 recent:，KEYS[2] 为 login:，之后每个令牌依次占 ARGV[2] 个键（每个键前缀加上令牌）；
+     * ARGV[1] 为最多保留的会话数量，ARGV[2] 为每个令牌的键的数量，之后每个令牌依次为令牌和读出时的分值。
+     * 读出之后被 updateToken 刷新过的令牌分值已经改变，不再清理；键优先用不阻塞服务器的 unlink 删除，服务器不支持时回退为 del
+     *
+     * 返回 {清理的数量, 剩余超出限制的数量}
+     */
+    static final LuaScript REAP_SESSIONS_SCRIPT = new LuaScript("reapSessions", ""
+        + "local limit = tonumber(ARGV[1])\n"
+        + "local families = tonumber(ARGV[2])\n"
+        + "local size = redis.call('zcard', KEYS[1])\n"
+        + "local allowed = size - limit\n"
+        + "local tokens = {}\n"
+        + "local chunk = {}\n"
+        + "local function flush()\n"
+        + "    if #chunk > 0 then\n"
+        + "        local reply = redis.pcall('unlink', unpack(chunk))\n"
+        + "        if type(reply) == 'table' and reply.err then\n"
+        + "            redis.call('del', unpack(chunk))\n"
+        + "        end\n"
+        + "        chunk = {}\n"
+        + "    end\n"
+        + "end\n"
+        + "local t = 0\n"
+        + "for i = 3, #ARGV, 2 do\n"
+        + "    if #tokens >= allowed then\n"
+        + "        break\n"
+        + "    end\n"
+        + "    local score = redis.call('zscore', KEYS[1], ARGV[i])\n"
+        + "    if score and tonumber(score) == tonumber(ARGV[i + 1]) then\n"
+        + "        tokens[#tokens + 1] = ARGV[i]\n"
+        + "        for j = 1, families do\n"
+        + "            chunk[#chunk + 1] = KEYS[2 + t * families + j]\n"
+        + "        end\n"
+        + "        if #chunk >= 1000 then\n"
+        + "            flush()\n"
+        + "        end\n"
+        + "    end\n"
+        + "    t = t + 1\n"
+        + "end\n"
+        + "flush()\n"
+        + "for i = 1, #tokens, 1000 do\n"
+        + "    local last = math.min(i + 999, #tokens)\n"
+        + "    redis.call('hdel', KEYS[2], unpack(tokens, i, last))\n"
+        + "    redis.call('zrem', KEYS[1], unpack(tokens, i, last))\n"
+        + "end\n"
+        + "return {tostring(#tokens), tostring(math.max(0, size - limit - #tokens))}\n");
+
+    /**
+     * 只有租约仍然属于自己时才删除租约键
+     */
+    private static final LuaScript RELEASE_PAGE_LEASE_SCRIPT = new LuaScript("releasePageLease", ""
+        + "if redis.call('get', KEYS[1]) == ARGV[1] then\n"
+        + "    return redis.call('del', KEYS[1])\n"
+        + "end\n"
+        + "return 0\n");
+
+    /**
+     * 把文本形式的旧会话转换为 {@link TokenCodec} 的二进制形式，返回会话对应的用户，旧会话不存在时返回 nil
+     *
+     * KEYS[1] 为 login:，KEYS[2] 为 recent:，之后每个以令牌为后缀的键依次为文本令牌的键和二进制令牌的键，
+     * 都由 {@link #legacyTokenKeys} 在客户端构造；ARGV[1] 为文本令牌，ARGV[2] 为二进制令牌。
+     * 二进制形式的会话已经存在时（例如旧会话转换之前用户又登录了一次），用户以新的会话为准，旧的数据合并进去而不是删除：
+     * 散列（购物车）只补充新会话中没有的字段，有序集合（浏览记录）取两者中较新的时间，合并后同样只保留最近的 25 个商品
+     */
+    static final LuaScript MIGRATE_TOKEN_SCRIPT = new LuaScript("migrateToken", ""
+        + "local user = redis.call('hget', KEYS[1], ARGV[1])\n"
+        + "if not user then\n"
+        + "    return nil\n"
+        + "end\n"
+        + "local token = ARGV[1]\n"
+        + "local binary = ARGV[2]\n"
+        + "if redis.call('hsetnx', KEYS[1], binary, user) == 0 then\n"
+        + "    user = redis.call('hget', KEYS[1], binary)\n"
+        + "end\n"
+        + "redis.call('hdel', KEYS[1], token)\n"
+        + "local seen = redis.call('zscore', KEYS[2], token)\n"
+        + "if seen then\n"
+        + "    local current = redis.call('zscore', KEYS[2], binary)\n"
+        + "    if not current or tonumber(current) < tonumber(seen) then\n"
+        + "        redis.call('zadd', KEYS[2], seen, binary)\n"
+        + "    end\n"
+        + "    redis.call('zrem', KEYS[2], token)\n"
+        + "end\n"
+        + "for i = 3, #KEYS, 2 do\n"
+        + "    local old = KEYS[i]\n"
+        + "    local new = KEYS[i + 1]\n"
+        + "    local kind = redis.call('type', old).ok\n"
+        + "    if kind == 'none' then\n"
+        + "    elseif redis.call('exists', new) == 0 then\n"
+        + "        redis.call('rename', old, new)\n"
+        + "    elseif kind == 'hash' then\n"
+        + "        local fields = redis.call('hgetall', old)\n"
+        + "        for j = 1, #fields, 2 do\n"
+        + "            redis.call('hsetnx', new, fields[j], fields[j + 1])\n"
+        + "        end\n"
+        + "        redis.call('del', old)\n"
+        + "    elseif kind == 'zset' then\n"
+        + "        redis.call('zunionstore', new, 2, new, old, 'AGGREGATE', 'MAX')\n"
+        + "        redis.call('zremrangebyrank', new, 0, -26)\n"
+        + "        redis.call('del', old)\n"
+        + "    else\n"
+        + "        redis.call('del', old)\n"
+        + "    end\n"
+        + "end\n"
+        + "return user\n");
+
+    private static final byte[] LOGIN = SafeEncoder.encode("login:");
+
+    private static final byte[] RECENT = SafeEncoder.encode("recent:");
+
+    /**
+     * 以令牌为后缀的键前缀
+     */
+    private static final List<String> TOKEN_KEY_FAMILIES = Arrays.asList("viewed:", "cart:");
+
+    private static final Metrics.Operation CHECK_TOKEN = Metrics.getDefault().operation("sessions.checkToken");
+
+    private static final Metrics.Operation UPDATE_TOKEN = Metrics.getDefault().operation("sessions.updateToken");
+
+    private static final Metrics.Operation REAP_SESSIONS = Metrics.getDefault().operation("sessions.reap");
+
+    private static final AtomicLong REAPER_BACKLOG = Metrics.getDefault().gauge("sessions.reaper.backlog");
+
+    private static final Metrics.Operation CACHE_REQUEST = Metrics.getDefault().operation("cache.request");
+
+    private static final Metrics.Operation LOAD_PAGE = Metrics.getDefault().operation("cache.page.load");
+
+    private static final LongAdder LEGACY_TOKEN_LOOKUPS = Metrics.getDefault().counter("sessions.legacyTokenLookups");
+
+    private static final LongAdder PAGE_NEAR_HITS = Metrics.getDefault().counter("cache.page.nearHits");
+
+    private static final LongAdder PAGE_REDIS_HITS = Metrics.getDefault().counter("cache.page.redisHits");
+
+    private static final LongAdder PAGE_MISSES = Metrics.getDefault().counter("cache.page.misses");
+
+    private static final LongAdder UNCACHEABLE_REQUESTS = Metrics.getDefault().counter("cache.request.uncacheable");
+
+    private static final Metrics.Operation REFRESH_ROWS = Metrics.getDefault().operation("rows.refresh");
+
+    /**
+     * 每一行实际刷新时间和应该刷新时间之间的差值
+     */
+    private static final LatencyRecorder ROW_SCHEDULE_LAG = Metrics.getDefault().recorder("rows.scheduleLag");
+
+    static {
+        // 近端缓存和 redis 中的页面都算作命中，百分比
+        Metrics.getDefault().gauge("cache.page.hitRatio", () -> {
+            long hits = PAGE_NEAR_HITS.sum() + PAGE_REDIS_HITS.sum();
+            long total = hits + PAGE_MISSES.sum();
+            return total > 0 ? hits * 100 / total : 0;
+        });
+    }
+
+    private final RedisConnections connections;
+
+    /**
+     * 热点页面的近端缓存，条目的生存时间不超过页面在 redis 中的剩余生存时间
+     */
+    private final NearCache pageCache = new NearCache(64 * 1024 * 1024, PAGE_CACHE_SECONDS * 1000L);
+
+    /**
+     * 判断请求能否被缓存，只有浏览量前 10000 名的商品页面会被缓存
+     */
+    private final RequestClassifier requestClassifier = new RequestClassifier(10000);
+
+    /**
+     * 计算页面缓存键的散列算法
+     */
+    private volatile RequestHasher requestHasher = new Murmur3RequestHasher();
+
+    /**
+     * 本地累加的商品浏览次数增量，{@link ViewedCountsThread} 运行期间使用
+     */
+    private final CoalescingCounters viewedDeltas = new CoalescingCounters();
+
+    private volatile boolean bufferViewedCounts;
+
+    /**
+     * 正在判断是否累加到 viewedDeltas 的 updateToken 调用数，{@link ViewedCountsThread} 退出时等待它们完成再写入最后一次
+     */
+    private final LongAdder viewedCountWriters = new LongAdder();
+
+    /**
+     * 二进制令牌不存在时是否再查找文本形式的旧会话，所有旧会话都已经转换或者过期之后可以关闭
+     */
+    private volatile boolean legacyTokenFallback = true;
+
+    /**
+     * 每次调度新的数据行时递增，用于唤醒等待中的 {@link CacheRowsThread}
+     */
+    private final AtomicLong rowScheduleVersion = new AtomicLong();
+
+    /**
+     * 等待调度变化使用 j.u.c 的锁而不是对象监视器，虚拟线程等待时不会占住平台线程
+     */
+    private final ReentrantLock rowScheduleLock = new ReentrantLock();
+
+    private final Condition rowScheduled = rowScheduleLock.newCondition();
+
+    private final LongAdder refreshedRows = new LongAdder();
+
+    private volatile long rowCacheLagMillis;
+
+    /**
+     * 数据行缓存值的编码方式
+     */
+    private volatile RowCodec rowCodec = new BinaryRowCodec();
+
+    /**
+     * 页面在 redis 中的编码方式
+     */
+    private volatile PageCodec pageCodec = new PageCodec();
+
+    /**
+     * 正在生成的页面，同一个页面在进程内只生成一次，其他请求等待同一个结果
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inflight = new ConcurrentHashMap<>();
+
+    /**
+     * XFetch 提前刷新的系数，0 表示不提前刷新
+     */
+    private volatile double earlyRefreshBeta;
+
     public static void main(String[] args) throws InterruptedException {
         new Chapter02().run();
     }
 
+    public Chapter02() {
+        this(RedisConnections.getDefault());
+    }
+
+    public Chapter02(RedisConnections connections) {
+        this.connections = connections;
+    }
+
     public void run()
         throws InterruptedException {
-        Jedis conn = new Jedis("localhost");
-        conn.select(15);
-
-        testLoginCookies(conn);
-        testShoppingCartCookies(conn);
-        testCacheRows(conn);
-        testCacheRequest(conn);
+        Jedis conn = connections.borrow();
+        try {
+            testLoginCookies(conn);
+            testShoppingCartCookies(conn);
+            testCacheRows(conn);
+            testCacheRequest(conn);
+            System.out.println("\n----- metrics -----");
+            System.out.print(Metrics.getDefault().dump());
+        } finally {
+            connections.release(conn, false);
+        }
     }
 
     public void testLoginCookies(Jedis conn) throws InterruptedException {
@@ -70,7 +410,7 @@ public class Chapter02 {
         updateToken(conn, token, "username", "itemX");
         System.out.println("And add an item to the shopping cart");
         addToCart(conn, token, "itemY", 3);
-        Map<String, String> r = conn.hgetAll("cart:" + token);
+        Map<String, String> r = getCart(conn, token);
         System.out.println("Our shopping cart currently has:");
         for (Map.Entry<String, String> entry : r.entrySet()) {
             System.out.println("  " + entry.getKey() + ": " + entry.getValue());
@@ -89,7 +429,7 @@ public class Chapter02 {
             throw new RuntimeException("The clean sessions thread is still alive?!?");
         }
 
-        r = conn.hgetAll("cart:" + token);
+        r = getCart(conn, token);
         System.out.println("Our shopping cart now contains:");
         for (Map.Entry<String, String> entry : r.entrySet()) {
             System.out.println("  " + entry.getKey() + ": " + entry.getValue());
@@ -108,42 +448,43 @@ public class Chapter02 {
         }
         assert s.size() != 0;
 
-        System.out.println("We'll start a caching thread that will cache the data...");
+        System.out.println("We'll start two caching workers on virtual threads that will cache the data...");
 
-        CacheRowsThread thread = new CacheRowsThread();
-        thread.start();
+        WorkerRuntime runtime = new WorkerRuntime();
+        runtime.start("cache-rows", 2, CacheRowsThread::new);
 
         Thread.sleep(1000);
         System.out.println("Our cached data looks like:");
-        String r = conn.get("inv:itemX");
+        Inventory r = getCachedRow(conn, "itemX");
         System.out.println(r);
         assert r != null;
+        System.out.println("It takes " + conn.strlen("inv:itemX") + " bytes in redis");
         System.out.println();
 
         System.out.println("We'll check again in 5 seconds...");
         Thread.sleep(5000);
         System.out.println("Notice that the data has changed...");
-        String r2 = conn.get("inv:itemX");
+        Inventory r2 = getCachedRow(conn, "itemX");
         System.out.println(r2);
         System.out.println();
         assert r2 != null;
-        assert !r.equals(r2);
+        assert r.getTime() != r2.getTime();
 
         System.out.println("Let's force un-caching");
         scheduleRowCache(conn, "itemX", -1);
         Thread.sleep(1000);
-        r = conn.get("inv:itemX");
+        r = getCachedRow(conn, "itemX");
         System.out.println("The cache was cleared? " + (r == null));
         assert r == null;
 
-        thread.quit();
-        Thread.sleep(2000);
-        if (thread.isAlive()) {
+        System.out.println("Rows refreshed: " + getRefreshedRows() + ", last lag: " + getRowCacheLagMillis() + "ms");
+
+        if (!runtime.shutdown(2000)) {
             throw new RuntimeException("The database caching thread is still alive?!?");
         }
     }
 
-    public void testCacheRequest(Jedis conn) {
+    public void testCacheRequest(Jedis conn) throws InterruptedException {
         System.out.println("\n----- testCacheRequest -----");
         String token = UUID.randomUUID().toString();
 
@@ -169,154 +510,549 @@ public class Chapter02 {
 
         assert result.equals(result2);
 
+        System.out.println("The near cache served the second request without a round trip: " + pageCache);
+
+        System.out.println("Another node rewrites the page, so our local copy should be dropped");
+        NearCache.InvalidationThread invalidation = pageCache.new InvalidationThread(connections);
+        invalidation.start();
+        Thread.sleep(500);
+        // 订阅生效时会清空近端缓存，重新从 redis 读一次
+        cacheRequest(conn, url, null);
+        new NearCache(1024, 1000).publishInvalidation(conn, "cache:" + hashRequest(url));
+        Thread.sleep(500);
+        System.out.println("Near cache after the invalidation: " + pageCache);
+        assert pageCache.size() == 0;
+        invalidation.quit();
+
         assert !canCache(conn, "http://test.com/");
         assert !canCache(conn, "http://test.com/?item=itemX&_=1234536");
+
+        System.out.println("Load a local snapshot of the top viewed items, so the check no longer needs redis");
+        requestClassifier.reload(conn);
+        assert canCache(conn, url);
+        assert !canCache(conn, "http://test.com/?item=itemY");
+
+        System.out.println("The async variant reads the same page without blocking the caller");
+        CompletableFuture<String> async = cacheRequestAsync(url, null);
+        assert result.equals(async.join());
+
+        System.out.println("Large pages are compressed in redis, and can be streamed out without building a String");
+        String bigUrl = url + "&view=full";
+        String bigKey = "cache:" + hashRequest(bigUrl);
+        Callback bigPage = request -> {
+            StringBuilder page = new StringBuilder("<html><body><h1>" + request + "</h1>\n");
+            for (int i = 0; i < 100; i++) {
+                page.append("<div class=\"row\"><span>").append(request).append("</span> row ").append(i).append("</div>\n");
+            }
+            return page.append("</body></html>").toString();
+        };
+        String big = cacheRequest(conn, bigUrl, bigPage);
+        System.out.println("The page has " + big.length() + " characters, redis holds " + conn.strlen(bigKey) + " bytes");
+        pageCache.invalidate(bigKey);
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        try {
+            boolean written = cacheRequest(conn, bigUrl, null, streamed);
+            assert written;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        assert big.equals(streamed.toString(StandardCharsets.UTF_8));
+
+        System.out.println("A zstd dictionary trained on similar pages shrinks it further");
+        List<String> samples = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            samples.add(bigPage.call("http://test.com/?item=item" + i + "&view=full"));
+        }
+        trainPageDictionary(conn, samples, 16 * 1024);
+        conn.del(bigKey);
+        pageCache.invalidate(bigKey);
+        assert big.equals(cacheRequest(conn, bigUrl, bigPage));
+        System.out.println("Redis now holds " + conn.strlen(bigKey) + " bytes");
+        pageCache.invalidate(bigKey);
+        assert big.equals(cacheRequest(conn, bigUrl, null));
+    }
+
+    public String checkToken(String token) {
+        return connections.execute(jedis -> checkToken(jedis, token));
     }
 
     /**
      * 尝试获取并返回令牌对应的用户
+     *
+     * 令牌以 {@link TokenCodec} 的二进制形式保存；找不到时回退到文本形式的旧会话，并把它转换为二进制形式，
+     * 所以每个旧会话只会多一次往返
      */
     public String checkToken(Jedis jedis, String token) {
-        return jedis.hget("login:", token);
+        long start = System.nanoTime();
+        long trips = Metrics.roundTrips(jedis);
+        try {
+            byte[] user = jedis.hget(LOGIN, TokenCodec.encode(token));
+            if (user != null) {
+                return SafeEncoder.encode(user);
+            }
+            if (!isLegacyToken(token)) {
+                return null;
+            }
+            Object migrated = MIGRATE_TOKEN_SCRIPT.evalBinary(jedis, legacyTokenKeys(token), legacyTokenArgs(token));
+            return migrated != null ? SafeEncoder.encode((byte[]) migrated) : null;
+        } finally {
+            CHECK_TOKEN.record(start, jedis, trips);
+        }
+    }
+
+    public CompletableFuture<String> checkTokenAsync(String token) {
+        return connections.async().execute(batch -> batch.hget(LOGIN, TokenCodec.encode(token))::get)
+            .thenCompose(user -> user != null || !isLegacyToken(token)
+                ? CompletableFuture.completedFuture(user)
+                : connections.async().execute(batch -> batch.evalBinary(MIGRATE_TOKEN_SCRIPT, legacyTokenKeys(token),
+                    legacyTokenArgs(token))::get).thenApply(String.class::cast));
+    }
+
+    /**
+     * 打开或关闭对文本形式的旧会话的查找，参见 {@link #checkToken(Jedis, String)}
+     */
+    public void setLegacyTokenFallback(boolean legacyTokenFallback) {
+        this.legacyTokenFallback = legacyTokenFallback;
+    }
+
+    /**
+     * 令牌是否可能以文本形式保存在旧会话中；非 UUID 的令牌两种形式相同，不需要再查找
+     */
+    private boolean isLegacyToken(String token) {
+        return legacyTokenFallback && TokenCodec.isUuid(token);
+    }
+
+    /**
+     * {@link #MIGRATE_TOKEN_SCRIPT} 的键：login:、recent:，以及每个键前缀加上文本令牌和加上二进制令牌的两个键
+     */
+    private static List<byte[]> legacyTokenKeys(String token) {
+        byte[] text = SafeEncoder.encode(token);
+        byte[] binary = TokenCodec.encode(token);
+        List<byte[]> keys = new ArrayList<>(2 + TOKEN_KEY_FAMILIES.size() * 2);
+        keys.add(LOGIN);
+        keys.add(RECENT);
+        for (String prefix : TOKEN_KEY_FAMILIES) {
+            keys.add(TokenCodec.key(prefix, text));
+            keys.add(TokenCodec.key(prefix, binary));
+        }
+        return keys;
+    }
+
+    private List<byte[]> legacyTokenArgs(String token) {
+        LEGACY_TOKEN_LOOKUPS.increment();
+        return Arrays.asList(SafeEncoder.encode(token), TokenCodec.encode(token));
+    }
+
+    public void updateToken(String token, String user, String item) {
+        connections.execute(jedis -> {
+            updateToken(jedis, token, user, item);
+            return null;
+        });
     }
 
     public void updateToken(Jedis jedis, String token, String user, String item) {
+        long start = System.nanoTime();
+        long trips = Metrics.roundTrips(jedis);
+        try {
+            // 所有针对这个令牌的写入通过一个流水线发送，只需要一次网络往返
+            Pipeline pipeline = jedis.pipelined();
+            updateToken(pipeline, token, user, item);
+            pipeline.sync();
+        } finally {
+            UPDATE_TOKEN.record(start, jedis, trips);
+        }
+    }
+
+    /**
+     * {@link #updateToken(Jedis, String, String, String)} 的异步版本，写入和其他并发请求合并在同一个流水线中发送
+     */
+    public CompletableFuture<Void> updateTokenAsync(String token, String user, String item) {
+        return connections.async().execute(batch -> {
+            Response<Long> last = updateToken(batch, token, user, item);
+            return () -> {
+                last.get();
+                return null;
+            };
+        });
+    }
+
+    /**
+     * 把更新令牌的写入排入流水线，返回最后一条命令的结果
+     */
+    private Response<Long> updateToken(Pipeline pipeline, String token, String user, String item) {
         // 获取当前时间戳
         long timestamp = System.currentTimeMillis() / 1000;
+        byte[] binary = TokenCodec.encode(token);
 
         // 维持令牌与已登录用户之间的映射
-        jedis.hset("login:", token, user);
+        pipeline.hset(LOGIN, binary, SafeEncoder.encode(user));
 
         // 记录令牌最后一次出现的时间
-        jedis.zadd("recent:", timestamp, token);
+        Response<Long> last = pipeline.zadd(RECENT, timestamp, binary);
 
         if (null != item) {
+            byte[] viewed = TokenCodec.key("viewed:", binary);
             // 记录用户浏览过的商品
-            jedis.zadd("viewed:" + token, timestamp, item);
+            pipeline.zadd(viewed, timestamp, SafeEncoder.encode(item));
             // 移除旧的记录，只保留用户最近浏览过的 25 个商品
-            jedis.zremrangeByRank("viewed:" + token, 0, -26);
+            last = pipeline.zremrangeByRank(viewed, 0, -26);
+
+            viewedCountWriters.increment();
+            try {
+                if (bufferViewedCounts) {
+                    // viewed: 是所有请求都要写入的热点键，先在本地累加，由 ViewedCountsThread 批量写入
+                    viewedDeltas.add(item, -1);
+                } else {
+                    pipeline.zincrby("viewed:", -1, item);
+                }
+            } finally {
+                viewedCountWriters.decrement();
+            }
+        }
+        return last;
+    }
 
-            jedis.zincrby("viewed:", -1, item);
+    /**
+     * 把本地累加的商品浏览次数批量写入 viewed:，返回写入的商品数量
+     */
+    public int flushViewedCounts(Jedis jedis) {
+        Map<String, Long> deltas = viewedDeltas.drain();
+        if (deltas.isEmpty()) {
+            return 0;
         }
+        try {
+            Pipeline pipeline = jedis.pipelined();
+            for (Map.Entry<String, Long> entry : deltas.entrySet()) {
+                pipeline.zincrby("viewed:", entry.getValue(), entry.getKey());
+            }
+            pipeline.sync();
+        } catch (RuntimeException e) {
+            // 写入失败时把增量放回去，等待下一次写入
+            for (Map.Entry<String, Long> entry : deltas.entrySet()) {
+                viewedDeltas.add(entry.getKey(), entry.getValue());
+            }
+            throw e;
+        }
+        return deltas.size();
     }
 
-    public class CleanSessionsThread extends Thread {
+    /**
+     * 定期把 updateToken 在本地累加的 viewed: 增量批量写入 redis 的线程
+     *
+     * 线程运行期间 updateToken 不再直接写入 viewed:；线程退出时写入剩余的增量，之后 updateToken 恢复直接写入。
+     * redis 不可用时最后一次写入最多重试 {@link #FINAL_FLUSH_TIMEOUT_MILLIS}，之后放弃剩余的增量并记录在日志中，线程不会因此无法结束
+     */
+    public class ViewedCountsThread extends WorkerRuntime.BackgroundWorker {
 
-        private Jedis jedis;
+        private static final long FINAL_FLUSH_RETRY_MILLIS = 1000;
 
-        private int limit;
+        private static final long FINAL_FLUSH_TIMEOUT_MILLIS = 10_000;
 
-        private boolean quit;
+        /**
+         * 放弃写入时日志中最多列出的商品数量
+         */
+        private static final int MAX_LOGGED_DROPPED_ITEMS = 10;
 
-        public CleanSessionsThread(int limit) {
-            this.jedis = new Jedis("localhost");
-            this.jedis.select(15);
-            this.limit = limit;
+        private final long flushIntervalMillis;
+
+        private volatile boolean quit;
+
+        public ViewedCountsThread(long flushIntervalMillis) {
+            super("viewed-counts", false);
+            this.flushIntervalMillis = flushIntervalMillis;
         }
 
+        @Override
         public void quit() {
-            this.quit = true;
+            quit = true;
+            wake();
         }
 
         @Override
-        public void run() {
+        protected void work() {
+            bufferViewedCounts = true;
+            long lastFlushMillis = System.currentTimeMillis();
             while (!quit) {
-                // 找出目前已有令牌的数量
-                Long size = jedis.zcard("recent:");
-
-                // 若令牌数量未超过限制，休眠，并在之后重新检查
-                if (size <= limit) {
-                    try {
-                        sleep(1000);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
+                long wait = lastFlushMillis + flushIntervalMillis - System.currentTimeMillis();
+                if (wait > 0) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(wait));
                     continue;
                 }
+                lastFlushMillis = System.currentTimeMillis();
+                flush();
+            }
+            // 退出前恢复直接写入，等待已经读到旧标记的 updateToken 累加完成，再写入剩余的增量
+            bufferViewedCounts = false;
+            while (viewedCountWriters.sum() != 0) {
+                Thread.yield();
+            }
+            // 最后一次写入失败时增量已经放回 viewedDeltas，在限定的时间内重试，超时或者被中断时放弃
+            long deadline = System.currentTimeMillis() + FINAL_FLUSH_TIMEOUT_MILLIS;
+            while (!flush()) {
+                if (System.currentTimeMillis() + FINAL_FLUSH_RETRY_MILLIS > deadline) {
+                    dropPending("Gave up flushing viewed counts after " + FINAL_FLUSH_TIMEOUT_MILLIS + "ms");
+                    return;
+                }
+                try {
+                    Thread.sleep(FINAL_FLUSH_RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropPending("Gave up flushing viewed counts on interrupt");
+                    return;
+                }
+            }
+        }
 
-                // 获取需要移除的令牌 id
-                long endIndex = Math.min(size - limit, 100);
-                Set<String> tokenSet = jedis.zrange("recent:", 0, endIndex - 1);
-
-                // 为那些将要被删除的令牌构建键名
-                String[] tokens = tokenSet.toArray(new String[tokenSet.size()]);
-                List<String> sessionKeys = new ArrayList<>();
-                for (String token : tokens) {
-                    sessionKeys.add("viewed:" + token);
+        /**
+         * 丢弃没有写入的增量，日志中记录商品数量、丢失的浏览次数总和以及前几个商品，商品很多时日志也不会过长
+         */
+        private void dropPending(String reason) {
+            Map<String, Long> dropped = viewedDeltas.drain();
+            long views = 0;
+            List<String> sample = new ArrayList<>(Math.min(dropped.size(), MAX_LOGGED_DROPPED_ITEMS));
+            for (Map.Entry<String, Long> entry : dropped.entrySet()) {
+                // 增量是负数的浏览次数
+                views -= entry.getValue();
+                if (sample.size() < MAX_LOGGED_DROPPED_ITEMS) {
+                    sample.add(entry.getKey() + '=' + entry.getValue());
                 }
+            }
+            System.err.println(reason + ", dropped " + views + " views of " + dropped.size() + " items, first "
+                + sample.size() + ": " + sample);
+        }
 
-                // 移除最久的哪些令牌
-                jedis.del(sessionKeys.toArray(new String[sessionKeys.size()]));
-                // 从记录用户登陆信息的 hash 中移除被删除令牌对应用户的信息
-                jedis.hdel("login:", tokens);
-                // 清理这些用户最近浏览商品记录的有序集合
-                jedis.zrem("recent:", tokens);
+        /**
+         * 写入本地累加的增量，返回是否写入成功
+         */
+        private boolean flush() {
+            try {
+                connections.execute(jedis -> flushViewedCounts(jedis));
+                return true;
+            } catch (RuntimeException e) {
+                System.err.println("Failed to flush viewed counts: " + e);
+                return false;
             }
         }
     }
 
-    public void addToCart(Jedis jedis, String token, String item, int count) {
+    /**
+     * 清理 recent 中最旧的不超过 batchSize 个会话，返回 {清理的数量, 剩余超出限制的数量}
+     *
+     * 令牌是二进制的，先读出最旧的令牌和它们的分值，再由 {@link #REAP_SESSIONS_SCRIPT} 删除，
+     * 所有要删除的键都在这里构造并通过 KEYS 传给脚本；会话数量没有超过限制时只需要一次往返
+     *
+     * @param keyFamilies 需要一起删除的键前缀，键名为前缀加令牌
+     */
+    static long[] reapOldestSessions(Jedis jedis, String recent, String login, List<String> keyFamilies,
+        long limit, int batchSize) {
+        long count = Math.min(jedis.zcard(recent) - limit, batchSize);
         if (count <= 0) {
-            jedis.hdel("cart:" + token, item);
-        } else {
-            jedis.hset("cart:" + token, item, String.valueOf(count));
+            return new long[] {0, 0};
         }
+        byte[] recentKey = SafeEncoder.encode(recent);
+        Set<Tuple> oldest = jedis.zrangeWithScores(recentKey, 0, (int) count - 1);
+        List<byte[]> keys = new ArrayList<>(2 + oldest.size() * keyFamilies.size());
+        List<byte[]> args = new ArrayList<>(2 + oldest.size() * 2);
+        keys.add(recentKey);
+        keys.add(SafeEncoder.encode(login));
+        args.add(SafeEncoder.encode(String.valueOf(limit)));
+        args.add(SafeEncoder.encode(String.valueOf(keyFamilies.size())));
+        for (Tuple tuple : oldest) {
+            byte[] token = tuple.getBinaryElement();
+            for (String family : keyFamilies) {
+                keys.add(TokenCodec.key(family, token));
+            }
+            args.add(token);
+            // 和 redis 返回的分值使用相同的文本形式，脚本中按数值比较
+            args.add(SafeEncoder.encode(String.valueOf(tuple.getScore())));
+        }
+        List<?> reply = (List<?>) REAP_SESSIONS_SCRIPT.evalBinary(jedis, keys, args);
+        return new long[] {Long.parseLong(SafeEncoder.encode((byte[]) reply.get(0))),
+            Long.parseLong(SafeEncoder.encode((byte[]) reply.get(1)))};
     }
 
-    public class CleanFullSessionsThread extends Thread {
+    /**
+     * 清理旧会话的工作线程：当 recent: 中的令牌数量超过限制时，删除最久没有出现的令牌以及它们对应的数据
+     *
+     * 每一批令牌的清理由一个脚本原子地完成；批次大小根据积压的令牌数量自动调整，积压时成倍增大，空闲时逐步减小；
+     * 除了 viewed: 之外，还可以指定其他需要一起删除的、以令牌为后缀的键，例如购物车 cart:；
+     * 这些键在 {@link #reapOldestSessions} 中按字节拼接前缀和令牌得到，二进制令牌和还没有转换的文本令牌都能被清理
+     */
+    public class SessionReaper extends WorkerRuntime.BackgroundWorker {
 
-        private Jedis jedis;
+        private final int limit;
 
-        private int limit;
+        private final List<String> keyFamilies;
 
-        private boolean quit;
+        private final int minBatchSize;
 
-        public CleanFullSessionsThread(int limit) {
-            this.jedis = new Jedis("localhost");
-            this.jedis.select(15);
+        private final int maxBatchSize;
+
+        private final long idleMillis;
+
+        private final long startMillis = System.currentTimeMillis();
+
+        private final LongAdder evictedSessions = new LongAdder();
+
+        private volatile int batchSize;
+
+        private volatile long backlog;
+
+        private volatile boolean quit;
+
+        /**
+         * @param limit       最多保留的会话数量
+         * @param keyFamilies 删除会话时需要一起删除的键前缀，键名为前缀加令牌
+         */
+        public SessionReaper(int limit, List<String> keyFamilies) {
+            this(limit, keyFamilies, 100, 10000, 1000);
+        }
+
+        /**
+         * @param minBatchSize 每批最少清理的会话数量
+         * @param maxBatchSize 每批最多清理的会话数量
+         * @param idleMillis   会话数量没有超过限制时的休眠时间
+         */
+        public SessionReaper(int limit, List<String> keyFamilies, int minBatchSize, int maxBatchSize,
+            long idleMillis) {
+            super("session-reaper", false);
             this.limit = limit;
+            this.keyFamilies = new ArrayList<>(keyFamilies);
+            this.minBatchSize = minBatchSize;
+            this.maxBatchSize = maxBatchSize;
+            this.idleMillis = idleMillis;
+            this.batchSize = minBatchSize;
         }
 
+        @Override
         public void quit() {
-            this.quit = true;
+            quit = true;
+            interruptRunner();
+        }
+
+        /**
+         * 已经清理的会话总数
+         */
+        public long getEvictedSessions() {
+            return evictedSessions.sum();
+        }
+
+        /**
+         * 最近一次清理之后仍然超出限制的会话数量
+         */
+        public long getBacklog() {
+            return backlog;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        /**
+         * 线程启动以来平均每秒清理的会话数量
+         */
+        public double getEvictionsPerSecond() {
+            long elapsed = System.currentTimeMillis() - startMillis;
+            return elapsed > 0 ? getEvictedSessions() * 1000.0 / elapsed : 0;
+        }
+
+        /**
+         * 清理一批最旧的会话（不超过当前的批次大小），返回清理的数量
+         */
+        public long reapOnce() {
+            long start = System.nanoTime();
+            // {清理的数量, 剩余超出限制的数量}
+            long[] result = connections.execute(jedis -> {
+                long trips = Metrics.roundTrips(jedis);
+                long[] reaped = reapOldestSessions(jedis, "recent:", "login:", keyFamilies, limit, batchSize);
+                REAP_SESSIONS.record(start, jedis, trips);
+                return reaped;
+            });
+            long evicted = result[0];
+            backlog = result[1];
+            evictedSessions.add(evicted);
+            REAPER_BACKLOG.set(backlog);
+            return evicted;
         }
 
         @Override
-        public void run() {
+        protected void work() {
             while (!quit) {
-                // 找出目前已有令牌的数量
-                Long size = jedis.zcard("recent:");
+                long evicted = -1;
+                try {
+                    evicted = reapOnce();
+                } catch (RuntimeException e) {
+                    System.err.println("Failed to evict sessions: " + e);
+                }
 
-                // 若令牌数量未超过限制，休眠，并在之后重新检查
-                if (size <= limit) {
-                    try {
-                        sleep(1000);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
+                if (evicted >= 0 && backlog > 0) {
+                    // 仍有积压，增大批次后立即继续
+                    batchSize = (int) Math.min(maxBatchSize, (long) batchSize * 2);
                     continue;
                 }
+                batchSize = Math.max(minBatchSize, batchSize / 2);
 
-                // 获取需要移除的令牌 id
-                long endIndex = Math.min(size - limit, 100);
-                Set<String> tokenSet = jedis.zrange("recent:", 0, endIndex - 1);
-
-                // 为那些将要被删除的令牌构建键名
-                String[] tokens = tokenSet.toArray(new String[tokenSet.size()]);
-                List<String> sessionKeys = new ArrayList<>();
-                for (String token : tokens) {
-                    sessionKeys.add("viewed:" + token);
-                    // 新增的代码用于删除旧会话对应用户的购物车
-                    sessionKeys.add("cart:" + token);
+                // 若令牌数量未超过限制，休眠，并在之后重新检查
+                try {
+                    Thread.sleep(idleMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 }
+            }
+        }
+    }
+
+    public class CleanSessionsThread extends SessionReaper {
+
+        public CleanSessionsThread(int limit) {
+            super(limit, Collections.singletonList("viewed:"));
+        }
+    }
 
-                // 移除最久的哪些令牌
-                jedis.del(sessionKeys.toArray(new String[sessionKeys.size()]));
-                // 从记录用户登陆信息的 hash 中移除被删除令牌对应用户的信息
-                jedis.hdel("login:", tokens);
-                // 清理这些用户最近浏览商品记录的有序集合
-                jedis.zrem("recent:", tokens);
+    public void addToCart(String token, String item, int count) {
+        connections.execute(jedis -> {
+            addToCart(jedis, token, item, count);
+            return null;
+        });
+    }
+
+    public void addToCart(Jedis jedis, String token, String item, int count) {
+        byte[] cart = TokenCodec.key("cart:", TokenCodec.encode(token));
+        if (count <= 0) {
+            jedis.hdel(cart, SafeEncoder.encode(item));
+        } else {
+            jedis.hset(cart, SafeEncoder.encode(item), SafeEncoder.encode(String.valueOf(count)));
+        }
+    }
+
+    /**
+     * 购物车中的商品和数量；旧会话还没有被 {@link #checkToken(Jedis, String)} 转换时，
+     * 在同一个流水线中读取文本令牌的购物车，按转换脚本的规则合并：两边都有的商品以二进制令牌的购物车为准
+     */
+    public Map<String, String> getCart(Jedis jedis, String token) {
+        byte[] cart = TokenCodec.key("cart:", TokenCodec.encode(token));
+        if (!isLegacyToken(token)) {
+            Map<String, String> items = new HashMap<>();
+            for (Map.Entry<byte[], byte[]> entry : jedis.hgetAll(cart).entrySet()) {
+                items.put(SafeEncoder.encode(entry.getKey()), SafeEncoder.encode(entry.getValue()));
             }
+            return items;
+        }
+        Pipeline pipeline = jedis.pipelined();
+        Response<Map<String, String>> current = pipeline.hgetAll(cart);
+        Response<Map<String, String>> legacy = pipeline.hgetAll("cart:" + token);
+        pipeline.sync();
+        Map<String, String> items = new HashMap<>(legacy.get());
+        items.putAll(current.get());
+        return items;
+    }
+
+    public class CleanFullSessionsThread extends SessionReaper {
+
+        public CleanFullSessionsThread(int limit) {
+            // 删除旧会话时也删除对应用户的购物车
+            super(limit, Arrays.asList("viewed:", "cart:"));
         }
     }
 
@@ -325,46 +1061,380 @@ public class Chapter02 {
         String call(String request);
     }
 
+    public String cacheRequest(String request, Callback callback) {
+        return connections.execute(jedis -> cacheRequest(jedis, request, callback));
+    }
+
     public String cacheRequest(Jedis jedis, String request, Callback callback) {
-        // 对于不能被缓存的请求，直接调用回调函数
-        if (!canCache(jedis, request)) {
-            return callback != null ? callback.call(request) : null;
+        long start = System.nanoTime();
+        long trips = Metrics.roundTrips(jedis);
+        try {
+            // 对于不能被缓存的请求，直接调用回调函数
+            if (!canCache(jedis, request)) {
+                UNCACHEABLE_REQUESTS.increment();
+                return callback != null ? callback.call(request) : null;
+            }
+
+            // 将请求转换成一个简单字符串键，方便之后进行查找
+            String pageKey = "cache:" + hashRequest(request);
+            // 先查找近端缓存
+            String content = pageCache.get(pageKey);
+            if (content != null) {
+                PAGE_NEAR_HITS.increment();
+                return content;
+            }
+
+            // 尝试查找被缓存的页面
+            CachedPage page = readPage(jedis, pageKey);
+            (page.exists() ? PAGE_REDIS_HITS : PAGE_MISSES).increment();
+            if (callback == null) {
+                return page.content();
+            }
+            if (page.exists()) {
+                // 页面即将过期时按概率提前重新生成，其他请求继续使用当前的页面
+                return shouldRefreshEarly(page)
+                    ? loadPage(jedis, pageKey, request, callback, page.content()) : page.content();
+            }
+
+            // 如果页面还未被缓存，那么生成页面，同一个页面同时只会生成一次
+            return loadPage(jedis, pageKey, request, callback, null);
+        } finally {
+            CACHE_REQUEST.record(start, jedis, trips);
         }
+    }
+
+    /**
+     * 和 {@link #cacheRequest(Jedis, String, Callback)} 相同，但是把页面的 UTF-8 字节直接写入 out
+     *
+     * redis 中的页面边解压边写出，不生成整个页面的字符串，因此这条路径从 redis 读到的页面不会放入近端缓存
+     *
+     * @return 是否写出了页面，callback 为 null 并且没有缓存的页面时返回 false
+     */
+    public boolean cacheRequest(Jedis jedis, String request, Callback callback, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        long trips = Metrics.roundTrips(jedis);
+        try {
+            if (!canCache(jedis, request)) {
+                UNCACHEABLE_REQUESTS.increment();
+                return writeContent(callback != null ? callback.call(request) : null, out);
+            }
 
-        // 将请求转换成一个简单字符串键，方便之后进行查找
-        String pageKey = "cache:" + hashRequest(request);
-        // 尝试查找被缓存的页面
-        String content = jedis.get(pageKey);
+            String pageKey = "cache:" + hashRequest(request);
+            String content = pageCache.get(pageKey);
+            if (content != null) {
+                PAGE_NEAR_HITS.increment();
+                return writeContent(content, out);
+            }
 
-        // 如果页面还未被缓存，那么生成页面
-        if (content == null && callback != null) {
-            content = callback.call(request);
-            // 将新生成的页面放到缓存里面
-            jedis.setex(pageKey, 300, content);
+            CachedPage page = readPage(jedis, pageKey);
+            (page.exists() ? PAGE_REDIS_HITS : PAGE_MISSES).increment();
+            if (page.exists() && (callback == null || !shouldRefreshEarly(page))) {
+                page.codec.decodeTo(page.value, out);
+                return true;
+            }
+            if (callback == null) {
+                return false;
+            }
+            return writeContent(loadPage(jedis, pageKey, request, callback, page.content()), out);
+        } finally {
+            CACHE_REQUEST.record(start, jedis, trips);
         }
+    }
 
-        return content;
+    /**
+     * {@link #cacheRequest(Jedis, String, Callback)} 的异步版本
+     *
+     * 可缓存检查、近端缓存和 redis 中页面的读取都不阻塞调用方线程；需要调用回调函数生成页面时，
+     * 生成过程（包括等待其他节点的租约）交给 {@link AsyncRedis#supplyBlocking(java.util.function.Supplier)} 的线程执行
+     */
+    public CompletableFuture<String> cacheRequestAsync(String request, Callback callback) {
+        AsyncRedis async = connections.async();
+        return requestClassifier.canCacheAsync(async, request).thenCompose(cacheable -> {
+            // 对于不能被缓存的请求，直接调用回调函数
+            if (!cacheable) {
+                return callback != null
+                    ? async.supplyBlocking(() -> callback.call(request)) : CompletableFuture.completedFuture(null);
+            }
+
+            String pageKey = "cache:" + hashRequest(request);
+            String content = pageCache.get(pageKey);
+            if (content != null) {
+                return CompletableFuture.completedFuture(content);
+            }
+
+            // 缺少 zstd 字典的页面视为不存在，交给同步的 loadPage 加载字典之后读取
+            return async.execute(batch -> readPage(batch, pageKey)).thenCompose(page -> {
+                if (callback == null || (page.exists() && !shouldRefreshEarly(page))) {
+                    return CompletableFuture.completedFuture(page.content());
+                }
+                return async.supplyBlocking(() -> connections.execute(
+                    jedis -> loadPage(jedis, pageKey, request, callback, page.content())));
+            });
+        });
     }
 
-    public boolean canCache(Jedis jedis, String request) {
+    public NearCache getPageCache() {
+        return pageCache;
+    }
+
+    /**
+     * 开启 XFetch 形式的提前刷新，beta 越大越早刷新，0 表示关闭（默认）
+     */
+    public void setEarlyRefreshBeta(double earlyRefreshBeta) {
+        this.earlyRefreshBeta = earlyRefreshBeta;
+    }
+
+    /**
+     * 更换页面的编码方式，例如 new PageCodec(Integer.MAX_VALUE) 关闭压缩；已经写入的页面仍然可以被读取
+     */
+    public void setPageCodec(PageCodec pageCodec) {
+        this.pageCodec = pageCodec;
+    }
+
+    /**
+     * 用样本页面训练 zstd 字典并开始用它压缩页面
+     *
+     * 字典保存在 redis 中，其他节点读到用它压缩的页面时会自动加载；其他节点调用 {@link #usePageDictionary(Jedis)} 之后，写入的页面也使用这个字典
+     *
+     * @return 字典 id
+     */
+    public long trainPageDictionary(Jedis jedis, Collection<String> samples, int dictionarySize) {
+        byte[] dictionary = PageCodec.trainDictionary(samples, dictionarySize);
+        long id = PageCodec.getDictionaryId(dictionary);
+        Pipeline pipeline = jedis.pipelined();
+        pipeline.hset(SafeEncoder.encode(PAGE_DICTIONARIES_KEY), SafeEncoder.encode(String.valueOf(id)), dictionary);
+        pipeline.hset(PAGE_DICTIONARIES_KEY, CURRENT_PAGE_DICTIONARY, String.valueOf(id));
+        pipeline.sync();
+        pageCodec.useDictionary(dictionary, PAGE_DICTIONARY_LEVEL);
+        return id;
+    }
+
+    /**
+     * 使用 redis 中当前的 zstd 字典压缩页面，还没有训练过字典时返回 false
+     */
+    public boolean usePageDictionary(Jedis jedis) {
+        String id = jedis.hget(PAGE_DICTIONARIES_KEY, CURRENT_PAGE_DICTIONARY);
+        byte[] dictionary = id != null ? loadPageDictionary(jedis, Long.parseLong(id)) : null;
+        if (dictionary == null) {
+            return false;
+        }
+        pageCodec.useDictionary(dictionary, PAGE_DICTIONARY_LEVEL);
+        return true;
+    }
+
+    /**
+     * 从 redis 读取的页面以及它的剩余生存时间和生成耗时
+     *
+     * 页面保持编码后的字节，需要字符串时才解码，解码之后按页面的剩余生存时间放入近端缓存
+     */
+    private class CachedPage {
+
+        private final String pageKey;
+        private final byte[] value;
+        private final PageCodec codec;
+        private final long ttlMillis;
+        private final long deltaMillis;
+        private final long version;
+        private String content;
+
+        private CachedPage(String pageKey, byte[] value, PageCodec codec, long ttlMillis, long deltaMillis,
+            long version) {
+            this.pageKey = pageKey;
+            this.value = value;
+            this.codec = codec;
+            this.ttlMillis = ttlMillis;
+            this.deltaMillis = deltaMillis;
+            this.version = version;
+        }
+
+        /**
+         * 页面存在并且可以解码，缺少压缩时使用的 zstd 字典时视为不存在
+         */
+        private boolean exists() {
+            return value != null && codec.canDecode(value);
+        }
+
+        private String content() {
+            if (content == null && exists()) {
+                content = codec.decode(value);
+                // 开启提前刷新时，近端缓存的副本要早于 redis 中的页面过期，这样过期前的这段时间里的请求才有机会提前刷新
+                double beta = earlyRefreshBeta;
+                long earlyMillis = beta > 0 ? (long) (deltaMillis * beta * 3) : 0;
+                // 读取之后收到过这个页面的失效通知时不放入，避免旧页面覆盖其他节点刚写入的新页面
+                pageCache.putIfNotInvalidated(pageKey, content, ttlMillis - earlyMillis, version);
+            }
+            return content;
+        }
+    }
+
+    /**
+     * 从 redis 读取页面，页面使用本地还没有的 zstd 字典压缩时顺带从 redis 加载字典
+     */
+    private CachedPage readPage(Jedis jedis, String pageKey) {
+        Pipeline pipeline = jedis.pipelined();
+        Supplier<CachedPage> supplier = readPage(pipeline, pageKey);
+        pipeline.sync();
+        CachedPage page = supplier.get();
+        if (page.value != null && !page.codec.canDecode(page.value)) {
+            byte[] dictionary = loadPageDictionary(jedis, page.codec.requiredDictionaryId(page.value));
+            if (dictionary != null) {
+                page.codec.addDictionary(dictionary);
+            }
+        }
+        return page;
+    }
+
+    private static byte[] loadPageDictionary(Jedis jedis, long id) {
+        return jedis.hget(SafeEncoder.encode(PAGE_DICTIONARIES_KEY), SafeEncoder.encode(String.valueOf(id)));
+    }
+
+    /**
+     * 把读取页面的命令排入流水线，返回在流水线执行之后读取结果的函数
+     */
+    private Supplier<CachedPage> readPage(Pipeline pipeline, String pageKey) {
+        // 在 GET 之前记录失效版本号
+        long version = pageCache.version(pageKey);
+        Response<byte[]> page = pipeline.get(SafeEncoder.encode(pageKey));
+        Response<Long> ttl = pipeline.ttl(pageKey);
+        Response<String> delta = pipeline.get("delta:" + pageKey);
+        PageCodec codec = pageCodec;
+        return () -> new CachedPage(pageKey, page.get(), codec, Math.max(0, ttl.get()) * 1000,
+            delta.get() != null ? Long.parseLong(delta.get()) : 0, version);
+    }
+
+    private static boolean writeContent(String content, OutputStream out) throws IOException {
+        if (content == null) {
+            return false;
+        }
+        // 按块编码写出，不生成整个页面的 byte[]
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        writer.write(content);
+        writer.flush();
+        return true;
+    }
+
+    /**
+     * XFetch：生成耗时越长、剩余生存时间越短，提前刷新的概率越大
+     */
+    private boolean shouldRefreshEarly(CachedPage page) {
+        double beta = earlyRefreshBeta;
+        if (beta <= 0 || page.deltaMillis <= 0) {
+            return false;
+        }
+        double random = 1 - ThreadLocalRandom.current().nextDouble();
+        return -page.deltaMillis * beta * Math.log(random) >= page.ttlMillis;
+    }
+
+    /**
+     * 生成页面：进程内同一个页面只有一个线程负责生成，其他线程等待同一个结果；
+     * 跨节点通过 redis 中的租约键保证只有一个节点调用回调函数
+     *
+     * stale 不为 null 时表示这是一次提前刷新，已经有其他线程或节点在生成时直接返回 stale
+     */
+    private String loadPage(Jedis jedis, String pageKey, String request, Callback callback, String stale) {
+        CompletableFuture<String> flight = new CompletableFuture<>();
+        CompletableFuture<String> existing = inflight.putIfAbsent(pageKey, flight);
+        if (existing != null) {
+            if (stale != null) {
+                return stale;
+            }
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+
+        long start = System.nanoTime();
+        long trips = Metrics.roundTrips(jedis);
         try {
-            URL url = new URL(request);
-            Map<String, String> params = new HashMap<>();
-            if (null != url.getQuery()) {
-                for (String param : url.getQuery().split("&")) {
-                    String[] pair = param.split("=", 2);
-                    params.put(pair[0], param.length() == 2 ? pair[1] : null);
+            String content = renderWithLease(jedis, pageKey, request, callback, stale);
+            flight.complete(content);
+            return content;
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inflight.remove(pageKey, flight);
+            LOAD_PAGE.record(start, jedis, trips);
+        }
+    }
+
+    private String renderWithLease(Jedis jedis, String pageKey, String request, Callback callback, String stale) {
+        String leaseKey = "lease:" + pageKey;
+        String token = UUID.randomUUID().toString();
+        List<String> keys = Arrays.asList(pageKey, leaseKey);
+        long deadline = System.currentTimeMillis() + PAGE_LEASE_MILLIS * 2;
+        boolean force = stale != null;
+
+        while (true) {
+            List<String> args = Arrays.asList(token, String.valueOf(PAGE_LEASE_MILLIS), force ? "1" : "0");
+            List<String> result = ACQUIRE_PAGE_LEASE_SCRIPT.evalForList(jedis, keys, args);
+            if ("page".equals(result.get(0))) {
+                // 页面可能是压缩后的字节，脚本的回复会按字符串解码，所以单独读取
+                CachedPage page = readPage(jedis, pageKey);
+                if (page.exists()) {
+                    return page.content();
+                }
+                if (page.value != null) {
+                    // 页面存在但是无法解码（压缩时使用的字典已经不在 redis 中），当作未命中，获取租约重新生成，
+                    // 否则脚本会一直返回 page，所有节点都在轮询而没有节点生成页面
+                    force = true;
+                    continue;
                 }
+            } else if ("lease".equals(result.get(0))) {
+                break;
+            } else if (stale == null) {
+                // 其他节点正在重新生成，之后先检查它写入的页面能否解码
+                force = false;
             }
-            String itemId = extractItemId(params);
-            if (itemId == null || isDynamic(params)) {
-                return false;
+            // 其他节点正在生成页面，或者页面刚刚过期
+            if (stale != null) {
+                return stale;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                // 持有租约的节点迟迟没有写入页面，不再等待，自行生成
+                return callback.call(request);
+            }
+            try {
+                Thread.sleep(PAGE_LEASE_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return callback.call(request);
             }
-            Long rank = jedis.zrank("viewed:", itemId);
-            return rank != null && rank < 10000;
-        } catch (MalformedURLException e) {
-            return false;
         }
+
+        try {
+            long start = System.currentTimeMillis();
+            String content = callback.call(request);
+            // 将新生成的页面放到缓存里面
+            writePage(jedis, pageKey, content, System.currentTimeMillis() - start);
+            return content;
+        } finally {
+            RELEASE_PAGE_LEASE_SCRIPT.eval(jedis, Collections.singletonList(leaseKey), Collections.singletonList(token));
+        }
+    }
+
+    /**
+     * 把页面和生成耗时写入 redis 和近端缓存，并通知其他节点删除旧的页面
+     */
+    private void writePage(Jedis jedis, String pageKey, String content, long deltaMillis) {
+        // 写入之后其他节点又重写了这个页面时，本地不再缓存自己写入的版本
+        long version = pageCache.version(pageKey);
+        Pipeline pipeline = jedis.pipelined();
+        pipeline.setex(SafeEncoder.encode(pageKey), PAGE_CACHE_SECONDS, pageCodec.encode(content));
+        pipeline.setex("delta:" + pageKey, PAGE_CACHE_SECONDS, String.valueOf(deltaMillis));
+        pipeline.publish(NearCache.INVALIDATION_CHANNEL, pageCache.invalidationMessage(pageKey));
+        pipeline.sync();
+        pageCache.putIfNotInvalidated(pageKey, content, PAGE_CACHE_SECONDS * 1000L, version);
+    }
+
+    public boolean canCache(Jedis jedis, String request) {
+        return requestClassifier.canCache(jedis, request);
+    }
+
+    public RequestClassifier getRequestClassifier() {
+        return requestClassifier;
     }
 
     public boolean isDynamic(Map<String, String> params) {
@@ -376,71 +1446,193 @@ public class Chapter02 {
     }
 
     public String hashRequest(String request) {
-        return String.valueOf(request.hashCode());
+        return requestHasher.hash(request);
+    }
+
+    /**
+     * 替换计算页面缓存键的散列算法，例如使用 {@link RequestHasher.Canonicalizing} 让等价的地址共用一个缓存页面
+     */
+    public void setRequestHasher(RequestHasher requestHasher) {
+        this.requestHasher = requestHasher;
+    }
+
+    public void scheduleRowCache(String rowId, int delay) {
+        connections.execute(jedis -> {
+            scheduleRowCache(jedis, rowId, delay);
+            return null;
+        });
     }
 
     public void scheduleRowCache(Jedis jedis, String rowId, int delay) {
         // 先设置数据行的延迟值
         jedis.zadd("delay:", delay, rowId);
-        // 立即对需要缓存的数据行进行调度
-        jedis.zadd("schedule:", System.currentTimeMillis() / 1000, rowId);
+        // 立即对需要缓存的数据行进行调度，调度时间精确到毫秒
+        jedis.zadd("schedule:", System.currentTimeMillis(), rowId);
+        // 唤醒本进程中正在等待的缓存线程
+        rowScheduleVersion.incrementAndGet();
+        signalRowScheduled();
     }
 
-    public class CacheRowsThread extends Thread {
+    private void signalRowScheduled() {
+        rowScheduleLock.lock();
+        try {
+            rowScheduled.signalAll();
+        } finally {
+            rowScheduleLock.unlock();
+        }
+    }
 
-        private Jedis jedis;
-        private boolean quit;
+    /**
+     * 最近一批数据行的调度延迟：实际刷新时间和应该刷新时间之间的差值
+     */
+    public long getRowCacheLagMillis() {
+        return rowCacheLagMillis;
+    }
+
+    /**
+     * 已经刷新的数据行总数
+     */
+    public long getRefreshedRows() {
+        return refreshedRows.sum();
+    }
+
+    public Inventory getCachedRow(String rowId) {
+        return connections.execute(jedis -> getCachedRow(jedis, rowId));
+    }
+
+    /**
+     * 读取并解码数据行的缓存值，没有缓存时返回 null
+     */
+    public Inventory getCachedRow(Jedis jedis, String rowId) {
+        byte[] value = jedis.get(SafeEncoder.encode("inv:" + rowId));
+        return value != null ? rowCodec.decode(value) : null;
+    }
+
+    /**
+     * 更换数据行缓存值的编码方式，已经写入的值在下一次刷新之前仍然可以被读取
+     */
+    public void setRowCodec(RowCodec rowCodec) {
+        this.rowCodec = rowCodec;
+    }
+
+    /**
+     * 缓存数据行的工作线程，可以在一个或多个进程中同时运行多个
+     *
+     * 每次用脚本原子地认领一批到期的数据行（认领时直接把它们的调度时间推迟到下一个周期），因此同一行不会被重复刷新；
+     * 一批数据行的缓存值通过一个流水线写入，没有到期的数据行时休眠到下一个到期时间，调度新的数据行时会被提前唤醒
+     */
+    public class CacheRowsThread extends WorkerRuntime.BackgroundWorker {
+
+        private final int batchSize;
+        private final long maxIdleMillis;
+        private final List<String> keys = Arrays.asList("schedule:", "delay:");
+        private volatile boolean quit;
 
         public CacheRowsThread() {
-            this.jedis = new Jedis("localhost");
-            this.jedis.select(15);
+            this(100, 1000);
+        }
+
+        /**
+         * @param batchSize     每次认领的最大行数
+         * @param maxIdleMillis 最长的休眠时间，其他进程调度的新数据行最多延迟这么久被发现
+         */
+        public CacheRowsThread(int batchSize, long maxIdleMillis) {
+            super("cache-rows", false);
+            this.batchSize = batchSize;
+            this.maxIdleMillis = maxIdleMillis;
         }
 
+        @Override
         public void quit() {
             quit = true;
+            signalRowScheduled();
+        }
+
+        /**
+         * 认领并刷新一批在 nowMillis 之前到期的数据行，返回刷新的行数
+         */
+        public int refreshDueRows(long nowMillis) {
+            List<String> claimed = connections.execute(jedis -> refreshDueRows(jedis, keys, nowMillis));
+            return Integer.parseInt(claimed.get(1));
         }
 
         @Override
-        public void run() {
-            Gson gson = new Gson();
+        protected void work() {
             while (!quit) {
-                // 尝试获取下一个需要被缓存的数据行以及该行的调度时间戳，命令会返回一个包含零个或者一个 Tuple 类的列表
-                Set<Tuple> range = jedis.zrangeWithScores("schedule:", 0, 0);
-                Tuple next = range.size() > 0 ? range.iterator().next() : null;
-
-                long now = System.currentTimeMillis() / 1000;
-
-                // 暂时没有行需要被缓存，休眠 50 毫秒后重试
-                if (next == null || next.getScore() > now) {
-                    try {
-                        sleep(50);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                    }
-                    continue;
+                long version = rowScheduleVersion.get();
+                long now = System.currentTimeMillis();
+
+                List<String> claimed;
+                try {
+                    claimed = connections.execute(jedis -> refreshDueRows(jedis, keys, now));
+                } catch (RuntimeException e) {
+                    System.err.println("Failed to refresh cached rows: " + e);
+                    claimed = Arrays.asList("", "0");
                 }
 
-                String rowId = next.getElement();
-
-                // 提前获取下一次调度的延迟时间
-                double delay = jedis.zscore("delay:", rowId);
-
-                // 如果延迟值小于或等于 0
-                if (delay <= 0) {
-                    // 不必再缓存这个行，将它从缓存中移除
-                    jedis.zrem("delay:", rowId);
-                    jedis.zrem("schedule:", rowId);
-                    jedis.del("inv:" + rowId);
+                int rows = Integer.parseInt(claimed.get(1));
+                if (rows == batchSize) {
+                    // 可能还有到期的数据行
                     continue;
                 }
 
-                // 读取数据行
-                Inventory row = Inventory.get(rowId);
+                // 休眠到下一个到期时间
+                String next = claimed.get(0);
+                long wait = next.isEmpty()
+                    ? maxIdleMillis : Math.min(maxIdleMillis, (long) Double.parseDouble(next) - System.currentTimeMillis());
+                if (wait <= 0) {
+                    continue;
+                }
+                rowScheduleLock.lock();
+                try {
+                    if (!quit && rowScheduleVersion.get() == version) {
+                        rowScheduled.await(wait, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    rowScheduleLock.unlock();
+                }
+            }
+        }
 
-                //更新调度时间并设置缓存值
-                jedis.zadd("schedule:", now + delay, rowId);
-                jedis.set("inv:" + rowId, gson.toJson(row));
+        /**
+         * 认领一批到期的数据行并刷新它们的缓存，返回认领脚本的结果
+         */
+        private List<String> refreshDueRows(Jedis jedis, List<String> keys, long now) {
+            // 认领一批到期的数据行，返回下一个到期时间，以及每个被认领的行和它原来的调度时间
+            long start = System.nanoTime();
+            long trips = Metrics.roundTrips(jedis);
+            List<String> claimed = CLAIM_DUE_ROWS_SCRIPT.evalForList(jedis, keys,
+                Arrays.asList(String.valueOf(now), String.valueOf(batchSize)));
+
+            int rows = Integer.parseInt(claimed.get(1));
+            int end = 2 + rows * 2;
+            if (claimed.size() > 2) {
+                // 读取数据行并通过一个流水线设置缓存值，移除调度的行在这些写入之后删除缓存
+                RowCodec codec = rowCodec;
+                Pipeline pipeline = jedis.pipelined();
+                long lag = 0;
+                for (int i = 2; i < end; i += 2) {
+                    String rowId = claimed.get(i);
+                    long rowLag = now - (long) Double.parseDouble(claimed.get(i + 1));
+                    ROW_SCHEDULE_LAG.record(TimeUnit.MILLISECONDS.toNanos(rowLag));
+                    lag = Math.max(lag, rowLag);
+                    Inventory row = Inventory.get(rowId);
+                    pipeline.set(SafeEncoder.encode("inv:" + rowId), codec.encode(row));
+                }
+                for (int i = end; i < claimed.size(); i++) {
+                    pipeline.del("inv:" + claimed.get(i));
+                }
+                pipeline.sync();
+                if (rows > 0) {
+                    rowCacheLagMillis = lag;
+                    refreshedRows.add(rows);
+                }
             }
+            REFRESH_ROWS.record(start, jedis, trips);
+            return claimed;
         }
     }
 
@@ -456,8 +1648,34 @@ public class Chapter02 {
             this.time = System.currentTimeMillis() / 1000;
         }
 
+        /**
+         * 由 {@link RowCodec} 解码时使用
+         */
+        Inventory(String id, String data, long time) {
+            this.id = id;
+            this.data = data;
+            this.time = time;
+        }
+
         public static Inventory get(String id) {
             return new Inventory(id);
         }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getData() {
+            return data;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public String toString() {
+            return "Inventory{id=" + id + ", data=" + data + ", time=" + time + "}";
+        }
     }
 }
@@ -0,0 +1,98 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内的增量合并计数器
+ *
+ * 热点键上的大量自增先在本地累加，再由调用方周期性地取出（{@link #drain()}）合并后的增量，批量写入 redis
+ *
+ * 每个键的计数使用分段、无锁的 LongAdder；drain 时整体切换到新的一代计数器，并等待仍在写旧一代的线程完成，
+ * 因此增量既不会丢失也不会被重复取出，已经取出的键也不会在内存中一直保留
+ *
+ * @author 黄学维
+ */
+public class CoalescingCounters {
+
+    private static final class Generation {
+
+        private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+        /**
+         * 正在向这一代写入的线程数
+         */
+        private final LongAdder writers = new LongAdder();
+
+        /**
+         * 这一代第一次写入的时间，0 表示还没有写入
+         */
+        private final AtomicLong firstAddMillis = new AtomicLong();
+    }
+
+    private final AtomicReference<Generation> current = new AtomicReference<>(new Generation());
+
+    /**
+     * 累加一个增量，返回这是否为当前这一代的第一次写入，即写入之前没有待取出的增量
+     */
+    public boolean add(String key, long delta) {
+        while (true) {
+            Generation generation = current.get();
+            generation.writers.increment();
+            try {
+                // 在登记为写入者之后这一代已经被切换，改为写入新的一代
+                if (current.get() != generation) {
+                    continue;
+                }
+                LongAdder counter = generation.counters.get(key);
+                if (counter == null) {
+                    counter = generation.counters.computeIfAbsent(key, k -> new LongAdder());
+                }
+                counter.add(delta);
+                return generation.firstAddMillis.get() == 0
+                    && generation.firstAddMillis.compareAndSet(0, System.currentTimeMillis());
+            } finally {
+                generation.writers.decrement();
+            }
+        }
+    }
+
+    public boolean increment(String key) {
+        return add(key, 1);
+    }
+
+    /**
+     * 当前累积了增量的键数量
+     */
+    public int size() {
+        return current.get().counters.size();
+    }
+
+    /**
+     * 当前最早一次未取出的增量的写入时间，没有待取出的增量时返回 0
+     */
+    public long oldestPendingMillis() {
+        return current.get().firstAddMillis.get();
+    }
+
+    /**
+     * 取出并清空所有累积的增量，合并后为 0 的键不会返回
+     */
+    public Map<String, Long> drain() {
+        Generation old = current.getAndSet(new Generation());
+        while (old.writers.sum() != 0) {
+            Thread.yield();
+        }
+
+        Map<String, Long> deltas = new HashMap<>(Math.max(16, old.counters.size() * 2));
+        for (Map.Entry<String, LongAdder> entry : old.counters.entrySet()) {
+            long delta = entry.getValue().sum();
+            if (delta != 0) {
+                deltas.put(entry.getKey(), delta);
+            }
+        }
+        return deltas;
+    }
+}
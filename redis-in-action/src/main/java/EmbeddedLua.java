@@ -0,0 +1,270 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.OneArgFunction;
+import org.luaj.vm2.lib.PackageLib;
+import org.luaj.vm2.lib.StringLib;
+import org.luaj.vm2.lib.TableLib;
+import org.luaj.vm2.lib.VarArgFunction;
+import org.luaj.vm2.lib.jse.JseBaseLib;
+import org.luaj.vm2.lib.jse.JseMathLib;
+
+/**
+ * {@link EmbeddedRedis} 的脚本引擎，基于 luaj 执行 eval/evalsha
+ *
+ * 提供 redis.call、redis.pcall、redis.error_reply、redis.status_reply 和 redis.sha1hex，
+ * 类型转换规则和 redis 保持一致：整数回复 <-> number，批量回复 <-> string，nil <-> false，多条回复 <-> table，
+ * 状态回复 <-> {ok=...}，错误回复 <-> {err=...}；脚本返回的 number 会被截断为整数
+ *
+ * 只加载 base、table、string、math 库，不开放 io、os 等库
+ *
+ * @author 黄学维
+ */
+class EmbeddedLua {
+
+    private final EmbeddedRedis redis;
+
+    private final Globals globals = new Globals();
+
+    /**
+     * 已编译的脚本，sha1 -> 函数
+     */
+    private final Map<String, LuaValue> scripts = new HashMap<>();
+
+    /**
+     * 正在执行脚本的会话，所有调用都在 {@link EmbeddedRedis} 的锁内进行
+     */
+    private EmbeddedRedis.Session current;
+
+    EmbeddedLua(EmbeddedRedis redis) {
+        this.redis = redis;
+
+        globals.load(new JseBaseLib());
+        globals.load(new PackageLib());
+        globals.load(new TableLib());
+        globals.load(new StringLib());
+        globals.load(new JseMathLib());
+        LoadState.install(globals);
+        LuaC.install(globals);
+        // redis 内置的是 lua 5.1，unpack 仍是全局函数
+        if (globals.get("unpack").isnil()) {
+            globals.set("unpack", globals.get("table").get("unpack"));
+        }
+
+        LuaTable api = new LuaTable();
+        api.set("call", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return redisCall(args, false);
+            }
+        });
+        api.set("pcall", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return redisCall(args, true);
+            }
+        });
+        api.set("error_reply", new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue message) {
+                LuaTable reply = new LuaTable();
+                reply.set("err", message);
+                return reply;
+            }
+        });
+        api.set("status_reply", new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue message) {
+                LuaTable reply = new LuaTable();
+                reply.set("ok", message);
+                return reply;
+            }
+        });
+        api.set("sha1hex", new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue source) {
+                return LuaValue.valueOf(sha1Hex(toBytes(source)));
+            }
+        });
+        globals.set("redis", api);
+    }
+
+    String load(String source) {
+        String sha1 = sha1Hex(EmbeddedRedis.bytes(source));
+        if (!scripts.containsKey(sha1)) {
+            try {
+                scripts.put(sha1, globals.load(source, "@user_script"));
+            } catch (LuaError e) {
+                throw new EmbeddedRedis.RedisError("ERR Error compiling script (new function): " + e.getMessage());
+            }
+        }
+        return sha1;
+    }
+
+    boolean exists(String sha1) {
+        return scripts.containsKey(sha1.toLowerCase());
+    }
+
+    void flush() {
+        scripts.clear();
+    }
+
+    Object eval(EmbeddedRedis.Session session, String source, List<byte[]> args) {
+        return run(session, load(source), args);
+    }
+
+    Object evalSha(EmbeddedRedis.Session session, String sha1, List<byte[]> args) {
+        if (!exists(sha1)) {
+            throw new EmbeddedRedis.RedisError("NOSCRIPT No matching script. Please use EVAL.");
+        }
+        return run(session, sha1.toLowerCase(), args);
+    }
+
+    private Object run(EmbeddedRedis.Session session, String sha1, List<byte[]> args) {
+        int numKeys;
+        try {
+            numKeys = Integer.parseInt(EmbeddedRedis.str(args.get(0)));
+        } catch (RuntimeException e) {
+            throw new EmbeddedRedis.RedisError("ERR value is not an integer or out of range");
+        }
+        if (numKeys < 0 || numKeys > args.size() - 1) {
+            throw new EmbeddedRedis.RedisError("ERR Number of keys can't be greater than number of args");
+        }
+        LuaTable keys = new LuaTable();
+        LuaTable argv = new LuaTable();
+        for (int i = 1; i < args.size(); i++) {
+            LuaString value = LuaString.valueOf(args.get(i));
+            if (i <= numKeys) {
+                keys.set(i, value);
+            } else {
+                argv.set(i - numKeys, value);
+            }
+        }
+        globals.set("KEYS", keys);
+        globals.set("ARGV", argv);
+
+        current = session;
+        try {
+            return toRedis(scripts.get(sha1).call());
+        } catch (LuaError e) {
+            if (e.getCause() instanceof EmbeddedRedis.RedisError) {
+                throw (EmbeddedRedis.RedisError) e.getCause();
+            }
+            throw new EmbeddedRedis.RedisError("ERR Error running script (call to f_" + sha1 + "): " + e.getMessage());
+        } finally {
+            current = null;
+        }
+    }
+
+    private LuaValue redisCall(Varargs args, boolean protect) {
+        List<byte[]> argv = new ArrayList<>(args.narg());
+        for (int i = 1; i <= args.narg(); i++) {
+            LuaValue arg = args.arg(i);
+            if (arg.type() != LuaValue.TSTRING && arg.type() != LuaValue.TNUMBER) {
+                throw new LuaError("Lua redis() command arguments must be strings or integers");
+            }
+            argv.add(toBytes(arg));
+        }
+        try {
+            return toLua(redis.call(current, argv));
+        } catch (EmbeddedRedis.RedisError e) {
+            if (protect) {
+                LuaTable reply = new LuaTable();
+                reply.set("err", LuaValue.valueOf(e.getMessage()));
+                return reply;
+            }
+            LuaError error = new LuaError(e.getMessage());
+            error.initCause(e);
+            throw error;
+        }
+    }
+
+    private static LuaValue toLua(Object reply) {
+        if (reply == null) {
+            return LuaValue.FALSE;
+        }
+        if (reply instanceof Long) {
+            return LuaValue.valueOf((double) (Long) reply);
+        }
+        if (reply instanceof byte[]) {
+            return LuaString.valueOf((byte[]) reply);
+        }
+        if (reply instanceof EmbeddedRedis.Status) {
+            LuaTable status = new LuaTable();
+            status.set("ok", LuaValue.valueOf(((EmbeddedRedis.Status) reply).getValue()));
+            return status;
+        }
+        if (reply instanceof List) {
+            LuaTable table = new LuaTable();
+            int i = 1;
+            for (Object element : (List<?>) reply) {
+                table.set(i++, toLua(element));
+            }
+            return table;
+        }
+        throw new IllegalArgumentException("unsupported reply " + reply.getClass());
+    }
+
+    private static Object toRedis(LuaValue value) {
+        switch (value.type()) {
+            case LuaValue.TNUMBER:
+                return (long) value.todouble();
+            case LuaValue.TSTRING:
+                return toBytes(value);
+            case LuaValue.TBOOLEAN:
+                return value.toboolean() ? 1L : null;
+            case LuaValue.TTABLE:
+                LuaValue err = value.get("err");
+                if (err.isstring()) {
+                    throw new EmbeddedRedis.RedisError(err.tojstring());
+                }
+                LuaValue ok = value.get("ok");
+                if (ok.isstring()) {
+                    return new EmbeddedRedis.Status(ok.tojstring());
+                }
+                List<Object> list = new ArrayList<>();
+                for (int i = 1; !value.get(i).isnil(); i++) {
+                    list.add(toRedis(value.get(i)));
+                }
+                return list;
+            default:
+                return null;
+        }
+    }
+
+    private static byte[] toBytes(LuaValue value) {
+        if (value.type() == LuaValue.TNUMBER) {
+            double number = value.todouble();
+            return EmbeddedRedis.bytes(number == Math.rint(number) && Math.abs(number) < 1e15
+                ? String.valueOf((long) number) : String.valueOf(number));
+        }
+        LuaString string = value.checkstring();
+        byte[] bytes = new byte[string.length()];
+        string.copyInto(0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    private static String sha1Hex(byte[] source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(source);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,1420 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 进程内的 redis 兼容引擎，实现了本项目用到的命令子集，用于离线测试、基准测试和单机嵌入模式
+ *
+ * 支持的数据类型：字符串（含 setex/expire、incr、位图）、散列、集合、有序集合（跳跃表 + 散列索引，含 zinterstore/zunionstore 的聚合方式、
+ * zrank、zremrangebyrank）、发布订阅、multi/exec 以及 eval/evalsha（由 {@link EmbeddedLua} 执行）
+ *
+ * 键、成员和字段在内部使用 ISO-8859-1 字符串保存，和字节一一对应，因此二进制的键和值也能原样存取；字符串类型的值直接保存为 byte[]
+ *
+ * 过期采用惰性删除加定期抽样删除（{@link #activeExpireCycle()}），和 redis 的策略一致
+ *
+ * 所有命令在同一把锁内串行执行，和 redis 的单线程模型一样，脚本和事务天然是原子的；
+ * 发布订阅的推送在锁内按顺序放入订阅者的待发送队列，释放锁之后再写出，慢的订阅者不会阻塞其他命令
+ *
+ * @author 黄学维
+ */
+public final class EmbeddedRedis {
+
+    public static final int DATABASES = 16;
+
+    /**
+     * 每次定期删除最多抽样的带过期时间的键数量
+     */
+    private static final int ACTIVE_EXPIRE_SAMPLES = 20;
+
+    /**
+     * 命令的参数个数（包括命令名），和 redis 的命令表一致：正数表示必须恰好这么多，负数表示至少这么多
+     */
+    private static final Map<String, Integer> ARITY = new HashMap<>();
+
+    static {
+        arity(-1, "PING", "QUIT", "FLUSHDB", "FLUSHALL", "UNSUBSCRIBE", "PUNSUBSCRIBE");
+        arity(1, "DBSIZE", "TIME", "MULTI", "EXEC", "DISCARD");
+        arity(2, "ECHO", "SELECT", "TYPE", "KEYS", "TTL", "PTTL", "PERSIST", "GET", "STRLEN", "INCR", "DECR",
+            "HGETALL", "HKEYS", "HVALS", "HLEN", "SMEMBERS", "SCARD", "ZCARD");
+        arity(-2, "DEL", "UNLINK", "EXISTS", "MGET", "BITCOUNT", "SCRIPT", "SUBSCRIBE", "PSUBSCRIBE");
+        arity(3, "RENAME", "EXPIRE", "PEXPIRE", "EXPIREAT", "SETNX", "GETSET", "INCRBY", "DECRBY", "GETBIT", "HGET",
+            "HEXISTS", "SISMEMBER", "ZSCORE", "ZRANK", "ZREVRANK", "PUBLISH");
+        arity(-3, "SET", "HMGET", "HDEL", "SADD", "SREM", "ZREM", "EVAL", "EVALSHA");
+        arity(4, "SETEX", "PSETEX", "SETBIT", "HSETNX", "HINCRBY", "ZINCRBY", "ZCOUNT", "ZREMRANGEBYRANK",
+            "ZREMRANGEBYSCORE");
+        arity(-4, "HSET", "HMSET", "ZADD", "ZRANGE", "ZREVRANGE", "ZRANGEBYSCORE", "ZREVRANGEBYSCORE", "ZINTERSTORE",
+            "ZUNIONSTORE");
+    }
+
+    /**
+     * 订阅类命令的回复通过 {@link Subscriber} 推送，不需要再写普通回复
+     */
+    public static final Object NO_REPLY = new Object();
+
+    /**
+     * 状态回复，例如 +OK
+     */
+    public static final class Status {
+
+        public static final Status OK = new Status("OK");
+        public static final Status QUEUED = new Status("QUEUED");
+        public static final Status PONG = new Status("PONG");
+
+        private final String value;
+
+        public Status(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+    }
+
+    /**
+     * 错误回复，消息以错误类型开头，例如 "ERR ..."、"WRONGTYPE ..."、"NOSCRIPT ..."
+     */
+    public static class RedisError extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public RedisError(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 订阅者，发布的消息以 ["message", channel, payload] 或 ["pmessage", pattern, channel, payload] 的形式推送
+     */
+    public interface Subscriber {
+
+        void push(List<Object> message);
+    }
+
+    /**
+     * 客户端会话，记录当前数据库、事务队列和订阅信息
+     */
+    public static class Session {
+
+        private int db;
+        private List<List<byte[]>> multi;
+        private boolean closed;
+        private final Subscriber subscriber;
+        private final Set<String> channels = new LinkedHashSet<>();
+        private final Set<String> patterns = new LinkedHashSet<>();
+
+        /**
+         * 在引擎的锁内排队、释放锁之后再推送给订阅者的消息
+         */
+        private final Queue<List<Object>> outbox = new ConcurrentLinkedQueue<>();
+
+        public Session(Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        public int getDb() {
+            return db;
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        public boolean isSubscribed() {
+            return !channels.isEmpty() || !patterns.isEmpty();
+        }
+    }
+
+    /**
+     * 一个数据库中键的过期时间，另外用一个列表索引所有带过期时间的键，定期删除时可以随机抽样
+     */
+    private static final class ExpireTable {
+
+        private final Map<String, Long> deadlines = new HashMap<>();
+
+        private final Map<String, Integer> positions = new HashMap<>();
+
+        private final List<String> keys = new ArrayList<>();
+
+        Long get(String key) {
+            return deadlines.get(key);
+        }
+
+        void put(String key, long when) {
+            if (deadlines.put(key, when) == null) {
+                positions.put(key, keys.size());
+                keys.add(key);
+            }
+        }
+
+        Long remove(String key) {
+            Long when = deadlines.remove(key);
+            if (when != null) {
+                // 用最后一个键填补被删除的位置
+                int position = positions.remove(key);
+                String last = keys.remove(keys.size() - 1);
+                if (position < keys.size()) {
+                    keys.set(position, last);
+                    positions.put(last, position);
+                }
+            }
+            return when;
+        }
+
+        void clear() {
+            deadlines.clear();
+            positions.clear();
+            keys.clear();
+        }
+
+        int size() {
+            return keys.size();
+        }
+
+        String randomKey(ThreadLocalRandom random) {
+            return keys.get(random.nextInt(keys.size()));
+        }
+    }
+
+    private final List<Map<String, Object>> dbs = new ArrayList<>(DATABASES);
+
+    private final List<ExpireTable> expires = new ArrayList<>(DATABASES);
+
+    private final Map<String, Set<Session>> channelSubscribers = new HashMap<>();
+
+    private final Map<String, Set<Session>> patternSubscribers = new HashMap<>();
+
+    private final EmbeddedLua lua = new EmbeddedLua(this);
+
+    /**
+     * 当前命令产生了推送的会话，命令执行完、释放锁之后由执行命令的线程推送
+     */
+    private final Set<Session> pendingPushes = new LinkedHashSet<>();
+
+    public EmbeddedRedis() {
+        for (int i = 0; i < DATABASES; i++) {
+            dbs.add(new HashMap<>());
+            expires.add(new ExpireTable());
+        }
+    }
+
+    public Session newSession() {
+        return new Session(null);
+    }
+
+    public Session newSession(Subscriber subscriber) {
+        return new Session(subscriber);
+    }
+
+    /**
+     * 执行一条命令，回复为 Long、byte[]、null、{@link Status} 或由这些类型组成的 List；出错时抛出 {@link RedisError}
+     *
+     * 命令产生的发布订阅推送在释放锁之后才写给订阅者
+     */
+    public Object execute(Session session, List<byte[]> argv) {
+        List<Session> receivers = null;
+        try {
+            synchronized (this) {
+                try {
+                    return executeLocked(session, argv);
+                } finally {
+                    receivers = new ArrayList<>(pendingPushes);
+                    pendingPushes.clear();
+                }
+            }
+        } finally {
+            deliver(receivers);
+        }
+    }
+
+    private Object executeLocked(Session session, List<byte[]> argv) {
+        if (argv.isEmpty()) {
+            throw new RedisError("ERR empty command");
+        }
+        String name = str(argv.get(0)).toUpperCase(Locale.ROOT);
+        checkArity(name, argv);
+        if (session.multi != null && !"EXEC".equals(name) && !"DISCARD".equals(name) && !"MULTI".equals(name)) {
+            session.multi.add(argv);
+            return Status.QUEUED;
+        }
+        return dispatchSafely(session, name, argv);
+    }
+
+    /**
+     * 在当前数据库中直接执行命令，供 lua 脚本中的 redis.call 使用
+     */
+    Object call(Session session, List<byte[]> argv) {
+        if (argv.isEmpty()) {
+            throw new RedisError("ERR Please specify at least one argument for this redis lib call");
+        }
+        String name = str(argv.get(0)).toUpperCase(Locale.ROOT);
+        switch (name) {
+            case "EVAL":
+            case "EVALSHA":
+            case "MULTI":
+            case "EXEC":
+            case "SUBSCRIBE":
+            case "PSUBSCRIBE":
+                throw new RedisError("ERR This Redis command is not allowed from scripts");
+            default:
+                checkArity(name, argv);
+                return dispatch(session, name, argv);
+        }
+    }
+
+    /**
+     * 定期删除：随机抽样检查每个数据库中带过期时间的键，过期比例超过 1/4 时继续抽样
+     */
+    public synchronized int activeExpireCycle() {
+        long now = System.currentTimeMillis();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int removed = 0;
+        for (int db = 0; db < DATABASES; db++) {
+            ExpireTable dbExpires = expires.get(db);
+            int expired;
+            do {
+                expired = 0;
+                int samples = Math.min(ACTIVE_EXPIRE_SAMPLES, dbExpires.size());
+                for (int i = 0; i < samples; i++) {
+                    String key = dbExpires.randomKey(random);
+                    if (dbExpires.get(key) <= now) {
+                        dbExpires.remove(key);
+                        dbs.get(db).remove(key);
+                        expired++;
+                    }
+                }
+                removed += expired;
+            } while (expired > ACTIVE_EXPIRE_SAMPLES / 4);
+        }
+        return removed;
+    }
+
+    public synchronized void unsubscribeAll(Session session) {
+        for (String channel : session.channels) {
+            removeSubscriber(channelSubscribers, channel, session);
+        }
+        for (String pattern : session.patterns) {
+            removeSubscriber(patternSubscribers, pattern, session);
+        }
+        session.channels.clear();
+        session.patterns.clear();
+    }
+
+    /**
+     * 执行命令，命令实现中意外的运行时异常（例如参数格式不对）也转换为错误回复，不会中断连接或者事务
+     */
+    private Object dispatchSafely(Session s, String name, List<byte[]> a) {
+        try {
+            return dispatch(s, name, a);
+        } catch (RedisError e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new RedisError("ERR " + e);
+        }
+    }
+
+    private Object dispatch(Session s, String name, List<byte[]> a) {
+        switch (name) {
+            // 连接与服务器
+            case "PING":
+                return a.size() > 1 ? a.get(1) : Status.PONG;
+            case "ECHO":
+                return a.get(1);
+            case "SELECT":
+                int db = (int) parseLong(a.get(1));
+                if (db < 0 || db >= DATABASES) {
+                    throw new RedisError("ERR DB index is out of range");
+                }
+                s.db = db;
+                return Status.OK;
+            case "QUIT":
+                s.closed = true;
+                return Status.OK;
+            case "FLUSHDB":
+                db(s).clear();
+                expires.get(s.db).clear();
+                return Status.OK;
+            case "FLUSHALL":
+                for (int i = 0; i < DATABASES; i++) {
+                    dbs.get(i).clear();
+                    expires.get(i).clear();
+                }
+                return Status.OK;
+            case "DBSIZE":
+                return (long) db(s).size();
+            case "TIME":
+                long micros = System.currentTimeMillis() * 1000;
+                return Arrays.<Object>asList(bytes(String.valueOf(micros / 1000000)), bytes(String.valueOf(micros % 1000000)));
+
+            // 键空间
+            case "DEL":
+            case "UNLINK":
+                return del(s, a);
+            case "EXISTS":
+                long exists = 0;
+                for (int i = 1; i < a.size(); i++) {
+                    exists += lookup(s, str(a.get(i))) != null ? 1 : 0;
+                }
+                return exists;
+            case "TYPE":
+                return new Status(type(lookup(s, key(a, 1))));
+            case "KEYS":
+                return keys(s, str(a.get(1)));
+            case "RENAME":
+                return rename(s, key(a, 1), key(a, 2));
+            case "EXPIRE":
+                return expire(s, key(a, 1), parseLong(a.get(2)) * 1000);
+            case "PEXPIRE":
+                return expire(s, key(a, 1), parseLong(a.get(2)));
+            case "EXPIREAT":
+                return expire(s, key(a, 1), parseLong(a.get(2)) * 1000 - System.currentTimeMillis());
+            case "TTL":
+                long pttl = pttl(s, key(a, 1));
+                return pttl < 0 ? pttl : (pttl + 500) / 1000;
+            case "PTTL":
+                return pttl(s, key(a, 1));
+            case "PERSIST":
+                return lookup(s, key(a, 1)) != null && expires.get(s.db).remove(key(a, 1)) != null ? 1L : 0L;
+
+            // 字符串
+            case "GET":
+                return getString(s, key(a, 1));
+            case "SET":
+                return set(s, a);
+            case "SETNX":
+                if (lookup(s, key(a, 1)) != null) {
+                    return 0L;
+                }
+                put(s, key(a, 1), a.get(2));
+                return 1L;
+            case "SETEX":
+                put(s, key(a, 1), a.get(3));
+                return expireOrDelete(s, key(a, 1), parseLong(a.get(2)) * 1000);
+            case "PSETEX":
+                put(s, key(a, 1), a.get(3));
+                return expireOrDelete(s, key(a, 1), parseLong(a.get(2)));
+            case "GETSET":
+                byte[] previous = getString(s, key(a, 1));
+                put(s, key(a, 1), a.get(2));
+                return previous;
+            case "MGET":
+                List<Object> values = new ArrayList<>();
+                for (int i = 1; i < a.size(); i++) {
+                    Object value = lookup(s, str(a.get(i)));
+                    values.add(value instanceof byte[] ? value : null);
+                }
+                return values;
+            case "STRLEN":
+                byte[] value = getString(s, key(a, 1));
+                return value == null ? 0L : (long) value.length;
+            case "INCR":
+                return incrBy(s, key(a, 1), 1);
+            case "DECR":
+                return incrBy(s, key(a, 1), -1);
+            case "INCRBY":
+                return incrBy(s, key(a, 1), parseLong(a.get(2)));
+            case "DECRBY":
+                return incrBy(s, key(a, 1), -parseLong(a.get(2)));
+            case "SETBIT":
+                return setBit(s, key(a, 1), parseLong(a.get(2)), parseLong(a.get(3)));
+            case "GETBIT":
+                return getBit(s, key(a, 1), parseLong(a.get(2)));
+            case "BITCOUNT":
+                return bitCount(getString(s, key(a, 1)));
+
+            // 散列
+            case "HSET":
+            case "HMSET":
+                if (a.size() % 2 != 0) {
+                    throw wrongArity(name);
+                }
+                Map<String, String> hash = hash(s, key(a, 1), true);
+                long added = 0;
+                for (int i = 2; i + 1 < a.size(); i += 2) {
+                    added += hash.put(str(a.get(i)), str(a.get(i + 1))) == null ? 1 : 0;
+                }
+                return "HMSET".equals(name) ? Status.OK : (Object) added;
+            case "HSETNX":
+                hash = hash(s, key(a, 1), true);
+                if (hash.containsKey(str(a.get(2)))) {
+                    return 0L;
+                }
+                hash.put(str(a.get(2)), str(a.get(3)));
+                return 1L;
+            case "HGET":
+                hash = hash(s, key(a, 1), false);
+                return hash == null ? null : bytes(hash.get(str(a.get(2))));
+            case "HMGET":
+                hash = hash(s, key(a, 1), false);
+                List<Object> fields = new ArrayList<>();
+                for (int i = 2; i < a.size(); i++) {
+                    fields.add(hash == null ? null : bytes(hash.get(str(a.get(i)))));
+                }
+                return fields;
+            case "HGETALL":
+                hash = hash(s, key(a, 1), false);
+                List<Object> all = new ArrayList<>();
+                if (hash != null) {
+                    for (Map.Entry<String, String> entry : hash.entrySet()) {
+                        all.add(bytes(entry.getKey()));
+                        all.add(bytes(entry.getValue()));
+                    }
+                }
+                return all;
+            case "HKEYS":
+            case "HVALS":
+                hash = hash(s, key(a, 1), false);
+                List<Object> parts = new ArrayList<>();
+                if (hash != null) {
+                    for (String part : "HKEYS".equals(name) ? hash.keySet() : hash.values()) {
+                        parts.add(bytes(part));
+                    }
+                }
+                return parts;
+            case "HDEL":
+                hash = hash(s, key(a, 1), false);
+                long deleted = 0;
+                for (int i = 2; hash != null && i < a.size(); i++) {
+                    deleted += hash.remove(str(a.get(i))) != null ? 1 : 0;
+                }
+                removeIfEmpty(s, key(a, 1), hash);
+                return deleted;
+            case "HLEN":
+                hash = hash(s, key(a, 1), false);
+                return hash == null ? 0L : (long) hash.size();
+            case "HEXISTS":
+                hash = hash(s, key(a, 1), false);
+                return hash != null && hash.containsKey(str(a.get(2))) ? 1L : 0L;
+            case "HINCRBY":
+                hash = hash(s, key(a, 1), true);
+                String current = hash.get(str(a.get(2)));
+                long incremented = (current == null ? 0 : parseLong(current)) + parseLong(a.get(3));
+                hash.put(str(a.get(2)), String.valueOf(incremented));
+                return incremented;
+
+            // 集合
+            case "SADD":
+                Set<String> set = set(s, key(a, 1), true);
+                added = 0;
+                for (int i = 2; i < a.size(); i++) {
+                    added += set.add(str(a.get(i))) ? 1 : 0;
+                }
+                return added;
+            case "SREM":
+                set = set(s, key(a, 1), false);
+                deleted = 0;
+                for (int i = 2; set != null && i < a.size(); i++) {
+                    deleted += set.remove(str(a.get(i))) ? 1 : 0;
+                }
+                removeIfEmpty(s, key(a, 1), set);
+                return deleted;
+            case "SISMEMBER":
+                set = set(s, key(a, 1), false);
+                return set != null && set.contains(str(a.get(2))) ? 1L : 0L;
+            case "SMEMBERS":
+                set = set(s, key(a, 1), false);
+                List<Object> members = new ArrayList<>();
+                if (set != null) {
+                    for (String member : set) {
+                        members.add(bytes(member));
+                    }
+                }
+                return members;
+            case "SCARD":
+                set = set(s, key(a, 1), false);
+                return set == null ? 0L : (long) set.size();
+
+            // 有序集合
+            case "ZADD":
+                return zadd(s, a);
+            case "ZINCRBY":
+                double score = zset(s, key(a, 1), true).incrBy(str(a.get(3)), parseDouble(a.get(2)));
+                return bytes(formatDouble(score));
+            case "ZSCORE":
+                EmbeddedSortedSet zset = zset(s, key(a, 1), false);
+                Double found = zset == null ? null : zset.score(str(a.get(2)));
+                return found == null ? null : bytes(formatDouble(found));
+            case "ZREM":
+                zset = zset(s, key(a, 1), false);
+                deleted = 0;
+                for (int i = 2; zset != null && i < a.size(); i++) {
+                    deleted += zset.remove(str(a.get(i))) ? 1 : 0;
+                }
+                removeIfEmpty(s, key(a, 1), zset);
+                return deleted;
+            case "ZCARD":
+                zset = zset(s, key(a, 1), false);
+                return zset == null ? 0L : (long) zset.size();
+            case "ZRANK":
+            case "ZREVRANK":
+                zset = zset(s, key(a, 1), false);
+                long rank = zset == null ? -1 : zset.rank(str(a.get(2)));
+                if (rank < 0) {
+                    return null;
+                }
+                return "ZRANK".equals(name) ? rank : zset.size() - 1 - rank;
+            case "ZRANGE":
+                return zrangeByRank(s, a, false);
+            case "ZREVRANGE":
+                return zrangeByRank(s, a, true);
+            case "ZRANGEBYSCORE":
+                return zrangeByScore(s, a, false);
+            case "ZREVRANGEBYSCORE":
+                return zrangeByScore(s, a, true);
+            case "ZCOUNT":
+                return (long) countByScore(s, key(a, 1), str(a.get(2)), str(a.get(3)));
+            case "ZREMRANGEBYRANK":
+                return zremRangeByRank(s, key(a, 1), parseLong(a.get(2)), parseLong(a.get(3)));
+            case "ZREMRANGEBYSCORE":
+                return zremRangeByScore(s, key(a, 1), str(a.get(2)), str(a.get(3)));
+            case "ZINTERSTORE":
+                return zstore(s, a, true);
+            case "ZUNIONSTORE":
+                return zstore(s, a, false);
+
+            // 事务
+            case "MULTI":
+                if (s.multi != null) {
+                    throw new RedisError("ERR MULTI calls can not be nested");
+                }
+                s.multi = new ArrayList<>();
+                return Status.OK;
+            case "EXEC":
+                if (s.multi == null) {
+                    throw new RedisError("ERR EXEC without MULTI");
+                }
+                List<List<byte[]>> queued = s.multi;
+                s.multi = null;
+                List<Object> replies = new ArrayList<>(queued.size());
+                for (List<byte[]> command : queued) {
+                    try {
+                        replies.add(dispatchSafely(s, str(command.get(0)).toUpperCase(Locale.ROOT), command));
+                    } catch (RedisError e) {
+                        replies.add(e);
+                    }
+                }
+                return replies;
+            case "DISCARD":
+                if (s.multi == null) {
+                    throw new RedisError("ERR DISCARD without MULTI");
+                }
+                s.multi = null;
+                return Status.OK;
+
+            // 脚本
+            case "EVAL":
+                return lua.eval(s, str(a.get(1)), a.subList(2, a.size()));
+            case "EVALSHA":
+                return lua.evalSha(s, str(a.get(1)), a.subList(2, a.size()));
+            case "SCRIPT":
+                return script(a);
+
+            // 发布订阅
+            case "PUBLISH":
+                return publish(str(a.get(1)), a.get(2));
+            case "SUBSCRIBE":
+            case "PSUBSCRIBE":
+                return subscribe(s, a, "PSUBSCRIBE".equals(name));
+            case "UNSUBSCRIBE":
+            case "PUNSUBSCRIBE":
+                return unsubscribe(s, a, "PUNSUBSCRIBE".equals(name));
+
+            default:
+                throw new RedisError("ERR unknown command '" + name.toLowerCase(Locale.ROOT) + "'");
+        }
+    }
+
+    // ------------------------------------------------------------------ 键空间
+
+    private Map<String, Object> db(Session s) {
+        return dbs.get(s.db);
+    }
+
+    private Object lookup(Session s, String key) {
+        Long when = expires.get(s.db).get(key);
+        if (when != null && when <= System.currentTimeMillis()) {
+            expires.get(s.db).remove(key);
+            dbs.get(s.db).remove(key);
+            return null;
+        }
+        return dbs.get(s.db).get(key);
+    }
+
+    private void put(Session s, String key, Object value) {
+        dbs.get(s.db).put(key, value);
+        expires.get(s.db).remove(key);
+    }
+
+    private void removeIfEmpty(Session s, String key, Object container) {
+        boolean empty = container instanceof Map ? ((Map<?, ?>) container).isEmpty()
+            : container instanceof Set ? ((Set<?>) container).isEmpty()
+            : container instanceof EmbeddedSortedSet && ((EmbeddedSortedSet) container).size() == 0;
+        if (empty) {
+            dbs.get(s.db).remove(key);
+            expires.get(s.db).remove(key);
+        }
+    }
+
+    private long del(Session s, List<byte[]> a) {
+        long deleted = 0;
+        for (int i = 1; i < a.size(); i++) {
+            String key = str(a.get(i));
+            if (lookup(s, key) != null) {
+                dbs.get(s.db).remove(key);
+                expires.get(s.db).remove(key);
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private static String type(Object value) {
+        if (value == null) {
+            return "none";
+        }
+        if (value instanceof byte[]) {
+            return "string";
+        }
+        if (value instanceof Map) {
+            return "hash";
+        }
+        if (value instanceof Set) {
+            return "set";
+        }
+        return "zset";
+    }
+
+    private List<Object> keys(Session s, String pattern) {
+        List<Object> keys = new ArrayList<>();
+        for (String key : new ArrayList<>(db(s).keySet())) {
+            if (lookup(s, key) != null && globMatch(pattern, 0, key, 0)) {
+                keys.add(bytes(key));
+            }
+        }
+        return keys;
+    }
+
+    private Object rename(Session s, String from, String to) {
+        Object value = lookup(s, from);
+        if (value == null) {
+            throw new RedisError("ERR no such key");
+        }
+        Long when = expires.get(s.db).remove(from);
+        dbs.get(s.db).remove(from);
+        put(s, to, value);
+        if (when != null) {
+            expires.get(s.db).put(to, when);
+        }
+        return Status.OK;
+    }
+
+    private long expire(Session s, String key, long millis) {
+        if (lookup(s, key) == null) {
+            return 0;
+        }
+        expireOrDelete(s, key, millis);
+        return 1;
+    }
+
+    private Object expireOrDelete(Session s, String key, long millis) {
+        if (millis <= 0) {
+            dbs.get(s.db).remove(key);
+            expires.get(s.db).remove(key);
+        } else {
+            expires.get(s.db).put(key, System.currentTimeMillis() + millis);
+        }
+        return Status.OK;
+    }
+
+    private long pttl(Session s, String key) {
+        if (lookup(s, key) == null) {
+            return -2;
+        }
+        Long when = expires.get(s.db).get(key);
+        return when == null ? -1 : Math.max(0, when - System.currentTimeMillis());
+    }
+
+    // ------------------------------------------------------------------ 字符串
+
+    private byte[] getString(Session s, String key) {
+        Object value = lookup(s, key);
+        if (value != null && !(value instanceof byte[])) {
+            throw wrongType();
+        }
+        return (byte[]) value;
+    }
+
+    private Object set(Session s, List<byte[]> a) {
+        String key = key(a, 1);
+        boolean nx = false;
+        boolean xx = false;
+        long millis = -1;
+        for (int i = 3; i < a.size(); i++) {
+            String option = str(a.get(i)).toUpperCase(Locale.ROOT);
+            if ("NX".equals(option)) {
+                nx = true;
+            } else if ("XX".equals(option)) {
+                xx = true;
+            } else if ("EX".equals(option) && i + 1 < a.size()) {
+                millis = parseLong(a.get(++i)) * 1000;
+            } else if ("PX".equals(option) && i + 1 < a.size()) {
+                millis = parseLong(a.get(++i));
+            } else {
+                throw new RedisError("ERR syntax error");
+            }
+        }
+        boolean exists = lookup(s, key) != null;
+        if ((nx && exists) || (xx && !exists)) {
+            return null;
+        }
+        put(s, key, a.get(2));
+        if (millis > 0) {
+            expires.get(s.db).put(key, System.currentTimeMillis() + millis);
+        }
+        return Status.OK;
+    }
+
+    private long incrBy(Session s, String key, long increment) {
+        byte[] value = getString(s, key);
+        long current = value == null ? 0 : parseLong(value);
+        long next = current + increment;
+        Long when = expires.get(s.db).get(key);
+        put(s, key, bytes(String.valueOf(next)));
+        if (when != null) {
+            expires.get(s.db).put(key, when);
+        }
+        return next;
+    }
+
+    private long setBit(Session s, String key, long offset, long bit) {
+        if (offset < 0 || offset >= (1L << 32)) {
+            throw new RedisError("ERR bit offset is not an integer or out of range");
+        }
+        byte[] value = getString(s, key);
+        int index = (int) (offset >>> 3);
+        if (value == null || value.length <= index) {
+            byte[] grown = new byte[index + 1];
+            if (value != null) {
+                System.arraycopy(value, 0, grown, 0, value.length);
+            }
+            value = grown;
+            Long when = expires.get(s.db).get(key);
+            put(s, key, value);
+            if (when != null) {
+                expires.get(s.db).put(key, when);
+            }
+        }
+        int mask = 1 << (7 - (int) (offset & 7));
+        long old = (value[index] & mask) != 0 ? 1 : 0;
+        if (bit != 0) {
+            value[index] = (byte) (value[index] | mask);
+        } else {
+            value[index] = (byte) (value[index] & ~mask);
+        }
+        return old;
+    }
+
+    private long getBit(Session s, String key, long offset) {
+        byte[] value = getString(s, key);
+        int index = (int) (offset >>> 3);
+        if (value == null || index >= value.length) {
+            return 0;
+        }
+        return (value[index] & (1 << (7 - (int) (offset & 7)))) != 0 ? 1 : 0;
+    }
+
+    private static long bitCount(byte[] value) {
+        long count = 0;
+        if (value != null) {
+            for (byte b : value) {
+                count += Integer.bitCount(b & 0xFF);
+            }
+        }
+        return count;
+    }
+
+    // ------------------------------------------------------------------ 散列、集合
+
+    @SuppressWarnings("unchecked")
+    private Map<String, String> hash(Session s, String key, boolean create) {
+        Object value = lookup(s, key);
+        if (value == null) {
+            if (!create) {
+                return null;
+            }
+            Map<String, String> hash = new LinkedHashMap<>();
+            put(s, key, hash);
+            return hash;
+        }
+        if (!(value instanceof Map)) {
+            throw wrongType();
+        }
+        return (Map<String, String>) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<String> set(Session s, String key, boolean create) {
+        Object value = lookup(s, key);
+        if (value == null) {
+            if (!create) {
+                return null;
+            }
+            Set<String> set = new LinkedHashSet<>();
+            put(s, key, set);
+            return set;
+        }
+        if (!(value instanceof Set)) {
+            throw wrongType();
+        }
+        return (Set<String>) value;
+    }
+
+    // ------------------------------------------------------------------ 有序集合
+
+    private EmbeddedSortedSet zset(Session s, String key, boolean create) {
+        Object value = lookup(s, key);
+        if (value == null) {
+            if (!create) {
+                return null;
+            }
+            EmbeddedSortedSet zset = new EmbeddedSortedSet();
+            put(s, key, zset);
+            return zset;
+        }
+        if (!(value instanceof EmbeddedSortedSet)) {
+            throw wrongType();
+        }
+        return (EmbeddedSortedSet) value;
+    }
+
+    private long zadd(Session s, List<byte[]> a) {
+        if (a.size() < 4 || a.size() % 2 != 0) {
+            throw new RedisError("ERR wrong number of arguments for 'zadd' command");
+        }
+        EmbeddedSortedSet zset = zset(s, key(a, 1), true);
+        long added = 0;
+        for (int i = 2; i < a.size(); i += 2) {
+            added += zset.add(str(a.get(i + 1)), parseDouble(a.get(i))) ? 1 : 0;
+        }
+        return added;
+    }
+
+    private List<Object> zrangeByRank(Session s, List<byte[]> a, boolean reverse) {
+        final boolean withScores = a.size() > 4 && "WITHSCORES".equalsIgnoreCase(str(a.get(4)));
+        final List<Object> result = new ArrayList<>();
+        EmbeddedSortedSet zset = zset(s, key(a, 1), false);
+        if (zset == null) {
+            return result;
+        }
+        long size = zset.size();
+        long start = parseLong(a.get(2));
+        long end = parseLong(a.get(3));
+        start = start < 0 ? Math.max(0, size + start) : start;
+        end = end < 0 ? size + end : end;
+        zset.rangeByRank(start, end, reverse, new EmbeddedSortedSet.Visitor() {
+            @Override
+            public boolean visit(String member, double score) {
+                result.add(bytes(member));
+                if (withScores) {
+                    result.add(bytes(formatDouble(score)));
+                }
+                return true;
+            }
+        });
+        return result;
+    }
+
+    private List<Object> zrangeByScore(Session s, List<byte[]> a, boolean reverse) {
+        boolean withScores = false;
+        long offset = 0;
+        long count = -1;
+        for (int i = 4; i < a.size(); i++) {
+            String option = str(a.get(i)).toUpperCase(Locale.ROOT);
+            if ("WITHSCORES".equals(option)) {
+                withScores = true;
+            } else if ("LIMIT".equals(option) && i + 2 < a.size()) {
+                offset = parseLong(a.get(++i));
+                count = parseLong(a.get(++i));
+            } else {
+                throw new RedisError("ERR syntax error");
+            }
+        }
+        // zrevrangebyscore 的参数顺序是 max min
+        String min = str(a.get(reverse ? 3 : 2));
+        String max = str(a.get(reverse ? 2 : 3));
+        final List<Object> result = new ArrayList<>();
+        EmbeddedSortedSet zset = zset(s, key(a, 1), false);
+        if (zset == null) {
+            return result;
+        }
+        final boolean scores = withScores;
+        final long skip = offset;
+        final long limit = count;
+        zset.rangeByScore(parseBound(min), min.startsWith("("), parseBound(max), max.startsWith("("), reverse,
+            new EmbeddedSortedSet.Visitor() {
+                private long seen;
+                private long taken;
+
+                @Override
+                public boolean visit(String member, double score) {
+                    if (seen++ < skip) {
+                        return true;
+                    }
+                    if (limit >= 0 && taken >= limit) {
+                        return false;
+                    }
+                    taken++;
+                    result.add(bytes(member));
+                    if (scores) {
+                        result.add(bytes(formatDouble(score)));
+                    }
+                    return true;
+                }
+            });
+        return result;
+    }
+
+    private int countByScore(Session s, String key, String min, String max) {
+        EmbeddedSortedSet zset = zset(s, key, false);
+        if (zset == null) {
+            return 0;
+        }
+        final int[] count = new int[1];
+        zset.rangeByScore(parseBound(min), min.startsWith("("), parseBound(max), max.startsWith("("), false,
+            new EmbeddedSortedSet.Visitor() {
+                @Override
+                public boolean visit(String member, double score) {
+                    count[0]++;
+                    return true;
+                }
+            });
+        return count[0];
+    }
+
+    private long zremRangeByRank(Session s, String key, long start, long end) {
+        EmbeddedSortedSet zset = zset(s, key, false);
+        if (zset == null) {
+            return 0;
+        }
+        long size = zset.size();
+        start = start < 0 ? Math.max(0, size + start) : start;
+        end = end < 0 ? size + end : end;
+        final List<String> doomed = new ArrayList<>();
+        zset.rangeByRank(start, end, false, new EmbeddedSortedSet.Visitor() {
+            @Override
+            public boolean visit(String member, double score) {
+                doomed.add(member);
+                return true;
+            }
+        });
+        for (String member : doomed) {
+            zset.remove(member);
+        }
+        removeIfEmpty(s, key, zset);
+        return doomed.size();
+    }
+
+    private long zremRangeByScore(Session s, String key, String min, String max) {
+        EmbeddedSortedSet zset = zset(s, key, false);
+        if (zset == null) {
+            return 0;
+        }
+        final List<String> doomed = new ArrayList<>();
+        zset.rangeByScore(parseBound(min), min.startsWith("("), parseBound(max), max.startsWith("("), false,
+            new EmbeddedSortedSet.Visitor() {
+                @Override
+                public boolean visit(String member, double score) {
+                    doomed.add(member);
+                    return true;
+                }
+            });
+        for (String member : doomed) {
+            zset.remove(member);
+        }
+        removeIfEmpty(s, key, zset);
+        return doomed.size();
+    }
+
+    /**
+     * zinterstore/zunionstore destination numkeys key [key ...] [WEIGHTS w ...] [AGGREGATE SUM|MIN|MAX]，普通集合的成员分值视为 1
+     */
+    private long zstore(Session s, List<byte[]> a, boolean intersect) {
+        String destination = key(a, 1);
+        int numKeys = (int) parseLong(a.get(2));
+        if (numKeys < 1 || a.size() < 3 + numKeys) {
+            throw new RedisError("ERR at least 1 input key is needed for ZUNIONSTORE/ZINTERSTORE");
+        }
+        double[] weights = new double[numKeys];
+        Arrays.fill(weights, 1);
+        String aggregate = "SUM";
+        for (int i = 3 + numKeys; i < a.size(); i++) {
+            String option = str(a.get(i)).toUpperCase(Locale.ROOT);
+            if ("WEIGHTS".equals(option)) {
+                for (int w = 0; w < numKeys; w++) {
+                    weights[w] = parseDouble(a.get(++i));
+                }
+            } else if ("AGGREGATE".equals(option)) {
+                aggregate = str(a.get(++i)).toUpperCase(Locale.ROOT);
+            } else {
+                throw new RedisError("ERR syntax error");
+            }
+        }
+
+        List<Map<String, Double>> sources = new ArrayList<>(numKeys);
+        for (int k = 0; k < numKeys; k++) {
+            sources.add(scores(s, str(a.get(3 + k))));
+        }
+
+        Map<String, Double> result = new HashMap<>();
+        if (intersect) {
+            // 从最小的集合开始求交集
+            int smallest = 0;
+            for (int k = 1; k < numKeys; k++) {
+                if (sources.get(k).size() < sources.get(smallest).size()) {
+                    smallest = k;
+                }
+            }
+            outer:
+            for (String member : sources.get(smallest).keySet()) {
+                double value = 0;
+                for (int k = 0; k < numKeys; k++) {
+                    Double score = sources.get(k).get(member);
+                    if (score == null) {
+                        continue outer;
+                    }
+                    value = k == 0 ? score * weights[0] : aggregate(aggregate, value, score * weights[k]);
+                }
+                result.put(member, value);
+            }
+        } else {
+            for (int k = 0; k < numKeys; k++) {
+                for (Map.Entry<String, Double> entry : sources.get(k).entrySet()) {
+                    double weighted = entry.getValue() * weights[k];
+                    Double existing = result.get(entry.getKey());
+                    result.put(entry.getKey(), existing == null ? weighted : aggregate(aggregate, existing, weighted));
+                }
+            }
+        }
+
+        dbs.get(s.db).remove(destination);
+        expires.get(s.db).remove(destination);
+        if (!result.isEmpty()) {
+            EmbeddedSortedSet zset = zset(s, destination, true);
+            for (Map.Entry<String, Double> entry : result.entrySet()) {
+                zset.add(entry.getKey(), entry.getValue());
+            }
+        }
+        return result.size();
+    }
+
+    private Map<String, Double> scores(Session s, String key) {
+        Object value = lookup(s, key);
+        Map<String, Double> scores = new HashMap<>();
+        if (value == null) {
+            return scores;
+        }
+        if (value instanceof Set) {
+            for (Object member : (Set<?>) value) {
+                scores.put((String) member, 1.0);
+            }
+        } else if (value instanceof EmbeddedSortedSet) {
+            EmbeddedSortedSet zset = (EmbeddedSortedSet) value;
+            for (String member : zset.members()) {
+                scores.put(member, zset.score(member));
+            }
+        } else {
+            throw wrongType();
+        }
+        return scores;
+    }
+
+    private static double aggregate(String aggregate, double a, double b) {
+        switch (aggregate) {
+            case "MIN":
+                return Math.min(a, b);
+            case "MAX":
+                return Math.max(a, b);
+            case "SUM":
+                return a + b;
+            default:
+                throw new RedisError("ERR syntax error");
+        }
+    }
+
+    // ------------------------------------------------------------------ 脚本、发布订阅
+
+    private Object script(List<byte[]> a) {
+        String sub = str(a.get(1)).toUpperCase(Locale.ROOT);
+        switch (sub) {
+            case "LOAD":
+                if (a.size() != 3) {
+                    throw new RedisError("ERR Unknown subcommand or wrong number of arguments for 'load'");
+                }
+                return bytes(lua.load(str(a.get(2))));
+            case "EXISTS":
+                List<Object> exists = new ArrayList<>();
+                for (int i = 2; i < a.size(); i++) {
+                    exists.add(lua.exists(str(a.get(i))) ? 1L : 0L);
+                }
+                return exists;
+            case "FLUSH":
+                lua.flush();
+                return Status.OK;
+            default:
+                throw new RedisError("ERR Unknown SCRIPT subcommand '" + sub.toLowerCase(Locale.ROOT) + "'");
+        }
+    }
+
+    private long publish(String channel, byte[] payload) {
+        long receivers = 0;
+        Set<Session> sessions = channelSubscribers.get(channel);
+        if (sessions != null) {
+            for (Session session : sessions) {
+                push(session, Arrays.<Object>asList(bytes("message"), bytes(channel), payload));
+                receivers++;
+            }
+        }
+        for (Map.Entry<String, Set<Session>> entry : patternSubscribers.entrySet()) {
+            if (globMatch(entry.getKey(), 0, channel, 0)) {
+                for (Session session : entry.getValue()) {
+                    push(session,
+                        Arrays.<Object>asList(bytes("pmessage"), bytes(entry.getKey()), bytes(channel), payload));
+                    receivers++;
+                }
+            }
+        }
+        return receivers;
+    }
+
+    private Object subscribe(Session s, List<byte[]> a, boolean pattern) {
+        if (s.subscriber == null) {
+            throw new RedisError("ERR this session can not subscribe");
+        }
+        for (int i = 1; i < a.size(); i++) {
+            String name = str(a.get(i));
+            if (pattern) {
+                s.patterns.add(name);
+                subscribers(patternSubscribers, name).add(s);
+            } else {
+                s.channels.add(name);
+                subscribers(channelSubscribers, name).add(s);
+            }
+            push(s, Arrays.<Object>asList(bytes(pattern ? "psubscribe" : "subscribe"), bytes(name),
+                (long) (s.channels.size() + s.patterns.size())));
+        }
+        return NO_REPLY;
+    }
+
+    private Object unsubscribe(Session s, List<byte[]> a, boolean pattern) {
+        Set<String> names = pattern ? s.patterns : s.channels;
+        List<String> targets = new ArrayList<>();
+        if (a.size() > 1) {
+            for (int i = 1; i < a.size(); i++) {
+                targets.add(str(a.get(i)));
+            }
+        } else {
+            targets.addAll(names);
+        }
+        for (String name : targets) {
+            names.remove(name);
+            removeSubscriber(pattern ? patternSubscribers : channelSubscribers, name, s);
+            if (s.subscriber != null) {
+                push(s, Arrays.<Object>asList(bytes(pattern ? "punsubscribe" : "unsubscribe"), bytes(name),
+                    (long) (s.channels.size() + s.patterns.size())));
+            }
+        }
+        return NO_REPLY;
+    }
+
+    /**
+     * 在锁内把推送放入会话的待发送队列，保持推送的顺序
+     */
+    private void push(Session session, List<Object> message) {
+        session.outbox.add(message);
+        pendingPushes.add(session);
+    }
+
+    /**
+     * 在锁外写出推送；同一个会话同时只有一个线程在写，消息按入队的顺序送达
+     */
+    private static void deliver(List<Session> receivers) {
+        if (receivers == null) {
+            return;
+        }
+        for (Session session : receivers) {
+            synchronized (session.outbox) {
+                for (List<Object> message; (message = session.outbox.poll()) != null; ) {
+                    session.subscriber.push(message);
+                }
+            }
+        }
+    }
+
+    private static Set<Session> subscribers(Map<String, Set<Session>> registry, String name) {
+        Set<Session> sessions = registry.get(name);
+        if (sessions == null) {
+            sessions = new LinkedHashSet<>();
+            registry.put(name, sessions);
+        }
+        return sessions;
+    }
+
+    private static void removeSubscriber(Map<String, Set<Session>> registry, String name, Session session) {
+        Set<Session> sessions = registry.get(name);
+        if (sessions != null && sessions.remove(session) && sessions.isEmpty()) {
+            registry.remove(name);
+        }
+    }
+
+    // ------------------------------------------------------------------ 工具方法
+
+    static String str(byte[] bytes) {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    static byte[] bytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String key(List<byte[]> a, int index) {
+        if (a.size() <= index) {
+            throw new RedisError("ERR wrong number of arguments for '" + str(a.get(0)).toLowerCase(Locale.ROOT)
+                + "' command");
+        }
+        return str(a.get(index));
+    }
+
+    private static void arity(int arity, String... names) {
+        for (String name : names) {
+            ARITY.put(name, arity);
+        }
+    }
+
+    /**
+     * 按命令表检查参数个数，未知的命令留给 dispatch 报错
+     */
+    private static void checkArity(String name, List<byte[]> a) {
+        Integer arity = ARITY.get(name);
+        if (arity != null && (arity >= 0 ? a.size() != arity : a.size() < -arity)) {
+            throw wrongArity(name);
+        }
+    }
+
+    private static RedisError wrongArity(String name) {
+        return new RedisError("ERR wrong number of arguments for '" + name.toLowerCase(Locale.ROOT) + "' command");
+    }
+
+    private static RedisError wrongType() {
+        return new RedisError("WRONGTYPE Operation against a key holding the wrong kind of value");
+    }
+
+    private static long parseLong(byte[] value) {
+        return parseLong(str(value));
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new RedisError("ERR value is not an integer or out of range");
+        }
+    }
+
+    private static double parseDouble(byte[] value) {
+        return parseBound(str(value));
+    }
+
+    private static double parseBound(String value) {
+        String number = value.startsWith("(") ? value.substring(1) : value;
+        switch (number.toLowerCase(Locale.ROOT)) {
+            case "-inf":
+                return Double.NEGATIVE_INFINITY;
+            case "+inf":
+            case "inf":
+                return Double.POSITIVE_INFINITY;
+            default:
+                try {
+                    return Double.parseDouble(number);
+                } catch (NumberFormatException e) {
+                    throw new RedisError("ERR value is not a valid float");
+                }
+        }
+    }
+
+    /**
+     * 和 redis 一样，整数值的分数不带小数部分输出
+     */
+    static String formatDouble(double value) {
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "inf" : "-inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return String.valueOf((long) value);
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * 支持 *、? 和 [...] 的 glob 匹配，用于 keys 和 psubscribe
+     */
+    static boolean globMatch(String pattern, int p, String text, int t) {
+        while (p < pattern.length()) {
+            char c = pattern.charAt(p);
+            if (c == '*') {
+                for (int i = t; i <= text.length(); i++) {
+                    if (globMatch(pattern, p + 1, text, i)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (t >= text.length()) {
+                return false;
+            }
+            if (c == '?') {
+                p++;
+                t++;
+            } else if (c == '[') {
+                int close = pattern.indexOf(']', p + 1);
+                if (close < 0) {
+                    return false;
+                }
+                String choices = pattern.substring(p + 1, close);
+                boolean negate = choices.startsWith("^");
+                if (negate) {
+                    choices = choices.substring(1);
+                }
+                if (choices.indexOf(text.charAt(t)) >= 0 == negate) {
+                    return false;
+                }
+                p = close + 1;
+                t++;
+            } else {
+                if (c == '\\' && p + 1 < pattern.length()) {
+                    c = pattern.charAt(++p);
+                }
+                if (c != text.charAt(t)) {
+                    return false;
+                }
+                p++;
+                t++;
+            }
+        }
+        return t == text.length();
+    }
+}
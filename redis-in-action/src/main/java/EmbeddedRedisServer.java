@@ -0,0 +1,317 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 把 {@link EmbeddedRedis} 以 RESP 协议暴露在本地端口上，jedis 等客户端可以像连接真实 redis 一样连接它
+ *
+ * 每个连接一个线程，命令交给引擎串行执行；只有在输入缓冲区读空时才刷新输出，因此客户端的流水线请求会被批量回复
+ *
+ * 用法：
+ * <pre>
+ *     EmbeddedRedisServer server = EmbeddedRedisServer.start(0);
+ *     Jedis jedis = new Jedis("localhost", server.getPort());
+ * </pre>
+ *
+ * @author 黄学维
+ */
+public class EmbeddedRedisServer implements AutoCloseable {
+
+    /**
+     * 定期删除过期键的间隔，和 redis 默认的 hz 10 一致
+     */
+    private static final long ACTIVE_EXPIRE_INTERVAL_MILLIS = 100;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private static final byte[] NIL = "$-1\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * 一条命令最多的参数个数和一个参数最大的字节数，和 redis 的默认限制一致
+     */
+    private static final int MAX_MULTIBULK_LENGTH = 1024 * 1024;
+
+    private static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+
+    private final EmbeddedRedis redis;
+
+    private final ServerSocket serverSocket;
+
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean closed;
+
+    private EmbeddedRedisServer(EmbeddedRedis redis, ServerSocket serverSocket) {
+        this.redis = redis;
+        this.serverSocket = serverSocket;
+    }
+
+    /**
+     * 在 127.0.0.1 上启动服务，port 为 0 时使用随机端口
+     */
+    public static EmbeddedRedisServer start(int port) throws IOException {
+        return start(new EmbeddedRedis(), port);
+    }
+
+    public static EmbeddedRedisServer start(EmbeddedRedis redis, int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        EmbeddedRedisServer server = new EmbeddedRedisServer(redis, serverSocket);
+        server.startDaemon("embedded-redis-acceptor", server::acceptLoop);
+        server.startDaemon("embedded-redis-expire", server::expireLoop);
+        return server;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 6379;
+        EmbeddedRedisServer server = start(port);
+        System.out.println("Embedded redis is listening on port " + server.getPort());
+    }
+
+    public EmbeddedRedis getRedis() {
+        return redis;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        closeQuietly(serverSocket);
+        for (Socket client : clients) {
+            closeQuietly(client);
+        }
+    }
+
+    private void startDaemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                clients.add(socket);
+                startDaemon("embedded-redis-client-" + socket.getPort(), () -> serve(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Embedded redis failed to accept a connection: " + e);
+                }
+            }
+        }
+    }
+
+    private void expireLoop() {
+        while (!closed) {
+            redis.activeExpireCycle();
+            try {
+                Thread.sleep(ACTIVE_EXPIRE_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        EmbeddedRedis.Session session = null;
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            // 订阅推送可能来自其他连接的线程，写回复时统一对输出流加锁
+            session = redis.newSession(message -> {
+                synchronized (out) {
+                    try {
+                        writeReply(out, message);
+                        out.flush();
+                    } catch (IOException e) {
+                        closeQuietly(socket);
+                    }
+                }
+            });
+            while (!closed) {
+                List<byte[]> argv;
+                try {
+                    argv = readCommand(in);
+                } catch (EmbeddedRedis.RedisError e) {
+                    // 协议错误之后无法再定位下一条命令的开头，和 redis 一样回复错误后关闭连接
+                    synchronized (out) {
+                        writeReply(out, e);
+                        out.flush();
+                    }
+                    break;
+                }
+                if (argv == null) {
+                    break;
+                }
+                Object reply;
+                try {
+                    reply = redis.execute(session, argv);
+                } catch (EmbeddedRedis.RedisError e) {
+                    reply = e;
+                } catch (RuntimeException e) {
+                    // 引擎之外的意外错误同样只让这条命令失败，连接继续服务
+                    reply = new EmbeddedRedis.RedisError("ERR " + e);
+                }
+                synchronized (out) {
+                    if (reply != EmbeddedRedis.NO_REPLY) {
+                        writeReply(out, reply);
+                    }
+                    if (in.available() == 0 || session.isClosed()) {
+                        out.flush();
+                    }
+                }
+                if (session.isClosed()) {
+                    break;
+                }
+            }
+        } catch (SocketException | EOFException e) {
+            // 客户端断开连接
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Embedded redis connection failed: " + e);
+            }
+        } finally {
+            if (session != null) {
+                redis.unsubscribeAll(session);
+            }
+            clients.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * 读取一条 RESP 数组格式的命令，连接关闭时返回 null，长度不合法时抛出 {@link EmbeddedRedis.RedisError}
+     */
+    private static List<byte[]> readCommand(InputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        if (first != '*') {
+            // 内联命令，例如 telnet 中输入的 PING
+            String line = (char) first + readLine(in);
+            List<byte[]> argv = new ArrayList<>();
+            for (String part : line.trim().split("\\s+")) {
+                if (!part.isEmpty()) {
+                    argv.add(part.getBytes(StandardCharsets.ISO_8859_1));
+                }
+            }
+            return argv.isEmpty() ? readCommand(in) : argv;
+        }
+        int count = readLength(in, MAX_MULTIBULK_LENGTH, "multibulk");
+        if (count <= 0) {
+            return readCommand(in);
+        }
+        List<byte[]> argv = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (in.read() != '$') {
+                throw new IOException("Protocol error: expected '$'");
+            }
+            int length = readLength(in, MAX_BULK_LENGTH, "bulk");
+            if (length < 0) {
+                throw new EmbeddedRedis.RedisError("ERR Protocol error: invalid bulk length");
+            }
+            byte[] arg = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = in.read(arg, read, length - read);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                read += n;
+            }
+            in.read();
+            in.read();
+            argv.add(arg);
+        }
+        return argv;
+    }
+
+    /**
+     * 读取一行长度，不是整数或者超过 max 时抛出协议错误
+     */
+    private static int readLength(InputStream in, int max, String kind) throws IOException {
+        String line = readLine(in);
+        try {
+            long length = Long.parseLong(line);
+            if (length <= max) {
+                return (int) Math.max(length, -1);
+            }
+        } catch (NumberFormatException e) {
+            // 下面统一报错
+        }
+        throw new EmbeddedRedis.RedisError("ERR Protocol error: invalid " + kind + " length");
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\r') {
+            if (c == -1) {
+                throw new EOFException();
+            }
+            line.append((char) c);
+        }
+        in.read();
+        return line.toString();
+    }
+
+    private static void writeReply(OutputStream out, Object reply) throws IOException {
+        if (reply == null) {
+            out.write(NIL);
+        } else if (reply instanceof Long) {
+            writeLine(out, ':', String.valueOf(reply));
+        } else if (reply instanceof byte[]) {
+            byte[] bytes = (byte[]) reply;
+            writeLine(out, '$', String.valueOf(bytes.length));
+            out.write(bytes);
+            out.write(CRLF);
+        } else if (reply instanceof EmbeddedRedis.Status) {
+            writeLine(out, '+', ((EmbeddedRedis.Status) reply).getValue());
+        } else if (reply instanceof EmbeddedRedis.RedisError) {
+            writeLine(out, '-', ((EmbeddedRedis.RedisError) reply).getMessage());
+        } else if (reply instanceof List) {
+            List<?> list = (List<?>) reply;
+            writeLine(out, '*', String.valueOf(list.size()));
+            for (Object element : list) {
+                writeReply(out, element);
+            }
+        } else {
+            throw new IllegalArgumentException("unsupported reply " + reply.getClass());
+        }
+    }
+
+    private static void writeLine(OutputStream out, char type, String line) throws IOException {
+        out.write(type);
+        out.write(line.getBytes(StandardCharsets.ISO_8859_1));
+        out.write(CRLF);
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,290 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 内嵌 redis 的有序集合实现，和 redis 的 zset 一样由跳跃表和散列索引组成
+ *
+ * 跳跃表按 (score, member) 排序，并在每一层记录跨度（span），因此按排名访问和计算排名都是 O(log N)；
+ * 散列索引保存 member 到 score 的映射，zscore 为 O(1)
+ *
+ * 非线程安全，由 {@link EmbeddedRedis} 统一加锁
+ *
+ * @author 黄学维
+ */
+public class EmbeddedSortedSet {
+
+    private static final int MAX_LEVEL = 32;
+
+    private static final double P = 0.25;
+
+    private static final class Node {
+
+        private final String member;
+        private final double score;
+        private final Node[] forward;
+        private final int[] span;
+        private Node backward;
+
+        private Node(String member, double score, int level) {
+            this.member = member;
+            this.score = score;
+            this.forward = new Node[level];
+            this.span = new int[level];
+        }
+    }
+
+    /**
+     * 遍历回调，返回 false 时停止遍历
+     */
+    public interface Visitor {
+
+        boolean visit(String member, double score);
+    }
+
+    private final Node header = new Node(null, 0, MAX_LEVEL);
+
+    private final Map<String, Double> index = new HashMap<>();
+
+    private int level = 1;
+
+    public int size() {
+        return index.size();
+    }
+
+    public Double score(String member) {
+        return index.get(member);
+    }
+
+    /**
+     * 添加或更新成员，返回 true 表示新增了成员
+     */
+    public boolean add(String member, double score) {
+        Double old = index.put(member, score);
+        if (old != null) {
+            if (old == score) {
+                return false;
+            }
+            delete(member, old);
+        }
+        insert(member, score);
+        return old == null;
+    }
+
+    public double incrBy(String member, double increment) {
+        Double old = index.get(member);
+        double score = (old == null ? 0 : old) + increment;
+        add(member, score);
+        return score;
+    }
+
+    public boolean remove(String member) {
+        Double old = index.remove(member);
+        if (old == null) {
+            return false;
+        }
+        delete(member, old);
+        return true;
+    }
+
+    /**
+     * 返回成员的排名（从 0 开始，按分值从小到大），成员不存在时返回 -1
+     */
+    public long rank(String member) {
+        Double score = index.get(member);
+        if (score == null) {
+            return -1;
+        }
+        long rank = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && compare(x.forward[i], score, member) <= 0) {
+                rank += x.span[i];
+                x = x.forward[i];
+            }
+            if (x.member != null && x.member.equals(member)) {
+                return rank - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 按排名区间 [start, end] 遍历（已经归一化为非负下标），reverse 为 true 时从分值最大的成员开始
+     */
+    public void rangeByRank(long start, long end, boolean reverse, Visitor visitor) {
+        int size = size();
+        if (start > end || start >= size) {
+            return;
+        }
+        end = Math.min(end, size - 1);
+        Node x = nodeAt(reverse ? size - 1 - start : start);
+        for (long i = start; i <= end && x != null; i++) {
+            if (!visitor.visit(x.member, x.score)) {
+                return;
+            }
+            x = reverse ? x.backward : x.forward[0];
+        }
+    }
+
+    /**
+     * 按分值区间遍历，minExclusive/maxExclusive 对应 redis 的 "(" 开区间语法
+     */
+    public void rangeByScore(double min, boolean minExclusive, double max, boolean maxExclusive, boolean reverse,
+        Visitor visitor) {
+        if (reverse) {
+            Node x = lastNotAbove(max, maxExclusive);
+            while (x != null && x != header && inMin(x.score, min, minExclusive)) {
+                if (!visitor.visit(x.member, x.score)) {
+                    return;
+                }
+                x = x.backward;
+            }
+        } else {
+            Node x = firstNotBelow(min, minExclusive);
+            while (x != null && inMax(x.score, max, maxExclusive)) {
+                if (!visitor.visit(x.member, x.score)) {
+                    return;
+                }
+                x = x.forward[0];
+            }
+        }
+    }
+
+    public List<String> members() {
+        final List<String> members = new ArrayList<>(size());
+        rangeByRank(0, size() - 1, false, new Visitor() {
+            @Override
+            public boolean visit(String member, double score) {
+                members.add(member);
+                return true;
+            }
+        });
+        return members;
+    }
+
+    private static boolean inMin(double score, double min, boolean exclusive) {
+        return exclusive ? score > min : score >= min;
+    }
+
+    private static boolean inMax(double score, double max, boolean exclusive) {
+        return exclusive ? score < max : score <= max;
+    }
+
+    private Node firstNotBelow(double min, boolean exclusive) {
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && !inMin(x.forward[i].score, min, exclusive)) {
+                x = x.forward[i];
+            }
+        }
+        return x.forward[0];
+    }
+
+    private Node lastNotAbove(double max, boolean exclusive) {
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && inMax(x.forward[i].score, max, exclusive)) {
+                x = x.forward[i];
+            }
+        }
+        return x;
+    }
+
+    private Node nodeAt(long rank) {
+        long traversed = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && traversed + x.span[i] <= rank + 1) {
+                traversed += x.span[i];
+                x = x.forward[i];
+            }
+            if (traversed == rank + 1) {
+                return x;
+            }
+        }
+        return null;
+    }
+
+    private static int compare(Node node, double score, String member) {
+        int c = Double.compare(node.score, score);
+        return c != 0 ? c : node.member.compareTo(member);
+    }
+
+    private static int randomLevel() {
+        int lvl = 1;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (lvl < MAX_LEVEL && random.nextDouble() < P) {
+            lvl++;
+        }
+        return lvl;
+    }
+
+    private void insert(String member, double score) {
+        Node[] update = new Node[MAX_LEVEL];
+        int[] rank = new int[MAX_LEVEL];
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            rank[i] = i == level - 1 ? 0 : rank[i + 1];
+            while (x.forward[i] != null && compare(x.forward[i], score, member) < 0) {
+                rank[i] += x.span[i];
+                x = x.forward[i];
+            }
+            update[i] = x;
+        }
+        int lvl = randomLevel();
+        if (lvl > level) {
+            for (int i = level; i < lvl; i++) {
+                rank[i] = 0;
+                update[i] = header;
+                update[i].span[i] = size() - 1;
+            }
+            level = lvl;
+        }
+        Node node = new Node(member, score, lvl);
+        for (int i = 0; i < lvl; i++) {
+            node.forward[i] = update[i].forward[i];
+            update[i].forward[i] = node;
+            node.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+            update[i].span[i] = (rank[0] - rank[i]) + 1;
+        }
+        for (int i = lvl; i < level; i++) {
+            update[i].span[i]++;
+        }
+        node.backward = update[0] == header ? null : update[0];
+        if (node.forward[0] != null) {
+            node.forward[0].backward = node;
+        }
+    }
+
+    private void delete(String member, double score) {
+        Node[] update = new Node[MAX_LEVEL];
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && compare(x.forward[i], score, member) < 0) {
+                x = x.forward[i];
+            }
+            update[i] = x;
+        }
+        x = x.forward[0];
+        if (x == null || x.score != score || !x.member.equals(member)) {
+            return;
+        }
+        for (int i = 0; i < level; i++) {
+            if (update[i].forward[i] == x) {
+                update[i].span[i] += x.span[i] - 1;
+                update[i].forward[i] = x.forward[i];
+            } else {
+                update[i].span[i] -= 1;
+            }
+        }
+        if (x.forward[0] != null) {
+            x.forward[0].backward = x.backward;
+        }
+        while (level > 1 && header.forward[level - 1] == null) {
+            level--;
+        }
+    }
+}
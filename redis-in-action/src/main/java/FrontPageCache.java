@@ -0,0 +1,312 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Tuple;
+
+/**
+ * 排名前几页文章的本地快照，首页这类几乎每个访问者都会请求的分页直接从内存返回
+ *
+ * 快照保存排名前 pages * pageSize 篇文章的 id、评分和散列，以及预先切分好的每一页，整体不可变，刷新时整体替换；
+ * 读取命中时不访问 redis，也不分配新的对象，返回的列表和文章信息都不可修改
+ *
+ * 刷新是增量的：先用 zrevrange 读取排名和评分，只有新进入排名或者评分变化过的文章才重新读取散列，
+ * 投票总是同时修改评分和票数，所以评分不变的文章可以沿用上一个快照中的散列
+ *
+ * 本节点的投票和发布通过 {@link #markDirty()} 触发 {@link RefreshThread} 提前刷新；其他节点的改动在下一次定时刷新时生效
+ *
+ * @author 黄学维
+ */
+public class FrontPageCache {
+
+    private static final class Snapshot {
+
+        private final List<String> ids;
+        private final double[] scores;
+        private final List<Map<String, String>> articles;
+        private final Map<String, Integer> positions;
+
+        /**
+         * 预先切分好的分页，pages.get(0) 为第 1 页
+         */
+        private final List<List<Map<String, String>>> pages;
+
+        /**
+         * 排名中的文章是否已经全部读取，是的话超出快照范围的分页一定为空
+         */
+        private final boolean complete;
+
+        private final long loadedAt;
+
+        private Snapshot(List<String> ids, double[] scores, List<Map<String, String>> articles, int pageSize,
+            boolean complete, long loadedAt) {
+            this.ids = ids;
+            this.scores = scores;
+            this.articles = articles;
+            this.positions = new HashMap<>(ids.size() * 2);
+            for (int i = 0; i < ids.size(); i++) {
+                positions.put(ids.get(i), i);
+            }
+            List<List<Map<String, String>>> pages = new ArrayList<>();
+            for (int start = 0; start < articles.size(); start += pageSize) {
+                pages.add(Collections.unmodifiableList(articles.subList(start, Math.min(start + pageSize, articles.size()))));
+            }
+            this.pages = pages;
+            this.complete = complete;
+            this.loadedAt = loadedAt;
+        }
+
+        /**
+         * 快照中的一页，排名不足一页时为空列表，超出快照但排名可能还有更多文章时为 null
+         */
+        private List<Map<String, String>> page(int page) {
+            if (page <= pages.size()) {
+                return pages.get(page - 1);
+            }
+            return complete ? Collections.emptyList() : null;
+        }
+
+        /**
+         * 评分没有变化时返回上一次读取的文章信息
+         */
+        private Map<String, String> unchanged(String id, double score) {
+            Integer position = positions.get(id);
+            return position != null && scores[position] == score ? articles.get(position) : null;
+        }
+    }
+
+    private final String sortedSetKey;
+
+    private final int pages;
+
+    private final int pageSize;
+
+    private final long maxStaleMillis;
+
+    private volatile Snapshot snapshot;
+
+    private volatile boolean dirty;
+
+    /**
+     * 同一时刻只有一个线程刷新快照；使用 j.u.c 的锁，虚拟线程等待时不会占住平台线程
+     */
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+    private volatile RefreshThread refresher;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder refreshes = new LongAdder();
+
+    private final LongAdder fetchedArticles = new LongAdder();
+
+    private final LongAdder reusedArticles = new LongAdder();
+
+    /**
+     * @param sortedSetKey   排序用的有序集合，例如 score:
+     * @param pages          缓存的页数
+     * @param pageSize       每页的文章数量
+     * @param maxStaleMillis 快照超过这个时间没有刷新时不再使用，读取时重新加载
+     */
+    public FrontPageCache(String sortedSetKey, int pages, int pageSize, long maxStaleMillis) {
+        this.sortedSetKey = sortedSetKey;
+        this.pages = pages;
+        this.pageSize = pageSize;
+        this.maxStaleMillis = maxStaleMillis;
+    }
+
+    /**
+     * 从当前快照读取一页，不访问 redis；页码超出缓存范围、还没有快照或者快照已经过旧时返回 null
+     */
+    public List<Map<String, String>> getPage(int page) {
+        if (page < 1 || page > pages) {
+            return null;
+        }
+        Snapshot current = snapshot;
+        if (current == null || System.currentTimeMillis() - current.loadedAt > maxStaleMillis) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return current.page(page);
+    }
+
+    /**
+     * 读穿：没有可用的快照时用 jedis 加载一次；其他线程正在加载时直接返回 null，由调用方回退为读取 redis
+     */
+    public List<Map<String, String>> getPage(Jedis jedis, int page) {
+        List<Map<String, String>> articles = getPage(page);
+        if (articles != null || page < 1 || page > pages || !refreshLock.tryLock()) {
+            return articles;
+        }
+        Snapshot current;
+        try {
+            current = snapshot;
+            if (current == null || System.currentTimeMillis() - current.loadedAt > maxStaleMillis) {
+                current = load(jedis);
+            }
+        } finally {
+            refreshLock.unlock();
+        }
+        // 这次读取已经记为未命中，直接从加载的快照返回，不再记一次命中
+        return current.page(page);
+    }
+
+    /**
+     * 排名或者文章信息发生了变化，唤醒 {@link RefreshThread} 提前刷新
+     */
+    public void markDirty() {
+        dirty = true;
+        RefreshThread current = refresher;
+        if (current != null) {
+            current.wake();
+        }
+    }
+
+    /**
+     * 立即刷新快照
+     */
+    public void refresh(Jedis jedis) {
+        refreshLock.lock();
+        try {
+            load(jedis);
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    /**
+     * 丢弃快照，之后的读取回退为读取 redis，直到下一次刷新
+     */
+    public void clear() {
+        snapshot = null;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getRefreshes() {
+        return refreshes.sum();
+    }
+
+    @Override
+    public String toString() {
+        Snapshot current = snapshot;
+        return "FrontPageCache{hits=" + getHits() + ", misses=" + getMisses() + ", refreshes=" + getRefreshes()
+            + ", fetched=" + fetchedArticles.sum() + ", reused=" + reusedArticles.sum()
+            + ", articles=" + (current != null ? current.ids.size() : 0) + "}";
+    }
+
+    private Snapshot load(Jedis jedis) {
+        // 在读取之前清除标记，刷新期间发生的改动会触发下一次刷新
+        dirty = false;
+        long loadedAt = System.currentTimeMillis();
+        int limit = pages * pageSize;
+        Set<Tuple> ranking = jedis.zrevrangeWithScores(sortedSetKey, 0, limit - 1);
+
+        Snapshot previous = snapshot;
+        List<String> ids = new ArrayList<>(ranking.size());
+        double[] scores = new double[ranking.size()];
+        List<Map<String, String>> reused = new ArrayList<>(ranking.size());
+        List<Response<Map<String, String>>> fetched = new ArrayList<>(ranking.size());
+        Pipeline pipeline = jedis.pipelined();
+        for (Tuple tuple : ranking) {
+            String id = tuple.getElement();
+            Map<String, String> article = previous != null ? previous.unchanged(id, tuple.getScore()) : null;
+            scores[ids.size()] = tuple.getScore();
+            ids.add(id);
+            reused.add(article);
+            fetched.add(article == null ? pipeline.hgetAll(id) : null);
+        }
+        pipeline.sync();
+
+        List<Map<String, String>> articles = new ArrayList<>(ids.size());
+        int fetchedCount = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            Map<String, String> article = reused.get(i);
+            if (article == null) {
+                Map<String, String> hash = new HashMap<>(fetched.get(i).get());
+                hash.put("id", ids.get(i));
+                article = Collections.unmodifiableMap(hash);
+                fetchedCount++;
+            }
+            articles.add(article);
+        }
+
+        Snapshot loaded = new Snapshot(ids, scores, Collections.unmodifiableList(articles), pageSize, ids.size() < limit,
+            loadedAt);
+        snapshot = loaded;
+        refreshes.increment();
+        fetchedArticles.add(fetchedCount);
+        reusedArticles.add(ids.size() - fetchedCount);
+        return loaded;
+    }
+
+    /**
+     * 定期刷新快照的线程，收到 {@link #markDirty()} 时提前刷新，但两次刷新之间至少间隔 minIntervalMillis
+     */
+    public class RefreshThread extends WorkerRuntime.BackgroundWorker {
+
+        private final RedisConnections connections;
+
+        private final long intervalMillis;
+
+        private final long minIntervalMillis;
+
+        private volatile boolean quit;
+
+        public RefreshThread(RedisConnections connections, long intervalMillis, long minIntervalMillis) {
+            super("front-page-refresh", true);
+            this.connections = connections;
+            this.intervalMillis = intervalMillis;
+            this.minIntervalMillis = minIntervalMillis;
+        }
+
+        @Override
+        public void quit() {
+            quit = true;
+            wake();
+        }
+
+        @Override
+        protected void work() {
+            refresher = this;
+            long lastAttempt = 0;
+            while (!quit) {
+                long now = System.currentTimeMillis();
+                long due = lastAttempt + (dirty ? minIntervalMillis : intervalMillis);
+                if (now < due) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(due - now));
+                    continue;
+                }
+                lastAttempt = now;
+                try {
+                    connections.execute(jedis -> {
+                        refresh(jedis);
+                        return null;
+                    });
+                } catch (RuntimeException e) {
+                    // 下一个周期再试，在此之前读取会回退为读取 redis
+                    System.err.println("Failed to refresh the front page cache: " + e);
+                }
+            }
+            refresher = null;
+        }
+    }
+}
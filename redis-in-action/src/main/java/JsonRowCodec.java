@@ -0,0 +1,26 @@
+import com.google.gson.Gson;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 和原来一样把数据行编码为 JSON，保留给需要直接阅读缓存值或者还没有升级的读取方
+ *
+ * @author 黄学维
+ */
+public class JsonRowCodec implements RowCodec {
+
+    private final Gson gson = new Gson();
+
+    @Override
+    public byte[] encode(Chapter02.Inventory row) {
+        return gson.toJson(row).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Chapter02.Inventory decode(byte[] value) {
+        if (value.length > 0 && value[0] != '{') {
+            // 其他节点已经改用二进制格式写入
+            return BinaryRowCodec.DEFAULT.decode(value);
+        }
+        return gson.fromJson(new String(value, StandardCharsets.UTF_8), Chapter02.Inventory.class);
+    }
+}
@@ -0,0 +1,106 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 分片后的键名
+ *
+ * 全局的结构（score:、time:、recent:、login:、viewed: 等）拆分为 shards 个子键，例如 score:{3}；
+ * 属于某个分片的对象的键带有同样的 hash tag，例如 article:{3}:1234、voted:{3}:1234，
+ * 因此一个 lua 脚本访问的文章键和它所在分片的全局子键总是落在同一个节点上，在 redis cluster 中也属于同一个槽位
+ *
+ * @author 黄学维
+ */
+public class KeySharding {
+
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        // redis cluster 使用的 CRC16（XMODEM，多项式 0x1021）
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC16_TABLE[i] = crc & 0xFFFF;
+        }
+    }
+
+    private final int shards;
+
+    public KeySharding(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be positive: " + shards);
+        }
+        this.shards = shards;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * 按 id（例如令牌、商品 id）计算所在的分片
+     */
+    public int shardOf(String id) {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        return crc16(bytes, 0, bytes.length) % shards;
+    }
+
+    /**
+     * 全局结构在某个分片上的子键，例如 key("score:", 3) 为 score:{3}
+     */
+    public String key(String prefix, int shard) {
+        return prefix + '{' + shard + '}';
+    }
+
+    /**
+     * 属于某个分片的对象的键，例如 key("article:", 3, "1234") 为 article:{3}:1234
+     */
+    public String key(String prefix, int shard, String id) {
+        return prefix + '{' + shard + "}:" + id;
+    }
+
+    /**
+     * 从 {@link #key(String, int)} 或 {@link #key(String, int, String)} 生成的键中取出分片号
+     */
+    public static int shardOfKey(String key) {
+        int open = key.indexOf('{');
+        int close = open >= 0 ? key.indexOf('}', open + 1) : -1;
+        if (close < 0) {
+            throw new IllegalArgumentException("Not a sharded key: " + key);
+        }
+        return Integer.parseInt(key.substring(open + 1, close));
+    }
+
+    /**
+     * redis cluster 的槽位：键中有非空的 {...} 时只对第一个 {} 中的内容计算
+     */
+    public static int slot(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int open = -1;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == '{') {
+                open = i;
+                break;
+            }
+        }
+        if (open >= 0) {
+            for (int i = open + 1; i < bytes.length; i++) {
+                if (bytes[i] == '}') {
+                    if (i > open + 1) {
+                        return crc16(bytes, open + 1, i) & 0x3FFF;
+                    }
+                    break;
+                }
+            }
+        }
+        return crc16(bytes, 0, bytes.length) & 0x3FFF;
+    }
+
+    private static int crc16(byte[] bytes, int start, int end) {
+        int crc = 0;
+        for (int i = start; i < end; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ bytes[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+}
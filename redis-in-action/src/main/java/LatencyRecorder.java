@@ -0,0 +1,183 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无锁的直方图，用来记录延迟（纳秒），也可以记录其他非负整数，例如每次调用的往返次数、每个流水线的命令数
+ *
+ * 桶的划分和 HdrHistogram 相同：小于 128 的值每个值一个桶，之后每翻一倍再分为 64 个桶，
+ * 所以任何值所在的桶宽度都不超过它的 1/64，百分位数的相对误差在 2% 以内；超过 2^36（约 68 秒）的值记在最后一个桶中
+ *
+ * {@link #record(long)} 只做几次原子加法，不加锁也不分配对象，可以放在热路径上；
+ * 读取时复制一份 {@link Snapshot}，复制期间并发的记录可能只有一部分被计入
+ *
+ * @author 黄学维
+ */
+public class LatencyRecorder {
+
+    private static final int SUB_BUCKET_BITS = 7;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;
+
+    private static final long MAX_VALUE = (1L << 36) - 1;
+
+    private static final int BUCKET_COUNT = bucketOf(MAX_VALUE) + 1;
+
+    /**
+     * 只读的统计结果
+     */
+    public static class Snapshot {
+
+        private final String name;
+        private final boolean durations;
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(String name, boolean durations, long[] counts, long sum, long max) {
+            this.name = name;
+            this.durations = durations;
+            this.counts = counts;
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            this.count = total;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * 记录的是否为纳秒
+         */
+        public boolean isDurations() {
+            return durations;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * 百分位数，percentile 为 0 到 100，返回所在桶的上界（不超过最大值）
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(max, highestEquivalentValue(i));
+                }
+            }
+            return max;
+        }
+    }
+
+    private final String name;
+
+    private final boolean durations;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    private final LongAdder sum = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param durations 记录的是否为纳秒，只影响导出时的格式
+     */
+    public LatencyRecorder(String name, boolean durations) {
+        this.name = name;
+        this.durations = durations;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 记录一个值，{@link Metrics#setEnabled(boolean)} 关闭记录时忽略
+     */
+    public void record(long value) {
+        if (!Metrics.isEnabled()) {
+            return;
+        }
+        if (value < 0) {
+            // System.nanoTime 在不同的核上可能有微小的偏差
+            value = 0;
+        }
+        counts.incrementAndGet(bucketOf(Math.min(value, MAX_VALUE)));
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * 记录从 startNanos（{@link System#nanoTime()}）到现在的时间
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(name, durations, copy, sum.sum(), max.get());
+    }
+
+    /**
+     * 清空统计，例如在压测的预热结束之后
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        sum.reset();
+        max.set(0);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // 值的最高位决定翻倍的次数 shift，value >>> shift 落在 [64, 128) 中
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF_SUB_BUCKET_COUNT + (int) (value >>> shift);
+    }
+
+    private static long highestEquivalentValue(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        int shift = bucket / HALF_SUB_BUCKET_COUNT - 1;
+        long lowest = (long) (bucket - shift * HALF_SUB_BUCKET_COUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,120 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * 缓存在 redis 服务端的 lua 脚本
+ *
+ * 脚本的 sha1 在本地计算，执行时优先使用 evalsha，只传输 40 字节的摘要；
+ * 当服务端还没有缓存这个脚本（NOSCRIPT）时回退到 eval，eval 会顺带把脚本缓存到服务端
+ *
+ * 每个脚本按名称记录同步执行的延迟 redis.script.名称，回退到 eval 的次数记为 redis.script.noscript
+ *
+ * 注意：jedis 只能把回复转换成字符串、整数或者由字符串组成的扁平列表，所以脚本的返回值不能包含嵌套列表、整数元素或 nil 元素；
+ * 键或者参数含有二进制数据（例如 {@link TokenCodec} 的令牌）时使用 {@link #evalBinary}
+ *
+ * @author 黄学维
+ */
+public class LuaScript {
+
+    private static final LongAdder NOSCRIPT_FALLBACKS = Metrics.getDefault().counter("redis.script.noscript");
+
+    private final String name;
+
+    private final String source;
+
+    private final String sha1;
+
+    private final LatencyRecorder latency;
+
+    /**
+     * @param name 脚本的名称，用于指标
+     */
+    public LuaScript(String name, String source) {
+        this.name = name;
+        this.source = source;
+        this.sha1 = sha1Hex(source);
+        this.latency = Metrics.getDefault().recorder("redis.script." + name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getSha1() {
+        return sha1;
+    }
+
+    public Object eval(Jedis jedis, List<String> keys, List<String> args) {
+        long start = System.nanoTime();
+        try {
+            return jedis.evalsha(sha1, keys, args);
+        } catch (JedisDataException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+                throw e;
+            }
+            NOSCRIPT_FALLBACKS.increment();
+            return jedis.eval(source, keys, args);
+        } finally {
+            latency.recordSince(start);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<String> evalForList(Jedis jedis, List<String> keys, List<String> args) {
+        return (List<String>) eval(jedis, keys, args);
+    }
+
+    /**
+     * 键和参数为二进制的 {@link #eval}，回复不做转换：字符串为 byte[]，整数为 Long，列表为由它们组成的 List
+     */
+    public Object evalBinary(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
+        long start = System.nanoTime();
+        byte[] keyCount = String.valueOf(keys.size()).getBytes(StandardCharsets.UTF_8);
+        byte[][] params = new byte[keys.size() + args.size()][];
+        int i = 0;
+        for (byte[] key : keys) {
+            params[i++] = key;
+        }
+        for (byte[] arg : args) {
+            params[i++] = arg;
+        }
+        // jedis 2.1 只在 Client 上提供二进制的 evalsha
+        Client client = jedis.getClient();
+        try {
+            client.evalsha(sha1.getBytes(StandardCharsets.UTF_8), keyCount, params);
+            return client.getOne();
+        } catch (JedisDataException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+                throw e;
+            }
+            NOSCRIPT_FALLBACKS.increment();
+            client.eval(source.getBytes(StandardCharsets.UTF_8), keyCount, params);
+            return client.getOne();
+        } finally {
+            latency.recordSince(start);
+        }
+    }
+
+    private static String sha1Hex(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
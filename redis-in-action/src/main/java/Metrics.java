@@ -0,0 +1,293 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+import redis.clients.jedis.Jedis;
+
+/**
+ * 进程内的指标：每个操作的延迟和往返次数（{@link Operation}），按名称注册的直方图、计数器和当前值
+ *
+ * 指标在第一次使用时注册，之后的记录不查找名称、不分配对象；热路径上的写法为：
+ * <pre>
+ *     private static final Metrics.Operation VOTE = Metrics.getDefault().operation("articles.vote");
+ *
+ *     long start = System.nanoTime();
+ *     long trips = Metrics.roundTrips(jedis);
+ *     try {
+ *         ...
+ *     } finally {
+ *         VOTE.record(start, jedis, trips);
+ *     }
+ * </pre>
+ *
+ * 往返次数由 {@link RedisConnections} 创建的连接自己统计，只计入操作使用的这个连接上的同步调用；
+ * 计数保存在连接中而不是 ThreadLocal 中，每个请求一个虚拟线程时不会为每个线程分配计数器；
+ * -Dmetrics.enabled=false 时不记录任何指标，-Dmetrics.jfr=true 时每次操作还会提交一个 JFR 事件 {@link OperationEvent}
+ *
+ * @author 黄学维
+ */
+public class Metrics {
+
+    private static final Metrics DEFAULT = new Metrics();
+
+    private static volatile boolean enabled = !"false".equals(System.getProperty("metrics.enabled"));
+
+    private static final boolean JFR_EVENTS = Boolean.getBoolean("metrics.jfr");
+
+    private static final LongAdder TOTAL_ROUND_TRIPS = DEFAULT.counter("redis.roundTrips");
+
+    /**
+     * 一次操作的 JFR 事件，在 JDK Mission Control 中可以和 GC、锁竞争等事件放在同一条时间线上查看
+     */
+    @Name("redis.inaction.Operation")
+    @Label("Redis Operation")
+    @Category("Redis in Action")
+    @Description("A Chapter01/Chapter02 operation and the redis round trips it made")
+    public static class OperationEvent extends jdk.jfr.Event {
+
+        @Label("Operation")
+        public String operation;
+
+        @Label("Latency")
+        @Timespan
+        public long latency;
+
+        @Label("Round Trips")
+        public long roundTrips;
+    }
+
+    /**
+     * 一个操作的延迟和每次调用的往返次数
+     */
+    public static class Operation {
+
+        private final String name;
+
+        private final LatencyRecorder latency;
+
+        private final LatencyRecorder roundTrips;
+
+        private volatile EventType eventType;
+
+        private Operation(Metrics metrics, String name) {
+            this.name = name;
+            this.latency = metrics.recorder(name);
+            this.roundTrips = metrics.distribution(name + ".roundTrips");
+        }
+
+        /**
+         * @param startNanos      开始时的 {@link System#nanoTime()}
+         * @param jedis           操作使用的连接
+         * @param startRoundTrips 开始时的 {@link Metrics#roundTrips(Jedis)}
+         */
+        public void record(long startNanos, Jedis jedis, long startRoundTrips) {
+            if (!enabled) {
+                return;
+            }
+            record(System.nanoTime() - startNanos, RedisConnections.roundTrips(jedis) - startRoundTrips);
+        }
+
+        /**
+         * 记录一次没有访问 redis 的调用，例如命中进程内快照
+         */
+        public void record(long startNanos) {
+            if (!enabled) {
+                return;
+            }
+            record(System.nanoTime() - startNanos, 0L);
+        }
+
+        private void record(long elapsed, long trips) {
+            latency.record(elapsed);
+            roundTrips.record(trips);
+            if (JFR_EVENTS) {
+                commitEvent(elapsed, trips);
+            }
+        }
+
+        public LatencyRecorder getLatency() {
+            return latency;
+        }
+
+        public LatencyRecorder getRoundTrips() {
+            return roundTrips;
+        }
+
+        private void commitEvent(long elapsed, long trips) {
+            EventType type = eventType;
+            if (type == null) {
+                type = EventType.getEventType(OperationEvent.class);
+                eventType = type;
+            }
+            // 没有在录制时不创建事件对象
+            if (type.isEnabled()) {
+                OperationEvent event = new OperationEvent();
+                event.operation = name;
+                event.latency = elapsed;
+                event.roundTrips = trips;
+                event.commit();
+            }
+        }
+    }
+
+    private final Map<String, LatencyRecorder> recorders = new ConcurrentHashMap<>();
+
+    private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private final Map<String, AtomicLong> values = new ConcurrentHashMap<>();
+
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    public static Metrics getDefault() {
+        return DEFAULT;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 打开或关闭记录，关闭之后热路径上只剩下一次 volatile 读取
+     */
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    /**
+     * 连接到目前为止发出的 redis 往返次数，两次读取的差就是期间的往返次数；
+     * 不是由 {@link RedisConnections} 创建的连接始终返回 0
+     */
+    public static long roundTrips(Jedis jedis) {
+        return RedisConnections.roundTrips(jedis);
+    }
+
+    /**
+     * 由连接在每次把命令发送到服务端时调用
+     */
+    static void roundTrip() {
+        if (enabled) {
+            TOTAL_ROUND_TRIPS.increment();
+        }
+    }
+
+    public Operation operation(String name) {
+        return operations.computeIfAbsent(name, n -> new Operation(this, n));
+    }
+
+    /**
+     * 记录纳秒的直方图
+     */
+    public LatencyRecorder recorder(String name) {
+        return recorders.computeIfAbsent(name, n -> new LatencyRecorder(n, true));
+    }
+
+    /**
+     * 记录其他数值（次数、大小等）的直方图
+     */
+    public LatencyRecorder distribution(String name) {
+        return recorders.computeIfAbsent(name, n -> new LatencyRecorder(n, false));
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * 由调用方设置的当前值，例如清理线程最近一次看到的积压数量
+     */
+    public AtomicLong gauge(String name) {
+        return values.computeIfAbsent(name, n -> new AtomicLong());
+    }
+
+    /**
+     * 导出时才计算的当前值，例如命中率
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * 把所有指标交给 exporter，名称按字典序排列，从来没有记录过的直方图会被跳过
+     */
+    public void export(MetricsExporter exporter) {
+        Map<String, LatencyRecorder.Snapshot> snapshots = new TreeMap<>();
+        for (LatencyRecorder recorder : recorders.values()) {
+            LatencyRecorder.Snapshot snapshot = recorder.snapshot();
+            if (snapshot.getCount() > 0) {
+                snapshots.put(recorder.getName(), snapshot);
+            }
+        }
+        Map<String, Long> current = new TreeMap<>();
+        counters.forEach((name, counter) -> current.put(name, counter.sum()));
+        values.forEach((name, value) -> current.put(name, value.get()));
+        gauges.forEach((name, gauge) -> current.put(name, gauge.getAsLong()));
+        exporter.export(snapshots, current);
+    }
+
+    /**
+     * 文本格式的所有指标，用于离线查看
+     */
+    public String dump() {
+        StringBuilder text = new StringBuilder();
+        export(new TextMetricsExporter(text));
+        return text.toString();
+    }
+
+    /**
+     * 清空所有直方图和计数器
+     */
+    public void reset() {
+        recorders.values().forEach(LatencyRecorder::reset);
+        counters.values().forEach(LongAdder::reset);
+    }
+
+    /**
+     * 定期导出指标的线程
+     */
+    public class ExportThread extends WorkerRuntime.BackgroundWorker {
+
+        private final MetricsExporter exporter;
+
+        private final long intervalMillis;
+
+        private volatile boolean quit;
+
+        public ExportThread(MetricsExporter exporter, long intervalMillis) {
+            super("metrics-export", true);
+            this.exporter = exporter;
+            this.intervalMillis = intervalMillis;
+        }
+
+        @Override
+        public void quit() {
+            quit = true;
+            interruptRunner();
+        }
+
+        @Override
+        protected void work() {
+            while (!quit) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    // quit() 之后再导出最后一次
+                }
+                try {
+                    export(exporter);
+                } catch (RuntimeException e) {
+                    System.err.println("Failed to export metrics: " + e);
+                }
+            }
+        }
+    }
+}
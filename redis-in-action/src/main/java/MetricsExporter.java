@@ -0,0 +1,15 @@
+import java.util.Map;
+
+/**
+ * 把 {@link Metrics} 输出到外部，例如文本、日志或者监控系统；实现类只需要转换格式
+ *
+ * @author 黄学维
+ */
+public interface MetricsExporter {
+
+    /**
+     * @param recorders 直方图的统计结果，按名称排序
+     * @param values    计数器和当前值，按名称排序
+     */
+    void export(Map<String, LatencyRecorder.Snapshot> recorders, Map<String, Long> values);
+}
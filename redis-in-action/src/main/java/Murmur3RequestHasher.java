@@ -0,0 +1,158 @@
+/**
+ * 默认的请求散列算法：128 位的 MurmurHash3（x64 版本），结果编码为 22 个字符的 base64url 字符串
+ *
+ * 32 位的 String.hashCode() 在几百万个缓存页面中必然出现碰撞，碰撞时用户会拿到其他地址的页面；128 位的散列值可以忽略碰撞的可能
+ *
+ * 散列直接在字符上边做 UTF-8 编码边计算，不会复制出中间的 byte 数组；结果和对 request.getBytes(UTF_8) 计算的 MurmurHash3 相同
+ *
+ * @author 黄学维
+ */
+public class Murmur3RequestHasher implements RequestHasher {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private static final char[] BASE64_URL =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private final int seed;
+
+    public Murmur3RequestHasher() {
+        this(0);
+    }
+
+    public Murmur3RequestHasher(int seed) {
+        this.seed = seed;
+    }
+
+    @Override
+    public String hash(String request) {
+        State state = new State(seed);
+        int length = request.length();
+        for (int i = 0; i < length; i++) {
+            char c = request.charAt(i);
+            if (c < 0x80) {
+                state.put(c);
+            } else if (c < 0x800) {
+                state.put(0xC0 | (c >> 6));
+                state.put(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(request.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, request.charAt(++i));
+                state.put(0xF0 | (codePoint >> 18));
+                state.put(0x80 | ((codePoint >> 12) & 0x3F));
+                state.put(0x80 | ((codePoint >> 6) & 0x3F));
+                state.put(0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // 和 String.getBytes(UTF_8) 一样，不成对的代理字符编码为 '?'
+                state.put('?');
+            } else {
+                state.put(0xE0 | (c >> 12));
+                state.put(0x80 | ((c >> 6) & 0x3F));
+                state.put(0x80 | (c & 0x3F));
+            }
+        }
+        state.finish();
+        return encode(state.h1, state.h2);
+    }
+
+    /**
+     * 把 128 位散列值（h1、h2 各按小端字节序）编码为不带填充的 base64url
+     */
+    private static String encode(long h1, long h2) {
+        char[] out = new char[22];
+        int o = 0;
+        int bits = 0;
+        int buffer = 0;
+        for (int i = 0; i < 16; i++) {
+            long word = i < 8 ? h1 : h2;
+            buffer = (buffer << 8) | (int) ((word >>> ((i & 7) * 8)) & 0xFF);
+            bits += 8;
+            while (bits >= 6) {
+                bits -= 6;
+                out[o++] = BASE64_URL[(buffer >>> bits) & 0x3F];
+            }
+        }
+        out[o] = BASE64_URL[(buffer << (6 - bits)) & 0x3F];
+        return new String(out);
+    }
+
+    private static final class State {
+
+        private long h1;
+        private long h2;
+        private long k1;
+        private long k2;
+        private int position;
+        private long length;
+
+        private State(int seed) {
+            this.h1 = seed & 0xFFFFFFFFL;
+            this.h2 = seed & 0xFFFFFFFFL;
+        }
+
+        private void put(int b) {
+            long value = b & 0xFFL;
+            if (position < 8) {
+                k1 |= value << (position * 8);
+            } else {
+                k2 |= value << ((position - 8) * 8);
+            }
+            length++;
+            if (++position == 16) {
+                mixBlock();
+                k1 = 0;
+                k2 = 0;
+                position = 0;
+            }
+        }
+
+        private void mixBlock() {
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        private void finish() {
+            if (position > 0) {
+                h1 ^= mixK1(k1);
+                h2 ^= mixK2(k2);
+            }
+            h1 ^= length;
+            h2 ^= length;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix64(h1);
+            h2 = fmix64(h2);
+            h1 += h2;
+            h2 += h1;
+        }
+
+        private static long mixK1(long k1) {
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            return k1 * C2;
+        }
+
+        private static long mixK2(long k2) {
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            return k2 * C1;
+        }
+
+        private static long fmix64(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+}
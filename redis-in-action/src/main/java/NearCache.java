@@ -0,0 +1,478 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+
+/**
+ * 进程内的近端缓存，放在 redis 页面缓存前面，热点页面不再需要一次网络往返
+ *
+ * 按字节数限制容量，使用分段 LRU 淘汰：新写入的条目进入试用段，再次命中后晋升到保护段，
+ * 保护段超出容量时最久未使用的条目降回试用段，淘汰总是从试用段开始，因此只被访问一次的页面不会挤掉真正的热点页面
+ *
+ * 读取不加锁，只查 ConcurrentHashMap；命中的条目放进访问缓冲区，由持有锁的写入方批量晋升和清理过期条目，
+ * 锁使用 ReentrantLock，虚拟线程等待时不会占住载体线程
+ *
+ * 每个条目都带有过期时间，和 redis 中对应键的剩余生存时间对齐；某个节点重写页面时通过 redis 的发布订阅通知所有节点删除本地的副本
+ *
+ * 从 redis 读到页面再放入近端缓存之间可能正好收到这个页面的失效通知，这时放入的是已经过期的旧页面。
+ * 因此每次失效都会增加键所在分段的版本号，调用方在读取 redis 之前用 {@link #version(String)} 记录版本号，
+ * 再用 {@link #putIfNotInvalidated(String, String, long, long)} 放入，期间版本号变化时不放入
+ *
+ * @author 黄学维
+ */
+public class NearCache {
+
+    /**
+     * 默认的失效通知频道
+     */
+    public static final String INVALIDATION_CHANNEL = "near-cache:invalidate";
+
+    /**
+     * 每个条目除了字符串内容之外的大致开销
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    /**
+     * 失效版本号的分段数量，必须是 2 的幂；不同的键落在同一个分段时只会多跳过一些放入，不影响正确性
+     */
+    private static final int VERSION_STRIPES = 64;
+
+    private static final class Entry {
+
+        private final String key;
+        private final String value;
+        private final long bytes;
+        private final long expiresAt;
+        /**
+         * 只在持有锁时访问
+         */
+        private boolean protectedSegment;
+        /**
+         * 已经放进访问缓冲区、还没有被处理，保证每个条目在缓冲区中最多出现一次
+         */
+        private volatile boolean accessed;
+
+        private Entry(String key, String value, long bytes, long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.bytes = bytes;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long maxBytes;
+
+    private final long maxProtectedBytes;
+
+    private final long ttlMillis;
+
+    /**
+     * 用于区分失效通知来自哪个节点，本节点发出的通知不需要再处理
+     */
+    private final String nodeId = UUID.randomUUID().toString();
+
+    /**
+     * 读取路径使用的索引，只在持有 lock 时修改，和两个分段中的条目保持一致
+     */
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * 保护分段、字节数和访问缓冲区的处理
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 读取时命中或者发现过期的条目，写入方持有锁时处理
+     */
+    private final Queue<Entry> accessBuffer = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 两个分段都按访问顺序排列，最久未使用的条目在最前面，只在持有 lock 时访问
+     */
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LinkedHashMap<String, Entry> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long probationBytes;
+
+    private long protectedBytes;
+
+    /**
+     * 每个分段的失效版本号，收到失效通知时即使本地没有对应的条目也会增加
+     */
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder expirations = new LongAdder();
+
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param maxBytes  缓存内容占用的最大字节数
+     * @param ttlMillis 条目的最长生存时间
+     */
+    public NearCache(long maxBytes, long ttlMillis) {
+        this.maxBytes = maxBytes;
+        this.maxProtectedBytes = maxBytes * 4 / 5;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 查找未过期的条目，找不到时返回 null；不加锁，晋升和过期条目的删除留给下一次写入
+     */
+    public String get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (!entry.accessed) {
+            entry.accessed = true;
+            accessBuffer.offer(entry);
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * 使用默认的生存时间缓存内容
+     */
+    public void put(String key, String value) {
+        put(key, value, ttlMillis);
+    }
+
+    /**
+     * 缓存内容，生存时间不会超过创建缓存时指定的 ttlMillis；单个条目超过总容量时不缓存
+     */
+    public void put(String key, String value, long ttlMillis) {
+        lock.lock();
+        try {
+            putLocked(key, value, ttlMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 缓存内容，但是从 version 记录之后这个键被失效过时不缓存，返回是否缓存
+     *
+     * @param version 读取 redis 之前调用 {@link #version(String)} 得到的版本号
+     */
+    public boolean putIfNotInvalidated(String key, String value, long ttlMillis, long version) {
+        lock.lock();
+        try {
+            if (versions.get(stripe(key)) != version) {
+                return false;
+            }
+            putLocked(key, value, ttlMillis);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 键当前的失效版本号，在从 redis 读取要放入近端缓存的内容之前调用
+     */
+    public long version(String key) {
+        return versions.get(stripe(key));
+    }
+
+    /**
+     * 删除本地的条目
+     */
+    public void invalidate(String key) {
+        lock.lock();
+        try {
+            versions.incrementAndGet(stripe(key));
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                remove(entry);
+                invalidations.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 删除所有条目并增加所有分段的版本号，清空之前开始的读取都不能再放入
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            for (int i = 0; i < VERSION_STRIPES; i++) {
+                versions.incrementAndGet(i);
+            }
+            entries.clear();
+            probation.clear();
+            protectedEntries.clear();
+            accessBuffer.clear();
+            probationBytes = 0;
+            protectedBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 通知所有节点（不包括本节点）删除 key 对应的条目
+     */
+    public void publishInvalidation(Jedis jedis, String key) {
+        jedis.publish(INVALIDATION_CHANNEL, invalidationMessage(key));
+    }
+
+    /**
+     * 发布到 {@link #INVALIDATION_CHANNEL} 的消息内容，便于调用方在流水线中发布
+     */
+    public String invalidationMessage(String key) {
+        return nodeId + ' ' + key;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getWeightedBytes() {
+        lock.lock();
+        try {
+            return probationBytes + protectedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "NearCache{hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions()
+            + ", expirations=" + getExpirations() + ", invalidations=" + getInvalidations() + ", size=" + size()
+            + ", bytes=" + getWeightedBytes() + "}";
+    }
+
+    private static int stripe(String key) {
+        return key.hashCode() & (VERSION_STRIPES - 1);
+    }
+
+    private void putLocked(String key, String value, long ttlMillis) {
+        drainAccessBuffer();
+        long bytes = ENTRY_OVERHEAD_BYTES + 2L * (key.length() + value.length());
+        long ttl = Math.min(ttlMillis, this.ttlMillis);
+        Entry old = entries.get(key);
+        if (old != null) {
+            remove(old);
+        }
+        if (ttl <= 0 || bytes > maxBytes) {
+            return;
+        }
+
+        Entry entry = new Entry(key, value, bytes, System.currentTimeMillis() + ttl);
+        probation.put(key, entry);
+        probationBytes += bytes;
+        entries.put(key, entry);
+        evictIfNeeded();
+    }
+
+    /**
+     * 按读取的顺序处理访问缓冲区：已经被替换或删除的条目跳过，过期的条目删除，
+     * 试用段的条目晋升到保护段，保护段的条目移到最近使用的位置
+     */
+    private void drainAccessBuffer() {
+        long now = System.currentTimeMillis();
+        Entry entry;
+        while ((entry = accessBuffer.poll()) != null) {
+            entry.accessed = false;
+            if (entries.get(entry.key) != entry) {
+                continue;
+            }
+            if (entry.expiresAt <= now) {
+                remove(entry);
+                expirations.increment();
+            } else if (entry.protectedSegment) {
+                protectedEntries.get(entry.key);
+            } else {
+                promote(entry);
+            }
+        }
+    }
+
+    private void promote(Entry entry) {
+        probation.remove(entry.key);
+        probationBytes -= entry.bytes;
+        entry.protectedSegment = true;
+        protectedEntries.put(entry.key, entry);
+        protectedBytes += entry.bytes;
+
+        // 保护段超出容量，把最久未使用的条目降回试用段
+        Iterator<Map.Entry<String, Entry>> iterator = protectedEntries.entrySet().iterator();
+        while (protectedBytes > maxProtectedBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            iterator.remove();
+            Entry demoted = eldest.getValue();
+            protectedBytes -= demoted.bytes;
+            demoted.protectedSegment = false;
+            probation.put(eldest.getKey(), demoted);
+            probationBytes += demoted.bytes;
+        }
+    }
+
+    private void evictIfNeeded() {
+        evictFrom(probation);
+        evictFrom(protectedEntries);
+    }
+
+    private void evictFrom(LinkedHashMap<String, Entry> segment) {
+        Iterator<Map.Entry<String, Entry>> iterator = segment.entrySet().iterator();
+        while (probationBytes + protectedBytes > maxBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            entries.remove(eldest.key);
+            if (eldest.protectedSegment) {
+                protectedBytes -= eldest.bytes;
+            } else {
+                probationBytes -= eldest.bytes;
+            }
+            evictions.increment();
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.key);
+        if (entry.protectedSegment) {
+            protectedEntries.remove(entry.key);
+            protectedBytes -= entry.bytes;
+        } else {
+            probation.remove(entry.key);
+            probationBytes -= entry.bytes;
+        }
+    }
+
+    /**
+     * 订阅失效通知的线程，订阅生效之前的通知都会错过，因此每次订阅生效时清空整个近端缓存，
+     * 同时增加所有分段的版本号，订阅之前开始的读取不能再放入可能过期的页面
+     */
+    public class InvalidationThread extends WorkerRuntime.BackgroundWorker {
+
+        private final RedisConnections connections;
+
+        private volatile Jedis jedis;
+
+        private volatile JedisPubSub subscriber;
+
+        private volatile boolean quit;
+
+        public InvalidationThread(RedisConnections connections) {
+            super("near-cache-invalidation", true);
+            this.connections = connections;
+        }
+
+        @Override
+        public void quit() {
+            quit = true;
+            JedisPubSub current = subscriber;
+            if (current != null && current.isSubscribed()) {
+                current.unsubscribe();
+            }
+            interruptRunner();
+        }
+
+        @Override
+        protected void work() {
+            while (!quit) {
+                try {
+                    jedis = connections.openDedicated();
+                    subscriber = new Subscriber();
+                    jedis.subscribe(subscriber, INVALIDATION_CHANNEL);
+                } catch (RuntimeException e) {
+                    if (quit) {
+                        break;
+                    }
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                } finally {
+                    try {
+                        jedis.disconnect();
+                    } catch (RuntimeException e) {
+                        // ignore
+                    }
+                }
+            }
+        }
+    }
+
+    private class Subscriber extends JedisPubSub {
+
+        @Override
+        public void onMessage(String channel, String message) {
+            int split = message.indexOf(' ');
+            if (split > 0 && !(split == nodeId.length() && message.startsWith(nodeId))) {
+                invalidate(message.substring(split + 1));
+            }
+        }
+
+        @Override
+        public void onPMessage(String pattern, String channel, String message) {
+        }
+
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            // 订阅已经生效，之后的失效通知都不会再错过
+            clear();
+        }
+
+        @Override
+        public void onUnsubscribe(String channel, int subscribedChannels) {
+        }
+
+        @Override
+        public void onPUnsubscribe(String pattern, int subscribedChannels) {
+        }
+
+        @Override
+        public void onPSubscribe(String pattern, int subscribedChannels) {
+        }
+    }
+}
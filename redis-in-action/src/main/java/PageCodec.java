@@ -0,0 +1,201 @@
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdInputStreamNoFinalizer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+/**
+ * 缓存页面在 redis 中的编码
+ *
+ * 小于 compressionThreshold 字节的页面直接保存 UTF-8 字节，和之前用字符串写入的页面完全相同；更大的页面默认压缩为 LZ4 帧，
+ * 设置了 zstd 字典之后压缩为带字典 id 的 zstd 帧。两种帧都以固定的魔数开头，HTML 文本不会以这些字节开头，因此读取时不需要额外的格式字节
+ *
+ * zstd 字典用 {@link #trainDictionary(Collection, int)} 从样本页面训练，读取时按帧中的字典 id 查找，
+ * 换用新字典之后旧字典压缩的页面仍然可以读取
+ *
+ * @author 黄学维
+ */
+public class PageCodec {
+
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    private static final byte[] LZ4_MAGIC = {0x04, 0x22, 0x4D, 0x18};
+
+    private static final byte[] ZSTD_MAGIC = {0x28, (byte) 0xB5, 0x2F, (byte) 0xFD};
+
+    private final int compressionThreshold;
+
+    /**
+     * 读取时可以使用的 zstd 字典，键为字典 id
+     */
+    private final Map<Long, ZstdDictDecompress> dictionaries = new ConcurrentHashMap<>();
+
+    /**
+     * 写入时使用的 zstd 字典，为 null 时使用 LZ4
+     */
+    private volatile ZstdDictCompress compressDictionary;
+
+    private volatile long dictionaryId;
+
+    public PageCodec() {
+        this(DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    /**
+     * @param compressionThreshold 页面达到这个字节数才压缩，Integer.MAX_VALUE 表示不压缩
+     */
+    public PageCodec(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * 用样本页面训练 zstd 字典，样本应该覆盖各类页面的公共结构，总量通常是字典大小的 100 倍左右
+     */
+    public static byte[] trainDictionary(Collection<String> samples, int dictionarySize) {
+        long sampleBytes = 0;
+        for (String sample : samples) {
+            sampleBytes += sample.length() * 3L;
+        }
+        ZstdDictTrainer trainer = new ZstdDictTrainer((int) Math.min(Integer.MAX_VALUE - 8, sampleBytes), dictionarySize);
+        for (String sample : samples) {
+            trainer.addSample(sample.getBytes(StandardCharsets.UTF_8));
+        }
+        return trainer.trainSamples();
+    }
+
+    public static long getDictionaryId(byte[] dictionary) {
+        return Zstd.getDictIdFromDict(dictionary);
+    }
+
+    /**
+     * 之后压缩的页面都使用这个字典，它同时也加入读取时可以使用的字典
+     */
+    public void useDictionary(byte[] dictionary, int level) {
+        long id = addDictionary(dictionary);
+        compressDictionary = new ZstdDictCompress(dictionary, level);
+        dictionaryId = id;
+    }
+
+    /**
+     * 只用于读取的字典，例如从 redis 加载的其他节点训练的字典，返回字典 id
+     */
+    public long addDictionary(byte[] dictionary) {
+        long id = getDictionaryId(dictionary);
+        if (id == 0) {
+            throw new IllegalArgumentException("Not a zstd dictionary");
+        }
+        dictionaries.computeIfAbsent(id, key -> new ZstdDictDecompress(dictionary));
+        return id;
+    }
+
+    /**
+     * 当前写入时使用的字典 id，没有字典时为 0
+     */
+    public long getDictionaryId() {
+        return compressDictionary != null ? dictionaryId : 0;
+    }
+
+    public byte[] encode(String page) {
+        byte[] raw = page.getBytes(StandardCharsets.UTF_8);
+        // 恰好以魔数开头的文本也需要压缩，否则读取时会被当成压缩帧
+        boolean ambiguous = startsWith(raw, LZ4_MAGIC) || startsWith(raw, ZSTD_MAGIC);
+        if (raw.length < compressionThreshold && !ambiguous) {
+            return raw;
+        }
+        ZstdDictCompress dictionary = compressDictionary;
+        byte[] compressed = dictionary != null ? Zstd.compress(raw, dictionary) : lz4(raw);
+        return compressed.length < raw.length || ambiguous ? compressed : raw;
+    }
+
+    public String decode(byte[] value) {
+        if (startsWith(value, ZSTD_MAGIC)) {
+            long size = Zstd.getFrameContentSize(value);
+            return new String(Zstd.decompress(value, dictionary(value), (int) size), StandardCharsets.UTF_8);
+        }
+        if (startsWith(value, LZ4_MAGIC)) {
+            try (LZ4FrameInputStream in = new LZ4FrameInputStream(new ByteArrayInputStream(value))) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 把页面的 UTF-8 字节边解压边写入 out，不生成整个页面的字符串
+     */
+    public void decodeTo(byte[] value, OutputStream out) throws IOException {
+        if (startsWith(value, ZSTD_MAGIC)) {
+            try (ZstdInputStreamNoFinalizer in = new ZstdInputStreamNoFinalizer(new ByteArrayInputStream(value))) {
+                in.setDict(dictionary(value));
+                in.transferTo(out);
+            }
+        } else if (startsWith(value, LZ4_MAGIC)) {
+            try (InputStream in = new LZ4FrameInputStream(new ByteArrayInputStream(value))) {
+                in.transferTo(out);
+            }
+        } else {
+            out.write(value);
+        }
+    }
+
+    /**
+     * 解压这个值需要的字典 id，不需要字典时为 0
+     */
+    public long requiredDictionaryId(byte[] value) {
+        return startsWith(value, ZSTD_MAGIC) ? Zstd.getDictIdFromFrame(value) : 0;
+    }
+
+    /**
+     * 需要的字典是否已经加载
+     */
+    public boolean canDecode(byte[] value) {
+        long id = requiredDictionaryId(value);
+        return id == 0 || dictionaries.containsKey(id);
+    }
+
+    private ZstdDictDecompress dictionary(byte[] value) {
+        long id = Zstd.getDictIdFromFrame(value);
+        ZstdDictDecompress dictionary = dictionaries.get(id);
+        if (dictionary == null) {
+            throw new IllegalStateException("Unknown page dictionary: " + id);
+        }
+        return dictionary;
+    }
+
+    private static byte[] lz4(byte[] raw) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2);
+        // 页面一般不超过 64KB，最小的块大小可以避免为每个页面分配 4MB 的默认缓冲区
+        try (LZ4FrameOutputStream lz4 = new LZ4FrameOutputStream(out, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB)) {
+            lz4.write(raw);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean startsWith(byte[] value, byte[] magic) {
+        if (value.length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (value[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,669 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.pool.BasePoolableObjectFactory;
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.Pool;
+
+/**
+ * 线程安全的 redis 连接管理，取代各处自行创建的 new Jedis("localhost") 连接
+ *
+ * 内部是一个有上限的连接池：空闲的连接会被定期用 ping 检查，借出时默认不检查（见 {@link Config#setTestOnBorrow}）；
+ * 连接失败时销毁这个连接，并按指数退避（带随机抖动）重试
+ *
+ * 用法：
+ * <pre>
+ *     RedisConnections connections = new RedisConnections(RedisConnections.Config.fromSystemProperties());
+ *     String user = connections.execute(jedis -> jedis.hget("login:", token));
+ * </pre>
+ *
+ * 回调中不要执行 select 切换数据库，连接归还后会被其他线程继续使用
+ *
+ * 连接会统计往返次数（{@link Metrics#roundTrips(Jedis)}）以及每种命令的延迟（redis.command.命令名），
+ * 流水线和事务一次读取多个回复，记为 redis.pipeline 以及每次的命令数 redis.pipeline.size；
+ * 借出连接的等待时间记为 redis.pool.borrow
+ *
+ * @author 黄学维
+ */
+public class RedisConnections implements AutoCloseable {
+
+    private static volatile RedisConnections defaultConnections;
+
+    private static final LatencyRecorder BORROW_LATENCY = Metrics.getDefault().recorder("redis.pool.borrow");
+
+    private static final LatencyRecorder PIPELINE_LATENCY = Metrics.getDefault().recorder("redis.pipeline");
+
+    private static final LatencyRecorder PIPELINE_SIZE = Metrics.getDefault().distribution("redis.pipeline.size");
+
+    /**
+     * 每种命令的延迟，第一次执行这种命令时注册
+     */
+    private static final LatencyRecorder[] COMMAND_LATENCY = new LatencyRecorder[Protocol.Command.values().length];
+
+    /**
+     * 使用连接执行操作的回调
+     */
+    public interface Callback<T> {
+
+        T execute(Jedis jedis);
+    }
+
+    /**
+     * 连接配置，默认连接本机 6379 端口的 15 号数据库，和书中的示例一致
+     */
+    public static class Config {
+
+        private String host = "localhost";
+        private int port = 6379;
+        private int database = 15;
+        private String password;
+        private int timeoutMillis = 2000;
+        private int maxTotal = 32;
+        private int maxIdle = 8;
+        private long maxWaitMillis = 2000;
+        private long healthCheckIntervalMillis = 30000;
+        private boolean testOnBorrow;
+        private int maxAttempts = 3;
+        private long backoffMillis = 50;
+        private long maxBackoffMillis = 2000;
+        private boolean embedded;
+
+        /**
+         * 从系统属性读取配置，例如 -Dredis.host=10.0.0.1 -Dredis.port=6380 -Dredis.db=0
+         */
+        public static Config fromSystemProperties() {
+            Config config = new Config();
+            config.host = System.getProperty("redis.host", config.host);
+            config.port = Integer.getInteger("redis.port", config.port);
+            config.database = Integer.getInteger("redis.db", config.database);
+            config.password = System.getProperty("redis.password", config.password);
+            config.timeoutMillis = Integer.getInteger("redis.timeout", config.timeoutMillis);
+            config.maxTotal = Integer.getInteger("redis.pool.maxTotal", config.maxTotal);
+            config.maxIdle = Integer.getInteger("redis.pool.maxIdle", config.maxIdle);
+            config.maxWaitMillis = Long.getLong("redis.pool.maxWait", config.maxWaitMillis);
+            config.testOnBorrow = Boolean.getBoolean("redis.pool.testOnBorrow");
+            config.maxAttempts = Integer.getInteger("redis.retry.maxAttempts", config.maxAttempts);
+            config.embedded = Boolean.getBoolean("redis.embedded");
+            return config;
+        }
+
+        /**
+         * 连接到另一个地址的副本，其他配置不变
+         */
+        Config withAddress(String host, int port) {
+            Config copy = new Config();
+            copy.host = host;
+            copy.port = port;
+            copy.database = database;
+            copy.password = password;
+            copy.timeoutMillis = timeoutMillis;
+            copy.maxTotal = maxTotal;
+            copy.maxIdle = maxIdle;
+            copy.maxWaitMillis = maxWaitMillis;
+            copy.healthCheckIntervalMillis = healthCheckIntervalMillis;
+            copy.testOnBorrow = testOnBorrow;
+            copy.maxAttempts = maxAttempts;
+            copy.backoffMillis = backoffMillis;
+            copy.maxBackoffMillis = maxBackoffMillis;
+            copy.embedded = embedded;
+            return copy;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public void setHost(String host) {
+            this.host = host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public int getDatabase() {
+            return database;
+        }
+
+        public void setDatabase(int database) {
+            this.database = database;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        public void setPassword(String password) {
+            this.password = password;
+        }
+
+        public int getTimeoutMillis() {
+            return timeoutMillis;
+        }
+
+        public void setTimeoutMillis(int timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public int getMaxTotal() {
+            return maxTotal;
+        }
+
+        public void setMaxTotal(int maxTotal) {
+            this.maxTotal = maxTotal;
+        }
+
+        public int getMaxIdle() {
+            return maxIdle;
+        }
+
+        public void setMaxIdle(int maxIdle) {
+            this.maxIdle = maxIdle;
+        }
+
+        public long getMaxWaitMillis() {
+            return maxWaitMillis;
+        }
+
+        public void setMaxWaitMillis(long maxWaitMillis) {
+            this.maxWaitMillis = maxWaitMillis;
+        }
+
+        public long getHealthCheckIntervalMillis() {
+            return healthCheckIntervalMillis;
+        }
+
+        public void setHealthCheckIntervalMillis(long healthCheckIntervalMillis) {
+            this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+        }
+
+        public boolean isTestOnBorrow() {
+            return testOnBorrow;
+        }
+
+        /**
+         * 为 true 时每次借出连接前 ping 一次（-Dredis.pool.testOnBorrow=true），每次调用都会多一次网络往返，默认关闭
+         */
+        public void setTestOnBorrow(boolean testOnBorrow) {
+            this.testOnBorrow = testOnBorrow;
+        }
+
+        public int getMaxAttempts() {
+            return maxAttempts;
+        }
+
+        public void setMaxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+        }
+
+        public long getBackoffMillis() {
+            return backoffMillis;
+        }
+
+        public void setBackoffMillis(long backoffMillis) {
+            this.backoffMillis = backoffMillis;
+        }
+
+        public long getMaxBackoffMillis() {
+            return maxBackoffMillis;
+        }
+
+        public void setMaxBackoffMillis(long maxBackoffMillis) {
+            this.maxBackoffMillis = maxBackoffMillis;
+        }
+
+        public boolean isEmbedded() {
+            return embedded;
+        }
+
+        /**
+         * 为 true 时不连接外部的 redis，而是在进程内启动一个 {@link EmbeddedRedisServer}（-Dredis.embedded=true），
+         * 创建连接时 host 和 port 会被改为内嵌服务监听的本地地址
+         */
+        public void setEmbedded(boolean embedded) {
+            this.embedded = embedded;
+        }
+    }
+
+    private final Config config;
+
+    private final Pool<Jedis> pool;
+
+    /**
+     * 和连接池上限相同数量的许可，借出连接前先取得许可
+     *
+     * 连接池内部用对象监视器等待空闲连接，虚拟线程在监视器上等待时会占住平台线程；
+     * 先在公平的信号量上排队，成千上万个虚拟线程等待连接时只是挂起，连接池本身永远不需要等待
+     */
+    private final Semaphore permits;
+
+    private AsyncRedis async;
+
+    /**
+     * 嵌入模式下进程内的 redis 服务，否则为 null
+     */
+    private final EmbeddedRedisServer embeddedServer;
+
+    public RedisConnections(Config config) {
+        this.embeddedServer = config.embedded ? startEmbeddedServer() : null;
+        // 嵌入模式连接到进程内服务的随机端口，调用方传入的配置保持不变
+        this.config = embeddedServer != null ? config.withAddress("127.0.0.1", embeddedServer.getPort()) : config;
+
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxActive(this.config.maxTotal);
+        poolConfig.setMaxIdle(this.config.maxIdle);
+        poolConfig.setMaxWait(this.config.maxWaitMillis);
+        // 空闲连接定期检查，使用中断开的连接在 release 时销毁，之后重新创建；借出前不再 ping，否则每次调用都多一次往返
+        poolConfig.setTestOnBorrow(this.config.testOnBorrow);
+        poolConfig.setTestWhileIdle(true);
+        poolConfig.setTimeBetweenEvictionRunsMillis(this.config.healthCheckIntervalMillis);
+        poolConfig.setNumTestsPerEvictionRun(-1);
+        this.permits = new Semaphore(this.config.maxTotal, true);
+        this.pool = new Pool<Jedis>(poolConfig, new JedisFactory(this.config)) {
+        };
+    }
+
+    /**
+     * 进程内共享的默认连接，第一次使用时按系统属性创建
+     */
+    public static RedisConnections getDefault() {
+        RedisConnections connections = defaultConnections;
+        if (connections == null) {
+            synchronized (RedisConnections.class) {
+                connections = defaultConnections;
+                if (connections == null) {
+                    connections = new RedisConnections(Config.fromSystemProperties());
+                    defaultConnections = connections;
+                }
+            }
+        }
+        return connections;
+    }
+
+    /**
+     * 替换默认连接，例如在测试或压测时指向内嵌的 redis
+     */
+    public static synchronized void setDefault(RedisConnections connections) {
+        defaultConnections = connections;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    /**
+     * 借出一个连接执行回调，之后归还连接
+     *
+     * 只有在还没有拿到可用的连接时才会重试，命令发出之后出现的连接错误直接抛出，避免非幂等的写入被执行两次
+     */
+    public <T> T execute(Callback<T> callback) {
+        Jedis jedis = borrow();
+        boolean broken = false;
+        try {
+            return callback.execute(jedis);
+        } catch (JedisDataException e) {
+            // 命令错误不影响连接本身
+            throw e;
+        } catch (RuntimeException e) {
+            // 连接断开，或者流水线、事务执行到一半，连接上可能还有未读取的回复
+            broken = true;
+            throw e;
+        } finally {
+            release(jedis, broken);
+        }
+    }
+
+    /**
+     * 和 {@link #execute(Callback)} 相同，但是执行过程中连接断开时也会重试，只适用于幂等的操作
+     */
+    public <T> T executeWithRetry(Callback<T> callback) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return execute(callback);
+            } catch (JedisConnectionException e) {
+                if (attempt >= config.maxAttempts) {
+                    throw e;
+                }
+                backoff(attempt);
+            }
+        }
+    }
+
+    /**
+     * 借出一个连接，使用完之后必须调用 {@link #release(Jedis, boolean)} 归还；
+     * 适用于需要长时间独占连接的场景，一般情况下使用 {@link #execute(Callback)}
+     */
+    public Jedis borrow() {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(config.maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new JedisConnectionException("Could not get a resource from the pool");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JedisConnectionException("Interrupted while waiting for a connection");
+        }
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    Jedis jedis = pool.getResource();
+                    BORROW_LATENCY.recordSince(start);
+                    return jedis;
+                } catch (JedisConnectionException e) {
+                    if (attempt >= config.maxAttempts) {
+                        throw e;
+                    }
+                    backoff(attempt);
+                }
+            }
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * 归还连接，broken 为 true 时销毁这个连接
+     */
+    public void release(Jedis jedis, boolean broken) {
+        try {
+            if (broken) {
+                pool.returnBrokenResource(jedis);
+            } else {
+                pool.returnResource(jedis);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * 和这组连接使用相同配置的异步客户端，第一次使用时创建，通道数量由 -Dredis.async.lanes 指定（默认 2）
+     */
+    public synchronized AsyncRedis async() {
+        if (async == null) {
+            async = new AsyncRedis(config, Integer.getInteger("redis.async.lanes", 2), 512);
+        }
+        return async;
+    }
+
+    /**
+     * 创建一个不属于连接池的连接，用于订阅等会长时间阻塞的命令，读取超时为 0（不超时）
+     */
+    public Jedis openDedicated() {
+        Jedis jedis = newJedis(config.host, config.port, 0);
+        if (config.password != null) {
+            jedis.auth(config.password);
+        }
+        jedis.select(config.database);
+        return jedis;
+    }
+
+    /**
+     * 嵌入模式下进程内的 redis 服务，可以用来直接访问 {@link EmbeddedRedis}；不是嵌入模式时返回 null
+     */
+    public EmbeddedRedisServer getEmbeddedServer() {
+        return embeddedServer;
+    }
+
+    /**
+     * 创建一个统计往返次数和命令延迟的连接，还没有连接到服务端
+     */
+    static Jedis newJedis(String host, int port, int timeoutMillis) {
+        return new MeteredJedis(host, port, timeoutMillis);
+    }
+
+    /**
+     * 连接发出的往返次数，见 {@link Metrics#roundTrips(Jedis)}
+     */
+    static long roundTrips(Jedis jedis) {
+        Client client = jedis != null ? jedis.getClient() : null;
+        return client instanceof MeteredClient ? ((MeteredClient) client).roundTrips : 0;
+    }
+
+    private static EmbeddedRedisServer startEmbeddedServer() {
+        try {
+            return EmbeddedRedisServer.start(0);
+        } catch (IOException e) {
+            throw new JedisConnectionException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (async != null) {
+                async.close();
+            }
+        }
+        pool.destroy();
+        if (embeddedServer != null) {
+            embeddedServer.close();
+        }
+    }
+
+    private void backoff(int attempt) {
+        long delay = Math.min(config.maxBackoffMillis, config.backoffMillis << Math.min(attempt - 1, 20));
+        try {
+            // 随机抖动，避免大量客户端同时重连
+            Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JedisConnectionException("Interrupted while waiting to reconnect");
+        }
+    }
+
+    /**
+     * 和 jedis 自带的连接池使用的工厂相同，只是创建的是 {@link MeteredJedis}
+     */
+    private static class JedisFactory extends BasePoolableObjectFactory {
+
+        private final Config config;
+
+        private JedisFactory(Config config) {
+            this.config = config;
+        }
+
+        @Override
+        public Object makeObject() {
+            Jedis jedis = newJedis(config.host, config.port, config.timeoutMillis);
+            jedis.connect();
+            if (config.password != null) {
+                jedis.auth(config.password);
+            }
+            if (config.database != 0) {
+                jedis.select(config.database);
+            }
+            return jedis;
+        }
+
+        @Override
+        public void destroyObject(Object obj) {
+            Jedis jedis = (Jedis) obj;
+            if (jedis.isConnected()) {
+                try {
+                    try {
+                        jedis.quit();
+                    } catch (RuntimeException e) {
+                        // ignore
+                    }
+                    jedis.disconnect();
+                } catch (RuntimeException e) {
+                    // ignore
+                }
+            }
+        }
+
+        @Override
+        public boolean validateObject(Object obj) {
+            Jedis jedis = (Jedis) obj;
+            try {
+                return jedis.isConnected() && "PONG".equals(jedis.ping());
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+    }
+
+    private static class MeteredJedis extends Jedis {
+
+        private MeteredJedis(String host, int port, int timeoutMillis) {
+            super(host, port, timeoutMillis);
+            client = new MeteredClient(host, port);
+            client.setTimeout(timeoutMillis);
+        }
+    }
+
+    /**
+     * jedis 发送命令时只写入缓冲区，读取回复之前才 flush，所以每次 flush 就是一次往返；
+     * 从 flush 到读完回复的时间记为最后发送的命令的延迟，一次读取多个回复时记为流水线的延迟
+     *
+     * 所有读取回复的方法最终都会调用下面这几个方法之一，它们之间不会互相调用
+     */
+    private static class MeteredClient extends Client {
+
+        private Protocol.Command command;
+
+        private int pending;
+
+        private int flushedCommands;
+
+        private long flushedAt;
+
+        /**
+         * 这个连接发出的往返次数，连接同时只被一个线程使用，不需要同步
+         */
+        private long roundTrips;
+
+        private MeteredClient(String host, int port) {
+            super(host, port);
+        }
+
+        @Override
+        protected Connection sendCommand(Protocol.Command cmd, byte[]... args) {
+            command = cmd;
+            pending++;
+            return super.sendCommand(cmd, args);
+        }
+
+        @Override
+        protected Connection sendCommand(Protocol.Command cmd) {
+            command = cmd;
+            pending++;
+            return super.sendCommand(cmd);
+        }
+
+        @Override
+        protected void flush() {
+            roundTrips++;
+            Metrics.roundTrip();
+            flushedCommands = pending;
+            pending = 0;
+            flushedAt = System.nanoTime();
+            super.flush();
+        }
+
+        @Override
+        protected String getStatusCodeReply() {
+            try {
+                return super.getStatusCodeReply();
+            } finally {
+                replied();
+            }
+        }
+
+        @Override
+        public byte[] getBinaryBulkReply() {
+            try {
+                return super.getBinaryBulkReply();
+            } finally {
+                replied();
+            }
+        }
+
+        @Override
+        public Long getIntegerReply() {
+            try {
+                return super.getIntegerReply();
+            } finally {
+                replied();
+            }
+        }
+
+        @Override
+        public List<byte[]> getBinaryMultiBulkReply() {
+            try {
+                return super.getBinaryMultiBulkReply();
+            } finally {
+                replied();
+            }
+        }
+
+        @Override
+        public List<Object> getObjectMultiBulkReply() {
+            try {
+                return super.getObjectMultiBulkReply();
+            } finally {
+                replied();
+            }
+        }
+
+        @Override
+        public List<Long> getIntegerMultiBulkReply() {
+            try {
+                return super.getIntegerMultiBulkReply();
+            } finally {
+                replied();
+            }
+        }
+
+        @Override
+        public List<Object> getAll(int except) {
+            try {
+                return super.getAll(except);
+            } finally {
+                replied();
+            }
+        }
+
+        @Override
+        public Object getOne() {
+            try {
+                return super.getOne();
+            } finally {
+                replied();
+            }
+        }
+
+        private void replied() {
+            if (!Metrics.isEnabled() || command == null) {
+                return;
+            }
+            long elapsed = System.nanoTime() - flushedAt;
+            if (flushedCommands > 1) {
+                PIPELINE_LATENCY.record(elapsed);
+                PIPELINE_SIZE.record(flushedCommands);
+                return;
+            }
+            LatencyRecorder recorder = COMMAND_LATENCY[command.ordinal()];
+            if (recorder == null) {
+                recorder = Metrics.getDefault().recorder("redis.command." + command.name().toLowerCase(Locale.ROOT));
+                COMMAND_LATENCY[command.ordinal()] = recorder;
+            }
+            recorder.record(elapsed);
+        }
+    }
+}
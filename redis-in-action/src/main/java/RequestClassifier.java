@@ -0,0 +1,269 @@
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import redis.clients.jedis.Jedis;
+
+/**
+ * 判断请求是否可以被缓存，每次页面访问都会调用，因此判断过程不分配对象，也不访问网络
+ *
+ * 直接在请求字符串上扫描查询参数，提取 item 参数并检查是否包含表示动态页面的 _ 参数；
+ * 商品排名的检查使用本地的浏览量前 N 名商品快照，快照由后台线程定期从 viewed: 有序集合重新加载
+ *
+ * @author 黄学维
+ */
+public class RequestClassifier {
+
+    private static final String ITEM_PARAM = "item";
+
+    private static final String DYNAMIC_PARAM = "_";
+
+    private final int topItems;
+
+    /**
+     * 还没有加载快照时为 null，此时回退为向 redis 查询排名
+     */
+    private volatile TopItemsSnapshot snapshot;
+
+    /**
+     * @param topItems 可以被缓存的商品数量，即 viewed: 中排名前多少的商品
+     */
+    public RequestClassifier(int topItems) {
+        this.topItems = topItems;
+    }
+
+    public boolean canCache(Jedis jedis, CharSequence request) {
+        long item = findItem(request);
+        if (item < 0) {
+            return false;
+        }
+        int itemStart = (int) (item >>> 32);
+        int itemEnd = (int) item;
+
+        TopItemsSnapshot current = snapshot;
+        if (current == null) {
+            Long rank = jedis.zrank("viewed:", request.subSequence(itemStart, itemEnd).toString());
+            return rank != null && rank < topItems;
+        }
+        return current.contains(request, itemStart, itemEnd);
+    }
+
+    /**
+     * {@link #canCache(Jedis, CharSequence)} 的异步版本，只有还没有加载快照时才需要访问 redis
+     */
+    public CompletableFuture<Boolean> canCacheAsync(AsyncRedis redis, CharSequence request) {
+        long item = findItem(request);
+        if (item < 0) {
+            return CompletableFuture.completedFuture(false);
+        }
+        int itemStart = (int) (item >>> 32);
+        int itemEnd = (int) item;
+
+        TopItemsSnapshot current = snapshot;
+        if (current == null) {
+            String itemId = request.subSequence(itemStart, itemEnd).toString();
+            return redis.execute(batch -> batch.zrank("viewed:", itemId)::get)
+                .thenApply(rank -> rank != null && rank < topItems);
+        }
+        return CompletableFuture.completedFuture(current.contains(request, itemStart, itemEnd));
+    }
+
+    /**
+     * 从 viewed: 重新加载浏览量前 N 名商品的快照
+     */
+    public void reload(Jedis jedis) {
+        snapshot = new TopItemsSnapshot(jedis.zrange("viewed:", 0, topItems - 1));
+    }
+
+    /**
+     * 丢弃快照，之后的判断回退为向 redis 查询排名，直到再次加载
+     */
+    public void clear() {
+        snapshot = null;
+    }
+
+    public boolean isSnapshotLoaded() {
+        return snapshot != null;
+    }
+
+    /**
+     * 找出最后一个 item 参数的值（和放入 HashMap 时后出现的参数覆盖先出现的一致），并检查是否有 _ 参数；
+     * 返回值的高 32 位是值的起始下标，低 32 位是结束下标，不能缓存时返回 -1
+     */
+    private static long findItem(CharSequence request) {
+        int query = queryStart(request);
+        if (query < 0) {
+            return -1;
+        }
+        int end = queryEnd(request, query);
+
+        int itemStart = -1;
+        int itemEnd = -1;
+        int paramStart = query;
+        while (paramStart <= end) {
+            int paramEnd = indexOf(request, '&', paramStart, end);
+            int equals = indexOf(request, '=', paramStart, paramEnd);
+            if (regionEquals(request, paramStart, equals, DYNAMIC_PARAM)) {
+                return -1;
+            }
+            if (regionEquals(request, paramStart, equals, ITEM_PARAM)) {
+                itemStart = equals < paramEnd ? equals + 1 : -1;
+                itemEnd = paramEnd;
+            }
+            paramStart = paramEnd + 1;
+        }
+        if (itemStart < 0) {
+            return -1;
+        }
+        return ((long) itemStart << 32) | itemEnd;
+    }
+
+    /**
+     * 返回查询参数的起始下标，请求不是 scheme://... 形式的地址时返回 -1，没有查询参数时返回请求的长度
+     */
+    private static int queryStart(CharSequence request) {
+        int length = request.length();
+        int scheme = 0;
+        while (scheme < length && isSchemeChar(request.charAt(scheme), scheme == 0)) {
+            scheme++;
+        }
+        if (scheme == 0 || scheme + 2 >= length || request.charAt(scheme) != ':'
+            || request.charAt(scheme + 1) != '/' || request.charAt(scheme + 2) != '/') {
+            return -1;
+        }
+        for (int i = scheme + 3; i < length; i++) {
+            char c = request.charAt(i);
+            if (c == '?') {
+                return i + 1;
+            }
+            if (c == '#') {
+                return length;
+            }
+        }
+        return length;
+    }
+
+    private static int queryEnd(CharSequence request, int query) {
+        return indexOf(request, '#', query, request.length());
+    }
+
+    private static boolean isSchemeChar(char c, boolean first) {
+        if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+            return true;
+        }
+        return !first && ((c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.');
+    }
+
+    /**
+     * 在 [from, to) 中查找字符，找不到时返回 to
+     */
+    private static int indexOf(CharSequence s, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static boolean regionEquals(CharSequence s, int start, int end, String expected) {
+        if (end - start != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (s.charAt(start + i) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 不可变的开放寻址（线性探测）散列集合，可以直接用字符序列的一段来查找，查找时不需要创建子串
+     */
+    static final class TopItemsSnapshot {
+
+        private final String[] members;
+
+        private final int[] hashes;
+
+        private final int mask;
+
+        TopItemsSnapshot(Set<String> items) {
+            int capacity = Integer.highestOneBit(Math.max(2, items.size() * 2 - 1)) << 1;
+            members = new String[capacity];
+            hashes = new int[capacity];
+            mask = capacity - 1;
+            for (String item : items) {
+                int hash = item.hashCode();
+                int slot = mix(hash) & mask;
+                while (members[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                members[slot] = item;
+                hashes[slot] = hash;
+            }
+        }
+
+        boolean contains(CharSequence s, int start, int end) {
+            // 和 String.hashCode() 相同的算法，可以直接和成员缓存的散列值比较
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + s.charAt(i);
+            }
+            for (int slot = mix(hash) & mask; members[slot] != null; slot = (slot + 1) & mask) {
+                if (hashes[slot] == hash && regionEquals(s, start, end, members[slot])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static int mix(int hash) {
+            int h = hash * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * 定期重新加载商品快照的线程
+     */
+    public class RefreshThread extends WorkerRuntime.BackgroundWorker {
+
+        private final RedisConnections connections;
+
+        private final long intervalMillis;
+
+        private volatile boolean quit;
+
+        public RefreshThread(RedisConnections connections, long intervalMillis) {
+            super("top-items-refresh", true);
+            this.connections = connections;
+            this.intervalMillis = intervalMillis;
+        }
+
+        @Override
+        public void quit() {
+            quit = true;
+            interruptRunner();
+        }
+
+        @Override
+        protected void work() {
+            while (!quit) {
+                try {
+                    connections.execute(jedis -> {
+                        reload(jedis);
+                        return null;
+                    });
+                } catch (RuntimeException e) {
+                    // 加载失败时继续使用旧的快照
+                    System.err.println("Failed to reload the top items snapshot: " + e);
+                }
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
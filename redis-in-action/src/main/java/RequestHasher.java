@@ -0,0 +1,95 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 把请求转换成页面缓存的键
+ *
+ * @author 黄学维
+ */
+public interface RequestHasher {
+
+    /**
+     * 返回请求的散列值，相同的请求必须得到相同的结果
+     */
+    String hash(String request);
+
+    /**
+     * 先规范化请求地址再计算散列值，让等价的地址共用同一个缓存页面：
+     * scheme 和主机名转为小写，去掉片段（#...）和跟踪参数，查询参数按参数名排序（同名参数保持原来的顺序）
+     */
+    class Canonicalizing implements RequestHasher {
+
+        /**
+         * 默认去掉的跟踪参数，另外所有 utm_ 开头的参数也会被去掉
+         */
+        public static final Set<String> DEFAULT_TRACKING_PARAMS = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList("fbclid", "gclid", "msclkid", "yclid", "mc_cid", "mc_eid")));
+
+        private final RequestHasher delegate;
+
+        private final Set<String> trackingParams;
+
+        public Canonicalizing(RequestHasher delegate) {
+            this(delegate, DEFAULT_TRACKING_PARAMS);
+        }
+
+        public Canonicalizing(RequestHasher delegate, Set<String> trackingParams) {
+            this.delegate = delegate;
+            this.trackingParams = trackingParams;
+        }
+
+        @Override
+        public String hash(String request) {
+            return delegate.hash(canonicalize(request));
+        }
+
+        public String canonicalize(String request) {
+            int fragment = request.indexOf('#');
+            if (fragment >= 0) {
+                request = request.substring(0, fragment);
+            }
+
+            int scheme = request.indexOf("://");
+            int query = request.indexOf('?');
+            if (scheme < 0 || (query >= 0 && query < scheme)) {
+                return request;
+            }
+            int pathStart = request.indexOf('/', scheme + 3);
+            int authorityEnd = pathStart < 0 || (query >= 0 && query < pathStart)
+                ? (query < 0 ? request.length() : query) : pathStart;
+
+            StringBuilder canonical = new StringBuilder(request.length());
+            canonical.append(request.substring(0, authorityEnd).toLowerCase(Locale.ROOT));
+            canonical.append(request, authorityEnd, query < 0 ? request.length() : query);
+            if (query < 0) {
+                return canonical.toString();
+            }
+
+            List<String> params = new ArrayList<>();
+            for (String param : request.substring(query + 1).split("&")) {
+                int equals = param.indexOf('=');
+                String name = equals < 0 ? param : param.substring(0, equals);
+                if (!param.isEmpty() && !name.startsWith("utm_") && !trackingParams.contains(name)) {
+                    params.add(param);
+                }
+            }
+            // 稳定排序，同名参数之间的顺序不变
+            Collections.sort(params, (a, b) -> paramName(a).compareTo(paramName(b)));
+
+            for (int i = 0; i < params.size(); i++) {
+                canonical.append(i == 0 ? '?' : '&').append(params.get(i));
+            }
+            return canonical.toString();
+        }
+
+        private static String paramName(String param) {
+            int equals = param.indexOf('=');
+            return equals < 0 ? param : param.substring(0, equals);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+/**
+ * 数据行缓存（inv:行 id）的编码方式
+ *
+ * 编码结果的第一个字节表示格式：JSON 以 '{' 开头，二进制格式以版本号开头，
+ * 因此任意一种编码器都能解码另一种编码器写入的值，切换编码器时可以逐个节点滚动升级
+ *
+ * @author 黄学维
+ */
+public interface RowCodec {
+
+    byte[] encode(Chapter02.Inventory row);
+
+    Chapter02.Inventory decode(byte[] value);
+}
@@ -0,0 +1,204 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+import org.javatuples.Pair;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Tuple;
+
+/**
+ * 分片版本的文章发布、投票和分页，数据模型和 {@link Chapter01} 相同，只是键按 {@link KeySharding} 拆分：
+ *
+ * 文章散列 article:{s}:id，已投票用户 voted:{s}:id，评分和发布时间的有序集合 score:{s}、time:{s}，文章 id 计数器 article:{s}；
+ * {@link VoteDedup} 的用户 id 在每个分片上单独分配，保存在 voter-ids:{s} 和 voter-id:{s} 中
+ *
+ * 文章发布到随机的分片，之后的投票只涉及这个分片上的键，仍然由 {@link Chapter01#VOTE_SCRIPT} 在一次往返内原子地完成；
+ * 一批投票按分片分组，并行地发送到各个分片。分页读取先从每个分片读取排名，在本地归并出需要的一页，再到文章所在的分片读取散列
+ *
+ * 群组排名仍然使用未分片的 {@link Chapter01}
+ *
+ * @author 黄学维
+ */
+public class ShardedArticles {
+
+    private final ShardedConnections connections;
+
+    private final KeySharding sharding;
+
+    /**
+     * 每个分片的投票去重方式
+     */
+    private volatile VoteDedup[] voteDedups;
+
+    public ShardedArticles(ShardedConnections connections) {
+        this.connections = connections;
+        this.sharding = connections.getSharding();
+        this.voteDedups = voteDedups(sharding, VoteDedup.Mode.SET);
+    }
+
+    /**
+     * 更换每个分片的投票去重方式，默认为 {@link VoteDedup.Mode#SET}
+     */
+    public void setVoteDedup(VoteDedup.Mode mode) {
+        voteDedups = voteDedups(sharding, mode);
+    }
+
+    private static VoteDedup[] voteDedups(KeySharding sharding, VoteDedup.Mode mode) {
+        VoteDedup[] dedups = new VoteDedup[sharding.getShards()];
+        for (int shard = 0; shard < dedups.length; shard++) {
+            dedups[shard] = new VoteDedup(mode, sharding.key("voter-ids:", shard), sharding.key("voter-id:", shard));
+        }
+        return dedups;
+    }
+
+    /**
+     * 发布文章，返回文章 id
+     */
+    public String postArticle(String user, String title, String link) {
+        int shard = ThreadLocalRandom.current().nextInt(sharding.getShards());
+        return connections.execute(shard, jedis -> postArticle(jedis, shard, user, title, link));
+    }
+
+    private String postArticle(Jedis jedis, int shard, String user, String title, String link) {
+        // 每个分片有自己的计数器，id = 序号 * 分片数量 + 分片号，既全局唯一，又可以直接算出文章所在的分片
+        long sequence = jedis.incr(sharding.key("article:", shard));
+        String articleId = String.valueOf(sequence * sharding.getShards() + shard);
+        String voted = sharding.key("voted:", shard, articleId);
+        String article = sharding.key("article:", shard, articleId);
+        long now = System.currentTimeMillis() / 1000;
+
+        voteDedups[shard].addVote(jedis, voted, user, now + Chapter01.ONE_WEEK_IN_SECONDS);
+        Pipeline pipeline = jedis.pipelined();
+        pipeline.hmset(article, Chapter01.articleInfo(user, title, link, now));
+        pipeline.zadd(sharding.key("score:", shard), now + Chapter01.VOTE_SCORE, article);
+        pipeline.zadd(sharding.key("time:", shard), now, article);
+        pipeline.sync();
+        return articleId;
+    }
+
+    /**
+     * 文章 id 对应的键 article:{s}:id，投票时使用
+     */
+    public String articleKey(String articleId) {
+        int shard = (int) (Long.parseLong(articleId) % sharding.getShards());
+        return sharding.key("article:", shard, articleId);
+    }
+
+    public List<Boolean> articleVotes(List<Pair<String, String>> votes) {
+        return ShardedConnections.join(articleVotesAsync(votes));
+    }
+
+    /**
+     * 批量投票，每个投票为 (用户, {@link #articleKey(String)})，返回每个投票是否生效
+     */
+    public CompletableFuture<List<Boolean>> articleVotesAsync(List<Pair<String, String>> votes) {
+        long cutoff = (System.currentTimeMillis() / 1000) - Chapter01.ONE_WEEK_IN_SECONDS;
+
+        // 每个分片上的投票在 votes 中的位置
+        List<List<Integer>> positions = new ArrayList<>(sharding.getShards());
+        for (int shard = 0; shard < sharding.getShards(); shard++) {
+            positions.add(new ArrayList<>());
+        }
+        for (int i = 0; i < votes.size(); i++) {
+            positions.get(KeySharding.shardOfKey(votes.get(i).getValue1())).add(i);
+        }
+
+        VoteDedup[] dedups = voteDedups;
+        Boolean[] accepted = new Boolean[votes.size()];
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int shard = 0; shard < positions.size(); shard++) {
+            List<Integer> shardVotes = positions.get(shard);
+            if (shardVotes.isEmpty()) {
+                continue;
+            }
+            List<String> keys = new ArrayList<>(shardVotes.size() * (VoteDedup.KEY_COUNT + 2) + 5);
+            keys.add(sharding.key("time:", shard));
+            keys.add(sharding.key("score:", shard));
+            // 分片之后不支持增量维护的群组排名：不传入任何排名，版本号键不存在时为 0
+            keys.add(sharding.key("ranking:incremental:version:", shard));
+            keys.add(dedups[shard].getVotersKey());
+            keys.add(dedups[shard].getLastVoterIdKey());
+            List<String> args = new ArrayList<>(shardVotes.size() + 5);
+            args.add(String.valueOf(cutoff));
+            args.add(String.valueOf(Chapter01.VOTE_SCORE));
+            args.add(dedups[shard].getMode().getArg());
+            args.add("0");
+            args.add("0");
+            for (int position : shardVotes) {
+                String article = votes.get(position).getValue1();
+                String articleId = article.substring(article.indexOf("}:") + 2);
+                keys.addAll(VoteDedup.keys(sharding.key("voted:", shard, articleId)));
+                keys.add(article);
+                keys.add(sharding.key("groups:", shard, articleId));
+                args.add(votes.get(position).getValue0());
+            }
+            futures.add(connections.evalForListAsync(shard, Chapter01.VOTE_SCRIPT, keys, args).thenAccept(reply -> {
+                for (int i = 0; i < shardVotes.size(); i++) {
+                    accepted[shardVotes.get(i)] = "1".equals(reply.get(i));
+                }
+            }));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+            .thenApply(ignored -> Arrays.asList(accepted));
+    }
+
+    public List<Map<String, String>> getArticles(int page) {
+        return ShardedConnections.join(getArticlesAsync(page));
+    }
+
+    /**
+     * 按评分从高到低分页读取所有分片上的文章，文章信息中的 id 为 {@link #articleKey(String)}
+     */
+    public CompletableFuture<List<Map<String, String>>> getArticlesAsync(int page) {
+        int start = (page - 1) * Chapter01.ARTICLES_PER_PAGE;
+        int end = start + Chapter01.ARTICLES_PER_PAGE - 1;
+        return connections.range("score:", start, end, true).thenCompose(this::fetchArticles);
+    }
+
+    /**
+     * 到文章所在的分片读取散列，每个分片一次往返，结果保持 ranking 的顺序
+     */
+    private CompletableFuture<List<Map<String, String>>> fetchArticles(List<Tuple> ranking) {
+        List<List<Integer>> positions = new ArrayList<>(sharding.getShards());
+        for (int shard = 0; shard < sharding.getShards(); shard++) {
+            positions.add(new ArrayList<>());
+        }
+        for (int i = 0; i < ranking.size(); i++) {
+            positions.get(KeySharding.shardOfKey(ranking.get(i).getElement())).add(i);
+        }
+
+        List<Map<String, String>> articles = new ArrayList<>(ranking.size());
+        for (int i = 0; i < ranking.size(); i++) {
+            articles.add(null);
+        }
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int shard = 0; shard < positions.size(); shard++) {
+            List<Integer> shardArticles = positions.get(shard);
+            if (shardArticles.isEmpty()) {
+                continue;
+            }
+            futures.add(connections.executeAsync(shard, batch -> {
+                List<Response<Map<String, String>>> hashes = new ArrayList<>(shardArticles.size());
+                for (int position : shardArticles) {
+                    hashes.add(batch.hgetAll(ranking.get(position).getElement()));
+                }
+                return (Supplier<Void>) () -> {
+                    for (int i = 0; i < shardArticles.size(); i++) {
+                        int position = shardArticles.get(i);
+                        Map<String, String> article = new HashMap<>(hashes.get(i).get());
+                        article.put("id", ranking.get(position).getElement());
+                        articles.set(position, article);
+                    }
+                    return null;
+                };
+            }));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> articles);
+    }
+}
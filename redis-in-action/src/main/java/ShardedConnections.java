@@ -0,0 +1,191 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.IntFunction;
+import redis.clients.jedis.Tuple;
+import redis.clients.util.Hashing;
+
+/**
+ * 分片的数据分布在多个 redis 节点上，按一致性散列把分片分配给节点
+ *
+ * 分片数量固定，通常远多于节点数量；增加节点时只有环上相邻的一部分分片换到新节点，
+ * 由于一个分片的所有键都带有同样的 hash tag（参见 {@link KeySharding}），可以整体迁移。
+ * 键名和 redis cluster 的槽位规则兼容，一个分片的键总是落在同一个槽位上
+ *
+ * 每个节点使用各自的 {@link RedisConnections}，关闭时一起关闭
+ *
+ * @author 黄学维
+ */
+public class ShardedConnections implements AutoCloseable {
+
+    /**
+     * 每个节点在散列环上的虚拟节点数量
+     */
+    private static final int VIRTUAL_NODES = 160;
+
+    /**
+     * 读取有序集合的一段以及分值，返回扁平列表：成员 1、分值 1 ...
+     *
+     * KEYS[1] 为有序集合；ARGV[1]、ARGV[2] 为起止索引，ARGV[3] 为 1 时按分值从大到小
+     */
+    private static final LuaScript RANGE_WITH_SCORES_SCRIPT = new LuaScript("rangeWithScores", ""
+        + "local command = ARGV[3] == '1' and 'zrevrange' or 'zrange'\n"
+        + "return redis.call(command, KEYS[1], ARGV[1], ARGV[2], 'WITHSCORES')\n");
+
+    private final List<RedisConnections> nodes;
+
+    private final KeySharding sharding;
+
+    /**
+     * 每个分片所在的节点
+     */
+    private final int[] shardNodes;
+
+    /**
+     * @param nodes  每个节点的连接，节点的标识为 host:port/db
+     * @param shards 分片数量，确定之后不能修改
+     */
+    public ShardedConnections(List<RedisConnections> nodes, int shards) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("At least one node is required");
+        }
+        this.nodes = new ArrayList<>(nodes);
+        this.sharding = new KeySharding(shards);
+
+        TreeMap<Long, Integer> ring = new TreeMap<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            RedisConnections.Config config = nodes.get(i).getConfig();
+            String name = config.getHost() + ':' + config.getPort() + '/' + config.getDatabase();
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                ring.put(Hashing.MURMUR_HASH.hash(name + '-' + v), i);
+            }
+        }
+        this.shardNodes = new int[shards];
+        for (int shard = 0; shard < shards; shard++) {
+            Map.Entry<Long, Integer> entry = ring.ceilingEntry(Hashing.MURMUR_HASH.hash("shard-" + shard));
+            shardNodes[shard] = (entry != null ? entry : ring.firstEntry()).getValue();
+        }
+    }
+
+    public KeySharding getSharding() {
+        return sharding;
+    }
+
+    public int getShards() {
+        return sharding.getShards();
+    }
+
+    /**
+     * 分片所在节点的连接
+     */
+    public RedisConnections forShard(int shard) {
+        return nodes.get(shardNodes[shard]);
+    }
+
+    public <T> T execute(int shard, RedisConnections.Callback<T> callback) {
+        return forShard(shard).execute(callback);
+    }
+
+    public <T> CompletableFuture<T> executeAsync(int shard, AsyncRedis.Command<T> command) {
+        return forShard(shard).async().execute(command);
+    }
+
+    public CompletableFuture<List<String>> evalForListAsync(int shard, LuaScript script, List<String> keys,
+        List<String> args) {
+        return forShard(shard).async().evalForList(script, keys, args);
+    }
+
+    /**
+     * 并行地在每个分片上执行操作，结果按分片号排列
+     */
+    public <T> CompletableFuture<List<T>> scatter(IntFunction<CompletableFuture<T>> operation) {
+        List<CompletableFuture<T>> futures = new ArrayList<>(getShards());
+        for (int shard = 0; shard < getShards(); shard++) {
+            futures.add(operation.apply(shard));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<T> results = new ArrayList<>(futures.size());
+            for (CompletableFuture<T> future : futures) {
+                results.add(future.join());
+            }
+            return results;
+        });
+    }
+
+    /**
+     * 把拆分到各个分片的有序集合（prefix{0}、prefix{1} ...）当作一个整体，读取排名 start 到 end（包含）的成员
+     *
+     * 每个分片只需要读取前 end + 1 个成员，再在本地归并；分值相同的成员和 redis 一样按成员排序
+     *
+     * @param descending 是否按分值从大到小，对应 zrevrange
+     */
+    public CompletableFuture<List<Tuple>> range(String prefix, int start, int end, boolean descending) {
+        List<String> args = Arrays.asList("0", String.valueOf(end), descending ? "1" : "0");
+        return scatter(shard -> evalForListAsync(shard, RANGE_WITH_SCORES_SCRIPT,
+            Collections.singletonList(sharding.key(prefix, shard)), args))
+            .thenApply(replies -> merge(replies, start, end, descending));
+    }
+
+    /**
+     * 同步方法等待异步结果，分片上的操作失败时抛出原来的异常
+     */
+    public static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    @Override
+    public void close() {
+        for (RedisConnections node : nodes) {
+            node.close();
+        }
+    }
+
+    /**
+     * 归并各个分片已经排好序的回复
+     */
+    private static List<Tuple> merge(List<List<String>> replies, int start, int end, boolean descending) {
+        List<List<Tuple>> shards = new ArrayList<>(replies.size());
+        for (List<String> reply : replies) {
+            List<Tuple> tuples = new ArrayList<>(reply.size() / 2);
+            for (int i = 0; i < reply.size(); i += 2) {
+                tuples.add(new Tuple(reply.get(i), Double.valueOf(reply.get(i + 1))));
+            }
+            shards.add(tuples);
+        }
+
+        Comparator<Tuple> order = Comparator.comparingDouble(Tuple::getScore).thenComparing(Tuple::getElement);
+        Comparator<Tuple> rankOrder = descending ? order.reversed() : order;
+        // 每个游标为 {分片, 下一个成员的位置}
+        PriorityQueue<int[]> cursors = new PriorityQueue<>(
+            (a, b) -> rankOrder.compare(shards.get(a[0]).get(a[1]), shards.get(b[0]).get(b[1])));
+        for (int shard = 0; shard < shards.size(); shard++) {
+            if (!shards.get(shard).isEmpty()) {
+                cursors.add(new int[]{shard, 0});
+            }
+        }
+
+        List<Tuple> result = new ArrayList<>(Math.max(0, end - start + 1));
+        for (int rank = 0; rank <= end && !cursors.isEmpty(); rank++) {
+            int[] cursor = cursors.poll();
+            List<Tuple> tuples = shards.get(cursor[0]);
+            if (rank >= start) {
+                result.add(tuples.get(cursor[1]));
+            }
+            if (++cursor[1] < tuples.size()) {
+                cursors.add(cursor);
+            }
+        }
+        return result;
+    }
+}
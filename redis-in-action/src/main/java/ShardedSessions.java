@@ -0,0 +1,110 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Tuple;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * 分片版本的登录会话，数据模型和 {@link Chapter02} 相同，只是键按 {@link KeySharding} 拆分：
+ *
+ * 会话按令牌分片，login:{s}、recent:{s} 以及 viewed:{s}:令牌、cart:{s}:令牌 在同一个分片上；
+ * 商品的浏览次数按商品分片，保存在 viewed:{s} 中，读取浏览最多的商品时在所有分片上归并；
+ * 令牌按文本形式分片，在 redis 中保存为 {@link TokenCodec} 的二进制形式；分片的数据从一开始就是二进制形式，不需要查找文本形式的旧会话
+ *
+ * @author 黄学维
+ */
+public class ShardedSessions {
+
+    private final ShardedConnections connections;
+
+    private final KeySharding sharding;
+
+    public ShardedSessions(ShardedConnections connections) {
+        this.connections = connections;
+        this.sharding = connections.getSharding();
+    }
+
+    public String checkToken(String token) {
+        return ShardedConnections.join(checkTokenAsync(token));
+    }
+
+    public CompletableFuture<String> checkTokenAsync(String token) {
+        int shard = sharding.shardOf(token);
+        byte[] login = SafeEncoder.encode(sharding.key("login:", shard));
+        return connections.executeAsync(shard, batch -> batch.hget(login, TokenCodec.encode(token))::get);
+    }
+
+    public void updateToken(String token, String user, String item) {
+        ShardedConnections.join(updateTokenAsync(token, user, item));
+    }
+
+    /**
+     * 令牌的写入在令牌所在的分片上通过一个流水线发送；商品可能在另一个分片上，它的浏览次数并行地写入
+     */
+    public CompletableFuture<Void> updateTokenAsync(String token, String user, String item) {
+        long timestamp = System.currentTimeMillis() / 1000;
+        int shard = sharding.shardOf(token);
+        byte[] binary = TokenCodec.encode(token);
+        CompletableFuture<Long> session = connections.executeAsync(shard, batch -> {
+            batch.hset(SafeEncoder.encode(sharding.key("login:", shard)), binary, SafeEncoder.encode(user));
+            Response<Long> last = batch.zadd(SafeEncoder.encode(sharding.key("recent:", shard)), timestamp, binary);
+            if (item != null) {
+                byte[] viewed = TokenCodec.key(sharding.key("viewed:", shard) + ':', binary);
+                batch.zadd(viewed, timestamp, SafeEncoder.encode(item));
+                last = batch.zremrangeByRank(viewed, 0, -26);
+            }
+            return last::get;
+        });
+        if (item == null) {
+            return session.thenApply(ignored -> null);
+        }
+
+        int itemShard = sharding.shardOf(item);
+        CompletableFuture<Double> views = connections.executeAsync(itemShard,
+            batch -> batch.zincrby(sharding.key("viewed:", itemShard), -1, item)::get);
+        return CompletableFuture.allOf(session, views);
+    }
+
+    /**
+     * 浏览次数最多的 count 个商品
+     */
+    public List<String> getTopViewedItems(int count) {
+        // 浏览次数记为负数，分值越小浏览越多
+        List<Tuple> top = ShardedConnections.join(connections.range("viewed:", 0, count - 1, false));
+        List<String> items = new ArrayList<>(top.size());
+        for (Tuple tuple : top) {
+            items.add(tuple.getElement());
+        }
+        return items;
+    }
+
+    /**
+     * 所有分片上的会话数量
+     */
+    public long countSessions() {
+        List<Long> counts = ShardedConnections.join(connections.scatter(
+            shard -> connections.executeAsync(shard, batch -> batch.zcard(sharding.key("recent:", shard))::get)));
+        return counts.stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * 依次在每个分片上清理最旧的会话，和 {@link Chapter02.SessionReaper} 一样由 Chapter02.reapOldestSessions 完成，返回清理的数量
+     *
+     * 令牌按散列均匀分布，所以每个分片保留 limit / 分片数量 个会话
+     */
+    public long reapSessions(long limit, int batchSize) {
+        long perShard = limit / sharding.getShards();
+        long reaped = 0;
+        for (int shard = 0; shard < sharding.getShards(); shard++) {
+            String recent = sharding.key("recent:", shard);
+            String login = sharding.key("login:", shard);
+            List<String> keyFamilies = Arrays.asList(sharding.key("viewed:", shard) + ':',
+                sharding.key("cart:", shard) + ':');
+            reaped += connections.execute(shard,
+                jedis -> Chapter02.reapOldestSessions(jedis, recent, login, keyFamilies, perShard, batchSize))[0];
+        }
+        return reaped;
+    }
+}
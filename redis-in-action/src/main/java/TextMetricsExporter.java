@@ -0,0 +1,45 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+
+/**
+ * 文本格式的指标，每行一个指标，延迟以微秒为单位，例如：
+ * <pre>
+ * articles.vote                      count=1200 mean=182.4 p50=150 p90=260 p99=710 p99.9=1900 max=2311 (us)
+ * articles.vote.roundTrips           count=1200 mean=1.0 p50=1 p90=1 p99=1 p99.9=1 max=1
+ * redis.roundTrips                   3604
+ * </pre>
+ *
+ * @author 黄学维
+ */
+public class TextMetricsExporter implements MetricsExporter {
+
+    private final Appendable out;
+
+    public TextMetricsExporter(Appendable out) {
+        this.out = out;
+    }
+
+    @Override
+    public void export(Map<String, LatencyRecorder.Snapshot> recorders, Map<String, Long> values) {
+        try {
+            for (LatencyRecorder.Snapshot snapshot : recorders.values()) {
+                double scale = snapshot.isDurations() ? 1000.0 : 1;
+                out.append(String.format("%-40s count=%d mean=%.1f p50=%s p90=%s p99=%s p99.9=%s max=%s%s%n",
+                    snapshot.getName(), snapshot.getCount(), snapshot.getMean() / scale,
+                    format(snapshot.getPercentile(50), scale), format(snapshot.getPercentile(90), scale),
+                    format(snapshot.getPercentile(99), scale), format(snapshot.getPercentile(99.9), scale),
+                    format(snapshot.getMax(), scale), snapshot.isDurations() ? " (us)" : ""));
+            }
+            for (Map.Entry<String, Long> value : values.entrySet()) {
+                out.append(String.format("%-40s %d%n", value.getKey(), value.getValue()));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String format(long value, double scale) {
+        return scale == 1 ? String.valueOf(value) : String.valueOf(Math.round(value / scale));
+    }
+}
@@ -0,0 +1,67 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * 会话令牌在 redis 中的二进制形式：UUID 格式的令牌保存为 16 字节，其他令牌保存为 UTF-8 字节
+ *
+ * 令牌是 login: 的字段、recent: 的成员，也是 viewed:令牌、cart:令牌 这些键名的后缀，
+ * 36 个字符的文本形式在每个会话上要重复保存好几次，改为 16 字节之后键、成员和网络传输都少了一半以上
+ *
+ * 以前写入的文本令牌不会被误认为二进制令牌，读取时由调用方回退到文本形式，见 {@link Chapter02#checkToken(String)}
+ *
+ * @author 黄学维
+ */
+public class TokenCodec {
+
+    public static final int UUID_BYTES = 16;
+
+    private TokenCodec() {
+    }
+
+    /**
+     * 令牌的二进制形式
+     */
+    public static byte[] encode(String token) {
+        if (!isUuid(token)) {
+            return token.getBytes(StandardCharsets.UTF_8);
+        }
+        UUID uuid = UUID.fromString(token);
+        return ByteBuffer.allocate(UUID_BYTES)
+            .putLong(uuid.getMostSignificantBits())
+            .putLong(uuid.getLeastSignificantBits())
+            .array();
+    }
+
+    /**
+     * 以令牌为后缀的键，例如 viewed: 加上令牌的二进制形式
+     */
+    public static byte[] key(String prefix, byte[] token) {
+        byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+        byte[] key = Arrays.copyOf(prefixBytes, prefixBytes.length + token.length);
+        System.arraycopy(token, 0, key, prefixBytes.length, token.length);
+        return key;
+    }
+
+    /**
+     * 令牌是否为小写的标准 UUID 格式，只有这种令牌的二进制形式和文本形式不同；
+     * 大写或者不带连字符的令牌按原样保存
+     */
+    public static boolean isUuid(String token) {
+        if (token.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = token.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
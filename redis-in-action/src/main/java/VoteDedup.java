@@ -0,0 +1,288 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * 投票去重的存储方式，决定“这个用户是否已经给这篇文章投过票”记在哪里
+ *
+ * {@link Mode#SET} 是书中的做法：每篇文章一个集合 voted:id，保存投票用户的完整用户名；
+ * {@link Mode#BITMAP} 先把用户名映射为从 1 开始的紧凑整数 id（散列 voter-ids: 和计数器 voter-id:），
+ * 每篇文章只记录投票用户的 id：
+ * <ul>
+ *     <li>票数较少时记在集合 voted:id:ids 中，整数集合使用 intset 编码，每个 id 4 字节</li>
+ *     <li>位图不比集合大时（或者集合超过 512 个成员、不再使用 intset 编码之后）转换为位图 voted:id:bits，每个用户 1 位</li>
+ * </ul>
+ * 两种结构都是精确的。投票非常多的热点文章可以额外开启布隆过滤器 voted:id:bloom（{@link #enableBloomFilter}），
+ * 之后新的投票只写入固定大小的过滤器，代价是按误判率少记一部分投票；开启之前的投票仍然精确地去重
+ *
+ * 派生的键都在 voted:id 后面加后缀，hash tag 不变，分片后仍然和文章在同一个槽位上；
+ * 脚本不自己拼接键名，voted:id 和三个派生的键都由 {@link #keys(String)} 生成并通过 KEYS 传入。
+ * 所有判断都在脚本中和计分一起原子地完成，见 {@link #LUA} 中的 addVote
+ *
+ * 从 SET 切换到 BITMAP 不需要停机：旧的 voted:id 集合仍然参与去重，{@link #migrate} 把它们逐批转换为整数 id；
+ * 反方向的切换不会检查已经写入 id 的投票，只适用于新发布的文章
+ *
+ * @author 黄学维
+ */
+public class VoteDedup {
+
+    public enum Mode {
+
+        SET("set"),
+
+        BITMAP("bitmap");
+
+        private final String arg;
+
+        Mode(String arg) {
+            this.arg = arg;
+        }
+
+        /**
+         * 传给脚本的参数
+         */
+        public String getArg() {
+            return arg;
+        }
+    }
+
+    /**
+     * 布隆过滤器使用的散列函数个数，每个投票约 9.6 位时误判率约为 1%
+     */
+    static final int BLOOM_HASHES = 7;
+
+    /**
+     * 每次迁移的用户数量，避免一个脚本执行太久
+     */
+    private static final int MIGRATE_BATCH = 1000;
+
+    /**
+     * 每篇文章的去重记录使用的键的数量，见 {@link #keys(String)}
+     */
+    static final int KEY_COUNT = 4;
+
+    /**
+     * 脚本公用的函数，addVote(k, voters, lastId, mode, user, expireAt) 记录一次投票，返回 1 新的投票、0 重复投票
+     *
+     * KEYS[k] 到 KEYS[k + 3] 为 {@link #keys(String)} 返回的 voted:id、voted:id:bits、voted:id:ids 和 voted:id:bloom，
+     * voters 为用户名到 id 的散列，lastId 为已经分配的最大 id；
+     * 新建的键在 expireAt（unix 时间，秒）过期，和文章的投票截止时间一致
+     */
+    static final String LUA = ""
+        + "local function addVoterId(k, lastId, id, expireAt)\n"
+        + "    local bits = KEYS[k + 1]\n"
+        + "    if redis.call('exists', bits) == 1 then\n"
+        + "        return 1 - redis.call('setbit', bits, id, 1)\n"
+        + "    end\n"
+        + "    local ids = KEYS[k + 2]\n"
+        + "    if redis.call('sadd', ids, id) == 0 then\n"
+        + "        return 0\n"
+        + "    end\n"
+        + "    local size = redis.call('scard', ids)\n"
+        + "    if size == 1 then\n"
+        + "        redis.call('expireat', ids, expireAt)\n"
+        + "    end\n"
+        // 位图的大小由最大的 id 决定；intset 每个成员 32 位，超过 512 个成员之后每个成员大约 400 位
+        + "    local maxId = tonumber(redis.call('get', lastId))\n"
+        + "    if size * 32 >= maxId or (size >= 512 and size * 400 >= maxId) then\n"
+        + "        for _, member in ipairs(redis.call('smembers', ids)) do\n"
+        + "            redis.call('setbit', bits, member, 1)\n"
+        + "        end\n"
+        + "        redis.call('expireat', bits, expireAt)\n"
+        + "        redis.call('del', ids)\n"
+        + "    end\n"
+        + "    return 1\n"
+        + "end\n"
+        + "local function addToBloom(bloom, user)\n"
+        + "    local size = redis.call('strlen', bloom) * 8\n"
+        + "    local hash = redis.sha1hex(user)\n"
+        + "    local h1 = tonumber(string.sub(hash, 1, 8), 16)\n"
+        + "    local h2 = tonumber(string.sub(hash, 9, 16), 16)\n"
+        + "    local added = 0\n"
+        + "    for i = 0, " + (BLOOM_HASHES - 1) + " do\n"
+        + "        if redis.call('setbit', bloom, (h1 + i * h2) % size, 1) == 0 then\n"
+        + "            added = 1\n"
+        + "        end\n"
+        + "    end\n"
+        + "    return added\n"
+        + "end\n"
+        + "local function addVote(k, voters, lastId, mode, user, expireAt)\n"
+        + "    local voted = KEYS[k]\n"
+        + "    if mode == 'set' then\n"
+        + "        local added = redis.call('sadd', voted, user)\n"
+        + "        if added == 1 and redis.call('scard', voted) == 1 then\n"
+        + "            redis.call('expireat', voted, expireAt)\n"
+        + "        end\n"
+        + "        return added\n"
+        + "    end\n"
+        // 还没有迁移的旧集合
+        + "    if redis.call('sismember', voted, user) == 1 then\n"
+        + "        return 0\n"
+        + "    end\n"
+        + "    local id = redis.call('hget', voters, user)\n"
+        + "    local bloom = KEYS[k + 3]\n"
+        + "    if redis.call('exists', bloom) == 1 then\n"
+        + "        if id and (redis.call('getbit', KEYS[k + 1], id) == 1\n"
+        + "            or redis.call('sismember', KEYS[k + 2], id) == 1) then\n"
+        + "            return 0\n"
+        + "        end\n"
+        + "        return addToBloom(bloom, user)\n"
+        + "    end\n"
+        + "    if not id then\n"
+        + "        id = redis.call('incr', lastId)\n"
+        + "        redis.call('hset', voters, user, id)\n"
+        + "    end\n"
+        + "    return addVoterId(k, lastId, id, expireAt)\n"
+        + "end\n";
+
+    /**
+     * 记录一次投票，用于发布文章时记录作者自己的投票
+     *
+     * KEYS[1..4] 为 {@link #keys(String)}，KEYS[5]、KEYS[6] 为 voters 和 lastId；ARGV[1] 为模式，ARGV[2] 为用户，ARGV[3] 为过期时间
+     */
+    private static final LuaScript ADD_VOTE_SCRIPT = new LuaScript("addVote", LUA
+        + "return addVote(1, KEYS[5], KEYS[6], ARGV[1], ARGV[2], ARGV[3])\n");
+
+    /**
+     * 把旧集合 voted:id 中的一批用户名转换为 id，并从旧集合中删除，两步在同一个脚本中完成，迁移期间的投票仍然是精确的
+     *
+     * KEYS 和 {@link #ADD_VOTE_SCRIPT} 相同；ARGV[1] 为过期时间，之后为要迁移的用户，返回迁移的数量
+     */
+    private static final LuaScript MIGRATE_SCRIPT = new LuaScript("migrateVotes", LUA
+        + "local migrated = 0\n"
+        + "for i = 2, #ARGV do\n"
+        + "    if redis.call('srem', KEYS[1], ARGV[i]) == 1 then\n"
+        + "        local id = redis.call('hget', KEYS[5], ARGV[i])\n"
+        + "        if not id then\n"
+        + "            id = redis.call('incr', KEYS[6])\n"
+        + "            redis.call('hset', KEYS[5], ARGV[i], id)\n"
+        + "        end\n"
+        + "        addVoterId(1, KEYS[6], id, ARGV[1])\n"
+        + "        migrated = migrated + 1\n"
+        + "    end\n"
+        + "end\n"
+        + "return migrated\n");
+
+    private final Mode mode;
+
+    private final String votersKey;
+
+    private final String lastVoterIdKey;
+
+    /**
+     * @param votersKey      用户名到 id 的散列，例如 voter-ids:
+     * @param lastVoterIdKey 已经分配的最大 id，例如 voter-id:
+     */
+    public VoteDedup(Mode mode, String votersKey, String lastVoterIdKey) {
+        this.mode = mode;
+        this.votersKey = votersKey;
+        this.lastVoterIdKey = lastVoterIdKey;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public String getVotersKey() {
+        return votersKey;
+    }
+
+    public String getLastVoterIdKey() {
+        return lastVoterIdKey;
+    }
+
+    /**
+     * 一篇文章的去重记录使用的键：voted:id、voted:id:bits、voted:id:ids、voted:id:bloom，按这个顺序放入脚本的 KEYS
+     *
+     * @param voted voted:id
+     */
+    public static List<String> keys(String voted) {
+        return Arrays.asList(voted, voted + ":bits", voted + ":ids", voted + ":bloom");
+    }
+
+    /**
+     * 记录一次投票，返回是否为新的投票
+     *
+     * @param voted    voted:id
+     * @param expireAt 去重记录的过期时间（unix 时间，秒）
+     */
+    public boolean addVote(Jedis jedis, String voted, String user, long expireAt) {
+        Object added = ADD_VOTE_SCRIPT.eval(jedis, scriptKeys(voted),
+            Arrays.asList(mode.getArg(), user, String.valueOf(expireAt)));
+        return Long.valueOf(1).equals(added);
+    }
+
+    /**
+     * 把 {@link #addVote(Jedis, String, String, long)} 排入 {@link AsyncRedis} 的流水线
+     */
+    public Response<Object> addVote(AsyncRedis.Batch batch, String voted, String user, long expireAt) {
+        return batch.eval(ADD_VOTE_SCRIPT, scriptKeys(voted),
+            Arrays.asList(mode.getArg(), user, String.valueOf(expireAt)));
+    }
+
+    /**
+     * 把旧的用户名集合 voted:id 转换为 id，返回迁移的投票数量；集合不存在时返回 0
+     */
+    public long migrate(Jedis jedis, String voted, long expireAt) {
+        Set<String> users = jedis.smembers(voted);
+        List<String> batch = new ArrayList<>(MIGRATE_BATCH + 1);
+        long migrated = 0;
+        for (String user : users) {
+            if (batch.isEmpty()) {
+                batch.add(String.valueOf(expireAt));
+            }
+            batch.add(user);
+            if (batch.size() > MIGRATE_BATCH) {
+                migrated += migrateBatch(jedis, voted, batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            migrated += migrateBatch(jedis, voted, batch);
+        }
+        return migrated;
+    }
+
+    /**
+     * 为热点文章开启布隆过滤器，之后的新投票只写入过滤器；已经开启时不做任何事情
+     *
+     * 过滤器的大小按预计的投票数量和误判率一次性分配，误判的投票会被当作重复投票
+     *
+     * @param expectedVotes     预计的投票数量
+     * @param falsePositiveRate 投票数量达到 expectedVotes 时的误判率，例如 0.01
+     * @return 过滤器占用的字节数
+     */
+    public long enableBloomFilter(Jedis jedis, String voted, long expectedVotes, double falsePositiveRate,
+        long expireAt) {
+        String bloom = keys(voted).get(3);
+        long bits = (long) Math.ceil(-expectedVotes * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        long bytes = Math.max(1, (bits + 7) / 8);
+        if (!jedis.exists(bloom)) {
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.setbit(bloom, bytes * 8 - 1, false);
+            pipeline.expireAt(bloom, expireAt);
+            pipeline.sync();
+        }
+        return jedis.strlen(bloom);
+    }
+
+    private long migrateBatch(Jedis jedis, String voted, List<String> args) {
+        Object migrated = MIGRATE_SCRIPT.eval(jedis, scriptKeys(voted), args);
+        return (Long) migrated;
+    }
+
+    /**
+     * {@link #ADD_VOTE_SCRIPT} 和 {@link #MIGRATE_SCRIPT} 的 KEYS
+     */
+    private List<String> scriptKeys(String voted) {
+        List<String> keys = new ArrayList<>(KEY_COUNT + 2);
+        keys.addAll(keys(voted));
+        keys.add(votersKey);
+        keys.add(lastVoterIdKey);
+        return keys;
+    }
+}
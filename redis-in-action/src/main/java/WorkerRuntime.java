@@ -0,0 +1,245 @@
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * 后台工作线程和请求处理的运行环境，默认使用虚拟线程
+ *
+ * 虚拟线程阻塞在网络读写、休眠和 java.util.concurrent 的锁上时不占用平台线程，
+ * 因此一个进程可以同时运行很多个会话清理、数据行缓存的分片，也可以同时挂起成千上万个阻塞的服务调用；
+ * 同时访问 redis 的连接数仍然由 {@link RedisConnections} 的连接池上限控制，和线程数无关
+ *
+ * 关闭时先通知所有工作线程退出并等待它们结束，再等待已经提交的服务调用完成：
+ * <pre>
+ *     try (WorkerRuntime runtime = new WorkerRuntime()) {
+ *         runtime.start("clean-sessions", 4, () -&gt; chapter02.new CleanSessionsThread(10000000));
+ *         String user = runtime.submit(() -&gt; chapter02.checkToken(token)).join();
+ *     }
+ * </pre>
+ *
+ * @author 黄学维
+ */
+public class WorkerRuntime implements AutoCloseable {
+
+    /**
+     * 可以由运行环境启动和停止的工作线程，run() 在虚拟线程或平台线程中执行
+     */
+    public interface Worker extends Runnable {
+
+        /**
+         * 通知工作线程退出，可以在任意线程中调用
+         */
+        void quit();
+    }
+
+    /**
+     * 工作线程的基类：记录实际执行 run() 的线程，唤醒和中断都作用于这个线程而不是工作线程对象本身，
+     * 因此同一个工作线程既可以交给 {@link #start(String, int, Supplier)} 在虚拟线程中运行，也可以用 {@link #start()} 单独启动
+     */
+    public abstract static class BackgroundWorker implements Worker {
+
+        private final String name;
+
+        private final boolean daemon;
+
+        private volatile Thread runner;
+
+        /**
+         * @param name   单独启动时的线程名
+         * @param daemon 单独启动时是否为守护线程
+         */
+        protected BackgroundWorker(String name, boolean daemon) {
+            this.name = name;
+            this.daemon = daemon;
+        }
+
+        @Override
+        public final void run() {
+            runner = Thread.currentThread();
+            work();
+        }
+
+        /**
+         * 工作线程的主循环，在 quit() 之后尽快返回
+         */
+        protected abstract void work();
+
+        /**
+         * 在一个新的平台线程中运行，返回启动的线程
+         */
+        public Thread start() {
+            Thread thread = new Thread(this, name);
+            thread.setDaemon(daemon);
+            runner = thread;
+            thread.start();
+            return thread;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * 执行 run() 的线程是否还在运行
+         */
+        public boolean isAlive() {
+            Thread current = runner;
+            return current != null && current.isAlive();
+        }
+
+        /**
+         * 等待执行 run() 的线程结束
+         */
+        public void join() throws InterruptedException {
+            Thread current = runner;
+            if (current != null) {
+                current.join();
+            }
+        }
+
+        /**
+         * 等待执行 run() 的线程结束，最多等待 millis 毫秒，返回线程是否已经结束；还没有开始运行时直接返回 true
+         */
+        public boolean join(long millis) throws InterruptedException {
+            Thread current = runner;
+            return current == null || current.join(Duration.ofMillis(millis));
+        }
+
+        /**
+         * 唤醒在 {@link java.util.concurrent.locks.LockSupport#park} 中休眠的工作线程
+         */
+        protected void wake() {
+            Thread current = runner;
+            if (current != null) {
+                LockSupport.unpark(current);
+            }
+        }
+
+        /**
+         * 中断工作线程的休眠或者阻塞操作
+         */
+        protected void interruptRunner() {
+            Thread current = runner;
+            if (current != null) {
+                current.interrupt();
+            }
+        }
+    }
+
+    private final boolean virtual;
+
+    private final long shutdownTimeoutMillis;
+
+    private final ExecutorService requests;
+
+    private final List<Worker> workers = new ArrayList<>();
+
+    private final List<Thread> threads = new ArrayList<>();
+
+    private boolean closed;
+
+    /**
+     * 按系统属性创建：-Dworkers.virtual=false 改用平台线程，-Dworkers.shutdownTimeout 为关闭时等待的毫秒数（默认 10000）
+     */
+    public WorkerRuntime() {
+        this(!"false".equals(System.getProperty("workers.virtual")), Long.getLong("workers.shutdownTimeout", 10000));
+    }
+
+    /**
+     * @param virtual               是否使用虚拟线程
+     * @param shutdownTimeoutMillis 关闭时等待工作线程和服务调用结束的最长时间
+     */
+    public WorkerRuntime(boolean virtual, long shutdownTimeoutMillis) {
+        this.virtual = virtual;
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+        this.requests = Executors.newThreadPerTaskExecutor(threadFactory("request-"));
+    }
+
+    /**
+     * 某类工作线程的并行数量，由 -Dworkers.类型.parallelism 指定，例如 -Dworkers.clean-sessions.parallelism=4
+     */
+    public static int parallelism(String type, int defaultParallelism) {
+        return Math.max(1, Integer.getInteger("workers." + type + ".parallelism", defaultParallelism));
+    }
+
+    /**
+     * 按 {@link #parallelism(String, int)} 配置的数量启动一类工作线程，返回启动的工作线程
+     */
+    public synchronized <W extends Worker> List<W> start(String type, int defaultParallelism, Supplier<W> factory) {
+        if (closed) {
+            throw new IllegalStateException("WorkerRuntime is closed");
+        }
+        int parallelism = parallelism(type, defaultParallelism);
+        ThreadFactory threadFactory = threadFactory(type + "-");
+        List<W> started = new ArrayList<>(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            W worker = factory.get();
+            Thread thread = threadFactory.newThread(worker);
+            workers.add(worker);
+            threads.add(thread);
+            started.add(worker);
+            thread.start();
+        }
+        return started;
+    }
+
+    /**
+     * 在一个新的线程中执行一次服务调用，例如一次 cacheRequest 或 checkToken
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        requests.execute(() -> {
+            try {
+                future.complete(call.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 通知所有工作线程退出，并等待工作线程和已经提交的服务调用结束，返回是否在 timeoutMillis 内全部结束
+     */
+    public synchronized boolean shutdown(long timeoutMillis) {
+        closed = true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (Worker worker : workers) {
+            worker.quit();
+        }
+        requests.shutdown();
+        try {
+            for (Thread thread : threads) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0 || !thread.join(Duration.ofMillis(remaining))) {
+                    return false;
+                }
+            }
+            return requests.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!shutdown(shutdownTimeoutMillis)) {
+            System.err.println("Some workers did not stop within " + shutdownTimeoutMillis + "ms");
+        }
+    }
+
+    private ThreadFactory threadFactory(String prefix) {
+        return virtual
+            ? Thread.ofVirtual().name(prefix, 0).factory()
+            : Thread.ofPlatform().name(prefix, 0).daemon(true).factory();
+    }
+}
@@ -0,0 +1,106 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * {@link BinaryRowCodec} 的编码和解码：多字节字符、代理对、不成对的代理字符、负数时间和 LZ4 压缩
+ *
+ * @author 黄学维
+ */
+public class BinaryRowCodecTest {
+
+    private final BinaryRowCodec codec = new BinaryRowCodec();
+
+    @Test
+    public void roundTripsAsciiAndMultibyteStrings() {
+        assertRoundTrip("", "", 0);
+        assertRoundTrip("item:1", "data to cache...", 1_500_000_000L);
+        assertRoundTrip("café", "中文数据", 42);
+        // 代理对编码为 4 个字节
+        assertRoundTrip("😀", "emoji 😀👍 end", 7);
+    }
+
+    @Test
+    public void roundTripsExtremeTimes() {
+        for (long time : new long[]{-1, Long.MIN_VALUE, Long.MAX_VALUE, 127, 128, -64, -65}) {
+            assertRoundTrip("id", "data", time);
+        }
+    }
+
+    @Test
+    public void encodesUnpairedSurrogatesLikeStringGetBytes() {
+        for (String s : new String[]{"\uD83D", "a\uDE00b", "\uDE00\uD83D", "x\uD83D"}) {
+            Chapter02.Inventory decoded = codec.decode(codec.encode(new Chapter02.Inventory(s, s, 0)));
+            String expected = new String(s.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+            assertEquals(expected, decoded.getId());
+            assertEquals(expected, decoded.getData());
+        }
+    }
+
+    @Test
+    public void utf8BytesMatchStringGetBytes() {
+        String data = "aé中😀";
+        byte[] encoded = new BinaryRowCodec(Integer.MAX_VALUE).encode(new Chapter02.Inventory("", data, 0));
+        byte[] expected = data.getBytes(StandardCharsets.UTF_8);
+        // 版本号、空 id 的长度、data 的长度之后是 data 的 UTF-8 字节
+        assertEquals(BinaryRowCodec.FORMAT_BINARY, encoded[0]);
+        assertEquals(expected.length, encoded[2]);
+        assertTrue(Arrays.equals(expected, Arrays.copyOfRange(encoded, 3, 3 + expected.length)));
+    }
+
+    @Test
+    public void compressesLargeRowsWithLz4() {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            data.append("repeated 中文 😀 ");
+        }
+        Chapter02.Inventory row = new Chapter02.Inventory("item:lz4", data.toString(), 123456789L);
+
+        byte[] compressed = codec.encode(row);
+        byte[] plain = new BinaryRowCodec(Integer.MAX_VALUE).encode(row);
+        assertEquals(BinaryRowCodec.FORMAT_LZ4, compressed[0]);
+        assertEquals(BinaryRowCodec.FORMAT_BINARY, plain[0]);
+        assertTrue(compressed.length < plain.length);
+        assertSame(row, codec.decode(compressed));
+        assertSame(row, codec.decode(plain));
+    }
+
+    @Test
+    public void keepsIncompressibleRowsUncompressed() {
+        StringBuilder data = new StringBuilder();
+        Random random = new Random(1);
+        for (int i = 0; i < 400; i++) {
+            data.append((char) (0x4e00 + random.nextInt(0x5000)));
+        }
+        Chapter02.Inventory row = new Chapter02.Inventory("item:random", data.toString(), 1);
+        byte[] encoded = new BinaryRowCodec(16).encode(row);
+        assertSame(row, codec.decode(encoded));
+    }
+
+    @Test
+    public void decodesRowsWrittenAsJson() {
+        Chapter02.Inventory row = new Chapter02.Inventory("item:json", "café 😀", 99);
+        assertSame(row, codec.decode(new JsonRowCodec().encode(row)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownFormat() {
+        codec.decode(new byte[]{9, 0});
+    }
+
+    private void assertRoundTrip(String id, String data, long time) {
+        Chapter02.Inventory row = new Chapter02.Inventory(id, data, time);
+        assertSame(row, codec.decode(codec.encode(row)));
+        assertSame(row, new BinaryRowCodec(0).decode(new BinaryRowCodec(0).encode(row)));
+    }
+
+    private static void assertSame(Chapter02.Inventory expected, Chapter02.Inventory actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getData(), actual.getData());
+        assertEquals(expected.getTime(), actual.getTime());
+    }
+}
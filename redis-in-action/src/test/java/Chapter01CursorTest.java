@@ -0,0 +1,179 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link Chapter01#getArticlePage} 的游标分页，在内嵌的 redis 上运行：空集合、正好一页、分值全部相同、
+ * 游标指向的文章在翻页期间被删除或者改了分值，以及无效的游标
+ *
+ * @author 黄学维
+ */
+public class Chapter01CursorTest {
+
+    private static final String KEY = "score:";
+
+    private RedisConnections connections;
+
+    private Chapter01 chapter;
+
+    @Before
+    public void setUp() {
+        RedisConnections.Config config = RedisConnections.Config.fromSystemProperties();
+        config.setEmbedded(true);
+        connections = new RedisConnections(config);
+        chapter = new Chapter01(connections);
+    }
+
+    @After
+    public void tearDown() {
+        connections.close();
+    }
+
+    @Test
+    public void emptySetHasNoPages() {
+        Chapter01.ArticlePage page = chapter.getArticlePage(KEY, null);
+        assertTrue(page.getArticles().isEmpty());
+        assertNull(page.getNextCursor());
+    }
+
+    @Test
+    public void exactlyOnePageEndsWithAnEmptyPage() {
+        addArticles(Chapter01.ARTICLES_PER_PAGE, i -> i);
+        Chapter01.ArticlePage first = chapter.getArticlePage(KEY, null);
+        assertEquals(Chapter01.ARTICLES_PER_PAGE, first.getArticles().size());
+        assertNotNull(first.getNextCursor());
+
+        Chapter01.ArticlePage second = chapter.getArticlePage(KEY, first.getNextCursor());
+        assertTrue(second.getArticles().isEmpty());
+        assertNull(second.getNextCursor());
+    }
+
+    @Test
+    public void tiedScoresAreWalkedWithoutDuplicates() {
+        addArticles(60, i -> 100);
+        List<String> expected = connections.execute(jedis -> new ArrayList<>(jedis.zrevrange(KEY, 0, -1)));
+        assertEquals(expected, walk(chapter, null));
+        assertEquals(expected, walkAsync(chapter));
+    }
+
+    @Test
+    public void pagesMatchPageNumbersAndCarryArticleFields() {
+        addArticles(70, i -> i % 7);
+        List<String> byPageNumber = new ArrayList<>();
+        for (int page = 1; page <= 3; page++) {
+            for (Map<String, String> article : chapter.getArticles(page)) {
+                byPageNumber.add(article.get("id"));
+            }
+        }
+        assertEquals(byPageNumber, walk(chapter, null));
+
+        Map<String, String> article = chapter.getArticlePage(KEY, null).getArticles().get(0);
+        assertEquals("title " + article.get("id"), article.get("title"));
+    }
+
+    @Test
+    public void deletedCursorMemberContinuesBelowIt() {
+        addArticles(60, i -> i / 3);
+        Chapter01.ArticlePage first = chapter.getArticlePage(KEY, null);
+        String last = lastId(first);
+        List<String> expected = connections.execute(jedis -> {
+            List<String> all = new ArrayList<>(jedis.zrevrange(KEY, 0, -1));
+            jedis.zrem(KEY, last);
+            return all.subList(Chapter01.ARTICLES_PER_PAGE, all.size());
+        });
+        assertEquals(expected, walk(chapter, first.getNextCursor()));
+    }
+
+    @Test
+    public void rescoredCursorMemberContinuesBelowItsOldScore() {
+        addArticles(60, i -> i / 3);
+        Chapter01.ArticlePage first = chapter.getArticlePage(KEY, null);
+        String last = lastId(first);
+        List<String> expected = connections.execute(jedis -> {
+            List<String> all = new ArrayList<>(jedis.zrevrange(KEY, 0, -1));
+            // 游标指向的文章排到最前面，之后的页不应该再次出现第一页的文章
+            jedis.zadd(KEY, 1000, last);
+            return all.subList(Chapter01.ARTICLES_PER_PAGE, all.size());
+        });
+        List<String> rest = walk(chapter, first.getNextCursor());
+        assertEquals(expected, rest);
+
+        Set<String> seen = new HashSet<>();
+        for (Map<String, String> article : first.getArticles()) {
+            seen.add(article.get("id"));
+        }
+        for (String id : rest) {
+            assertTrue(id, seen.add(id));
+        }
+    }
+
+    @Test
+    public void invalidCursorsAreRejected() {
+        addArticles(30, i -> i);
+        String noSeparator = Base64.getUrlEncoder().encodeToString("12".getBytes(StandardCharsets.UTF_8));
+        String badScore = Base64.getUrlEncoder().encodeToString("abc\narticle:1".getBytes(StandardCharsets.UTF_8));
+        String emptyScore = Base64.getUrlEncoder().encodeToString("\narticle:1".getBytes(StandardCharsets.UTF_8));
+        for (String cursor : new String[]{"!!not base64!!", noSeparator, badScore, emptyScore}) {
+            try {
+                chapter.getArticlePage(KEY, cursor);
+                fail("accepted " + cursor);
+            } catch (IllegalArgumentException expected) {
+                // 预期的异常
+            }
+        }
+    }
+
+    private void addArticles(int count, java.util.function.IntUnaryOperator score) {
+        connections.execute(jedis -> {
+            for (int i = 0; i < count; i++) {
+                String id = "article:" + i;
+                jedis.hset(id, "title", "title " + id);
+                jedis.zadd(KEY, score.applyAsInt(i), id);
+            }
+            return null;
+        });
+    }
+
+    private static List<String> walk(Chapter01 chapter, String cursor) {
+        List<String> ids = new ArrayList<>();
+        do {
+            Chapter01.ArticlePage page = chapter.getArticlePage(KEY, cursor);
+            for (Map<String, String> article : page.getArticles()) {
+                ids.add(article.get("id"));
+            }
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        return ids;
+    }
+
+    private static List<String> walkAsync(Chapter01 chapter) {
+        List<String> ids = new ArrayList<>();
+        String cursor = null;
+        do {
+            Chapter01.ArticlePage page = chapter.getArticlePageAsync(KEY, cursor).join();
+            for (Map<String, String> article : page.getArticles()) {
+                ids.add(article.get("id"));
+            }
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        return ids;
+    }
+
+    private static String lastId(Chapter01.ArticlePage page) {
+        List<Map<String, String>> articles = page.getArticles();
+        return articles.get(articles.size() - 1).get("id");
+    }
+}
@@ -0,0 +1,196 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * 用随机的插入、更新和删除检查 {@link EmbeddedSortedSet} 的跳跃表，对照一个每次重新排序的简单模型；
+ * 同一组操作也通过 {@link EmbeddedRedis} 的 zadd、zrem、zrank、zrange 等命令执行一遍
+ *
+ * 分值只取少数几个整数，保证有大量分值相同、按成员排序的情况
+ *
+ * @author 黄学维
+ */
+public class EmbeddedSortedSetTest {
+
+    private static final Comparator<Map.Entry<String, Double>> ORDER =
+        Comparator.<Map.Entry<String, Double>>comparingDouble(Map.Entry::getValue).thenComparing(Map.Entry::getKey);
+
+    @Test
+    public void rankAndRangeMatchModelAfterRandomInsertsAndDeletes() {
+        Random random = new Random(42);
+        EmbeddedSortedSet set = new EmbeddedSortedSet();
+        Map<String, Double> model = new HashMap<>();
+
+        for (int op = 0; op < 5000; op++) {
+            String member = "m" + random.nextInt(300);
+            int kind = random.nextInt(10);
+            if (kind < 5) {
+                double score = random.nextInt(20);
+                assertEquals(!model.containsKey(member), set.add(member, score));
+                model.put(member, score);
+            } else if (kind < 7) {
+                double increment = random.nextInt(5) - 2;
+                double expected = model.getOrDefault(member, 0.0) + increment;
+                assertEquals(expected, set.incrBy(member, increment), 0);
+                model.put(member, expected);
+            } else {
+                assertEquals(model.remove(member) != null, set.remove(member));
+            }
+
+            if (op % 50 == 0) {
+                check(set, model);
+            }
+        }
+        check(set, model);
+
+        // 全部删除之后跳跃表的层数和跨度也要回到空的状态
+        for (String member : new ArrayList<>(model.keySet())) {
+            set.remove(member);
+        }
+        model.clear();
+        check(set, model);
+        set.add("last", 1);
+        model.put("last", 1.0);
+        check(set, model);
+    }
+
+    @Test
+    public void rangeByScoreHonoursExclusiveBounds() {
+        EmbeddedSortedSet set = new EmbeddedSortedSet();
+        for (int i = 0; i < 10; i++) {
+            set.add("m" + i, i);
+        }
+        assertEquals(Arrays.asList("m3", "m4", "m5"), byScore(set, 3, false, 5, false, false));
+        assertEquals(Arrays.asList("m4"), byScore(set, 3, true, 5, true, false));
+        assertEquals(Arrays.asList("m5", "m4", "m3"), byScore(set, 3, false, 5, false, true));
+        assertEquals(Arrays.asList("m4"), byScore(set, 3, true, 5, true, true));
+        assertEquals(new ArrayList<String>(), byScore(set, 20, false, 30, false, false));
+    }
+
+    @Test
+    public void commandsMatchModelAfterRandomInsertsAndDeletes() {
+        Random random = new Random(7);
+        EmbeddedRedis redis = new EmbeddedRedis();
+        EmbeddedRedis.Session session = redis.newSession();
+        Map<String, Double> model = new HashMap<>();
+
+        for (int op = 0; op < 3000; op++) {
+            String member = "m" + random.nextInt(200);
+            int kind = random.nextInt(10);
+            if (kind < 6) {
+                int score = random.nextInt(15);
+                assertEquals(model.containsKey(member) ? 0L : 1L, call(redis, session, "ZADD", "z", score, member));
+                model.put(member, (double) score);
+            } else if (kind < 9) {
+                assertEquals(model.remove(member) != null ? 1L : 0L, call(redis, session, "ZREM", "z", member));
+            } else if (!model.isEmpty()) {
+                // 删除排名最靠前的两个成员
+                List<String> sorted = sorted(model);
+                call(redis, session, "ZREMRANGEBYRANK", "z", 0, 1);
+                for (String removed : sorted.subList(0, Math.min(2, sorted.size()))) {
+                    model.remove(removed);
+                }
+            }
+
+            if (op % 100 == 0) {
+                checkCommands(redis, session, model);
+            }
+        }
+        checkCommands(redis, session, model);
+    }
+
+    private static void check(EmbeddedSortedSet set, Map<String, Double> model) {
+        List<String> expected = sorted(model);
+        assertEquals(expected.size(), set.size());
+        assertEquals(expected, set.members());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), i, set.rank(expected.get(i)));
+        }
+        assertEquals(-1, set.rank("missing"));
+
+        List<String> reversed = new ArrayList<>(expected);
+        Collections.reverse(reversed);
+        int start = Math.min(3, expected.size());
+        int end = Math.min(27, expected.size() - 1);
+        List<String> page = new ArrayList<>();
+        set.rangeByRank(start, end, true, (member, score) -> page.add(member));
+        assertEquals(start > end ? new ArrayList<String>() : reversed.subList(start, end + 1), page);
+
+        List<String> middle = new ArrayList<>();
+        for (String member : expected) {
+            double score = model.get(member);
+            if (score >= 5 && score <= 10) {
+                middle.add(member);
+            }
+        }
+        assertEquals(middle, byScore(set, 5, false, 10, false, false));
+    }
+
+    private static void checkCommands(EmbeddedRedis redis, EmbeddedRedis.Session session, Map<String, Double> model) {
+        List<String> expected = sorted(model);
+        assertEquals((long) expected.size(), call(redis, session, "ZCARD", "z"));
+        assertEquals(expected, strings(call(redis, session, "ZRANGE", "z", 0, -1)));
+        for (int i = 0; i < expected.size(); i += 7) {
+            String member = expected.get(i);
+            assertEquals((long) i, call(redis, session, "ZRANK", "z", member));
+            assertEquals((long) (expected.size() - 1 - i), call(redis, session, "ZREVRANK", "z", member));
+        }
+        assertNull(call(redis, session, "ZRANK", "z", "missing"));
+
+        List<String> reversed = new ArrayList<>(expected);
+        Collections.reverse(reversed);
+        assertEquals(reversed.subList(Math.min(5, reversed.size()), Math.min(30, reversed.size())),
+            strings(call(redis, session, "ZREVRANGE", "z", 5, 29)));
+
+        List<String> byScore = new ArrayList<>();
+        for (String member : expected) {
+            if (model.get(member) > 3 && model.get(member) <= 9) {
+                byScore.add(member);
+            }
+        }
+        assertEquals(byScore, strings(call(redis, session, "ZRANGEBYSCORE", "z", "(3", 9)));
+    }
+
+    private static List<String> sorted(Map<String, Double> model) {
+        List<Map.Entry<String, Double>> entries = new ArrayList<>(model.entrySet());
+        entries.sort(ORDER);
+        List<String> members = new ArrayList<>(entries.size());
+        for (Map.Entry<String, Double> entry : entries) {
+            members.add(entry.getKey());
+        }
+        return members;
+    }
+
+    private static List<String> byScore(EmbeddedSortedSet set, double min, boolean minExclusive, double max,
+        boolean maxExclusive, boolean reverse) {
+        List<String> members = new ArrayList<>();
+        set.rangeByScore(min, minExclusive, max, maxExclusive, reverse, (member, score) -> members.add(member));
+        return members;
+    }
+
+    private static Object call(EmbeddedRedis redis, EmbeddedRedis.Session session, Object... args) {
+        List<byte[]> argv = new ArrayList<>(args.length);
+        for (Object arg : args) {
+            argv.add(String.valueOf(arg).getBytes(StandardCharsets.UTF_8));
+        }
+        return redis.execute(session, argv);
+    }
+
+    private static List<String> strings(Object reply) {
+        List<String> values = new ArrayList<>();
+        for (Object value : (List<?>) reply) {
+            values.add(new String((byte[]) value, StandardCharsets.UTF_8));
+        }
+        return values;
+    }
+}
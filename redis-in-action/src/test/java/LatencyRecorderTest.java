@@ -0,0 +1,87 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * {@link LatencyRecorder} 的百分位数：128 以下是精确值，更大的值返回所在桶的上界，相对误差不超过 1/64
+ *
+ * @author 黄学维
+ */
+public class LatencyRecorderTest {
+
+    @Test
+    public void emptyRecorderReportsZero() {
+        LatencyRecorder.Snapshot snapshot = new LatencyRecorder("empty", false).snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(50));
+        assertEquals(0, snapshot.getPercentile(100));
+        assertEquals(0, snapshot.getMean(), 0);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyRecorder recorder = new LatencyRecorder("small", false);
+        for (int value = 0; value < 128; value++) {
+            recorder.record(value);
+        }
+        LatencyRecorder.Snapshot snapshot = recorder.snapshot();
+        assertEquals(128, snapshot.getCount());
+        for (int value = 0; value < 128; value++) {
+            assertEquals(value, snapshot.getPercentile((value + 1) * 100.0 / 128));
+        }
+        assertEquals(127, snapshot.getMax());
+        assertEquals(127 * 128 / 2, snapshot.getSum());
+    }
+
+    @Test
+    public void percentilesStayWithinBucketPrecision() {
+        Random random = new Random(3);
+        LatencyRecorder recorder = new LatencyRecorder("random", true);
+        long[] values = new long[10_000];
+        for (int i = 0; i < values.length; i++) {
+            // 在多个数量级上分布
+            values[i] = (long) Math.pow(10, random.nextDouble() * 9);
+            recorder.record(values[i]);
+        }
+        Arrays.sort(values);
+        LatencyRecorder.Snapshot snapshot = recorder.snapshot();
+
+        for (double percentile : new double[]{0.1, 1, 10, 25, 50, 75, 90, 99, 99.9, 99.99}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long reported = snapshot.getPercentile(percentile);
+            assertTrue(percentile + ": " + reported + " < " + exact, reported >= exact);
+            assertTrue(percentile + ": " + reported + " > " + exact, reported <= exact + exact / 64);
+        }
+        assertEquals(values[values.length - 1], snapshot.getPercentile(100));
+        assertEquals(values[values.length - 1], snapshot.getMax());
+    }
+
+    @Test
+    public void clampsValuesOutsideTheRange() {
+        LatencyRecorder recorder = new LatencyRecorder("clamp", true);
+        recorder.record(-5);
+        recorder.record(1L << 40);
+        LatencyRecorder.Snapshot snapshot = recorder.snapshot();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(50));
+        // 超出范围的值计入最后一个桶，百分位数以最大值为上限
+        assertEquals(1L << 40, snapshot.getMax());
+        assertTrue(snapshot.getPercentile(100) >= (1L << 36) - 1);
+        assertTrue(snapshot.getPercentile(100) <= 1L << 40);
+    }
+
+    @Test
+    public void resetClearsCounts() {
+        LatencyRecorder recorder = new LatencyRecorder("reset", false);
+        recorder.record(1000);
+        recorder.reset();
+        recorder.record(10);
+        LatencyRecorder.Snapshot snapshot = recorder.snapshot();
+        assertEquals(1, snapshot.getCount());
+        assertEquals(10, snapshot.getMax());
+        assertEquals(10, snapshot.getPercentile(99));
+    }
+}
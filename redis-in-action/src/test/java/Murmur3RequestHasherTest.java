@@ -0,0 +1,50 @@
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+/**
+ * {@link Murmur3RequestHasher} 的固定向量，期望值为 Guava 的 Hashing.murmur3_128() 对同一字符串 UTF-8 字节的结果，
+ * 按字节顺序编码为不带填充的 base64url
+ *
+ * @author 黄学维
+ */
+public class Murmur3RequestHasherTest {
+
+    private final Murmur3RequestHasher hasher = new Murmur3RequestHasher();
+
+    @Test
+    public void matchesReferenceVectors() {
+        assertEquals("AAAAAAAAAAAAAAAAAAAAAA", hasher.hash(""));
+        assertEquals("Apu9QbOn2MsZHa5IapAeWw", hasher.hash("hello"));
+        assertEquals("bBsHvHu8S-NHk5rEqTxDeg", hasher.hash("The quick brown fox jumps over the lazy dog"));
+        assertEquals("rWkWdk8wPEu2Jw83Z-aRPw", hasher.hash("http://www.example.com/?item=itemX&page=1"));
+    }
+
+    @Test
+    public void matchesReferenceVectorsAroundTheBlockBoundary() {
+        // 正好一个 16 字节的块，以及多出 1 个字节的尾部
+        assertEquals("p9FKz5Rt4EvaCKdjXFvDhw", hasher.hash("0123456789abcdef"));
+        assertEquals("3vlFqi1hMo7ucsMGwvQACA", hasher.hash("0123456789abcdefg"));
+    }
+
+    @Test
+    public void hashesMultibyteCharactersAndSurrogatePairsAsUtf8() {
+        // 2 字节、3 字节和 4 字节（代理对）的字符，共 17 个字节，同时跨过一个块
+        String request = "café 中文 😀";
+        assertEquals(17, request.getBytes(StandardCharsets.UTF_8).length);
+        assertEquals("DEwEAYifmAFXd0DuerKHzA", hasher.hash(request));
+    }
+
+    @Test
+    public void hashesUnpairedSurrogatesAsQuestionMarks() {
+        assertEquals("StsbBInm-WV5NJjPuJIhUw", hasher.hash("a\uD83Db"));
+        assertEquals(hasher.hash("a?b"), hasher.hash("a\uD83Db"));
+        assertEquals(hasher.hash("?"), hasher.hash("\uDE00"));
+    }
+
+    @Test
+    public void usesTheSeed() {
+        assertEquals("CG-vYMmzuMR6vO-wdbg0Iw", new Murmur3RequestHasher(42).hash("hello"));
+    }
+}